@@ -0,0 +1,322 @@
+package com.cloudproject.dynamo.config;
+
+/**
+ * Class which defines the tunable settings of a Dynamo node. Every setting has a default
+ * value, which can be overridden by starting the node with the corresponding system
+ * property, for example {@code java -Ddynamo.storage.engine=file -jar ...}
+ */
+public class ServerConfig {
+
+    /**
+     * Method to return the name of the storage engine used by the node
+     * (property {@code dynamo.storage.engine}): "bitcask", "lsm" or "file"
+     *
+     * @return name of the storage engine
+     */
+    public static String getStorageEngine() {
+        return System.getProperty("dynamo.storage.engine", "bitcask");
+    }
+
+    /**
+     * Method to return the directory under which buckets are stored
+     * (property {@code dynamo.storage.dir}). Every folder of the directory is taken for a
+     * bucket, so it should be dedicated to the node
+     *
+     * @return path of the storage directory
+     */
+    public static String getStorageDirectory() {
+        return System.getProperty("dynamo.storage.dir", "data");
+    }
+
+    /**
+     * Method to return the size (in bytes) after which a log segment is closed and a new
+     * one is started (property {@code dynamo.storage.segmentSize})
+     *
+     * @return maximum size of a log segment
+     */
+    public static long getSegmentSize() {
+        return getLong("dynamo.storage.segmentSize", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Method to return the number of writes after which the log is forced to disk
+     * (property {@code dynamo.storage.syncWrites}). 1 forces every write, 0 leaves
+     * syncing to the periodic flush only
+     *
+     * @return number of writes per fsync
+     */
+    public static int getSyncWrites() {
+        return getInt("dynamo.storage.syncWrites", 64);
+    }
+
+    /**
+     * Method to return the interval (in milliseconds) at which unsynced writes are forced
+     * to disk (property {@code dynamo.storage.syncInterval})
+     *
+     * @return interval between two periodic fsyncs
+     */
+    public static long getSyncInterval() {
+        return getLong("dynamo.storage.syncInterval", 1000);
+    }
+
+    /**
+     * Method to return the interval (in milliseconds) between two compaction runs
+     * (property {@code dynamo.storage.compactionInterval})
+     *
+     * @return interval between two compactions
+     */
+    public static long getCompactionInterval() {
+        return getLong("dynamo.storage.compactionInterval", 60000);
+    }
+
+    /**
+     * Method to return the fraction of dead bytes above which a log segment is compacted
+     * (property {@code dynamo.storage.compactionThreshold})
+     *
+     * @return garbage ratio which triggers compaction of a segment
+     */
+    public static double getCompactionThreshold() {
+        return getDouble("dynamo.storage.compactionThreshold", 0.5);
+    }
+
+    /**
+     * Method to check whether object writes go through the write-ahead log
+     * (property {@code dynamo.wal.enabled}). When enabled, a write is acknowledged once
+     * its group commit is durable, and the storage engine only syncs periodically
+     *
+     * @return true if the write-ahead log is enabled
+     */
+    public static boolean getWalEnabled() {
+        return Boolean.parseBoolean(System.getProperty("dynamo.wal.enabled", "true"));
+    }
+
+    /**
+     * Method to return the size (in bytes) after which the write-ahead log is checkpointed
+     * and truncated (property {@code dynamo.wal.checkpointSize})
+     *
+     * @return maximum size of the write-ahead log
+     */
+    public static long getWalCheckpointSize() {
+        return getLong("dynamo.wal.checkpointSize", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Method to return the maximum size (in bytes) of the objects kept in the read cache
+     * (property {@code dynamo.cache.size}), 0 to disable the cache
+     *
+     * @return size of the read cache
+     */
+    public static long getCacheSize() {
+        return getLong("dynamo.cache.size", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Method to return the size (in bytes) after which the memtable of an LSM bucket is
+     * flushed to a table (property {@code dynamo.lsm.memtableSize})
+     *
+     * @return maximum size of a memtable
+     */
+    public static long getMemtableSize() {
+        return getLong("dynamo.lsm.memtableSize", 4L * 1024 * 1024);
+    }
+
+    /**
+     * Method to return the target size (in bytes) of the tables written by LSM compactions
+     * (property {@code dynamo.lsm.tableSize})
+     *
+     * @return target size of a table
+     */
+    public static long getTableSize() {
+        return getLong("dynamo.lsm.tableSize", 2L * 1024 * 1024);
+    }
+
+    /**
+     * Method to return the number of level 0 tables which triggers their compaction into
+     * level 1 (property {@code dynamo.lsm.level0Tables})
+     *
+     * @return number of level 0 tables per compaction
+     */
+    public static int getLevel0Tables() {
+        return getInt("dynamo.lsm.level0Tables", 4);
+    }
+
+    /**
+     * Method to return the maximum number of entries of the vector clock of an object
+     * (property {@code dynamo.clock.maxEntries}). Beyond it, the entry of the node which
+     * coordinated a write of the object least recently is dropped
+     *
+     * @return maximum size of a vector clock
+     */
+    public static int getClockMaxEntries() {
+        return getInt("dynamo.clock.maxEntries", 10);
+    }
+
+    /**
+     * Method to return the probability with which a read is followed by a read repair
+     * (property {@code dynamo.readRepair.probability}), between 0 (never) and 1 (every read)
+     *
+     * @return probability of repairing the replicas of an object after reading it
+     */
+    public static double getReadRepairProbability() {
+        return getDouble("dynamo.readRepair.probability", 0.1);
+    }
+
+    /**
+     * Method to return the time (in milliseconds) a coordinator waits for the replicas of a write
+     * before handing the write to stand-in nodes of the preference list (property
+     * {@code dynamo.handoff.timeout})
+     *
+     * @return time after which an unresponsive replica is treated as down by a write
+     */
+    public static long getHandoffTimeout() {
+        return getLong("dynamo.handoff.timeout", 2000);
+    }
+
+    /**
+     * Method to return the interval (in milliseconds) between two anti-entropy rounds, in which
+     * a node compares its Merkle trees with a random node and repairs the objects on which they
+     * diverge (property {@code dynamo.antiEntropy.interval}). 0 disables anti-entropy
+     *
+     * @return interval between two anti-entropy rounds
+     */
+    public static long getAntiEntropyInterval() {
+        return getLong("dynamo.antiEntropy.interval", 30000);
+    }
+
+    /**
+     * Method to return the time (in milliseconds) for which the delete marker of an object is kept
+     * before the anti-entropy rounds purge it (property {@code dynamo.delete.gracePeriod}). A
+     * replica which missed the delete and is not repaired within this time, by hinted handoff,
+     * read repair or anti-entropy, may bring the object back, so the grace period should exceed
+     * the time a node may stay down
+     *
+     * @return time after which delete markers are purged
+     */
+    public static long getDeleteGracePeriod() {
+        return getLong("dynamo.delete.gracePeriod", 10L * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * Method to return the number of virtual nodes this node takes on the hash ring (property
+     * {@code dynamo.ring.vnodes}). The number is advertised to the other nodes through gossip,
+     * and every node owns a share of the keys in proportion to its number, so that larger
+     * machines can be given more virtual nodes
+     *
+     * @return number of virtual nodes of this node
+     */
+    public static int getVirtualNodes() {
+        return getInt("dynamo.ring.vnodes", 64);
+    }
+
+    /**
+     * Method to return the bandwidth (in bytes per second) with which a node streams the key
+     * ranges it no longer owns, or no longer owns alone, to their new replicas after a change
+     * of the ring (property {@code dynamo.rebalance.bandwidth})
+     *
+     * @return maximum rate of the transfers of a rebalance
+     */
+    public static long getRebalanceBandwidth() {
+        return getLong("dynamo.rebalance.bandwidth", 10L * 1024 * 1024);
+    }
+
+    /**
+     * Method to return the time (in milliseconds) after which a node which left the network is
+     * removed from the ring, and its key ranges are copied to the next nodes of the ring so that
+     * their keys get back to their number of replicas (property {@code dynamo.ring.removalDelay}).
+     * Until then, the writes it misses are kept as hints. 0 keeps dead nodes on the ring
+     *
+     * @return time after which a dead node is removed from the ring
+     */
+    public static long getRingRemovalDelay() {
+        return getLong("dynamo.ring.removalDelay", 600000);
+    }
+
+    /**
+     * Method to return the name of the hash function which places the nodes and the keys on the
+     * ring (property {@code dynamo.ring.hash}): "city", "murmur3" or "xxhash". Nodes using
+     * different functions disagree on the replicas of every key, so all the nodes of a network,
+     * API nodes included, must use the same one
+     *
+     * @return name of the hash function of the ring
+     */
+    public static String getHashFunction() {
+        return System.getProperty("dynamo.ring.hash", "city");
+    }
+
+    /**
+     * Method to return the suspicion level (phi) above which a node is suspected to be down
+     * (property {@code dynamo.failure.phiThreshold}). A suspected node keeps its place in the
+     * node list and on the ring, but requests are no longer routed to it until it is heard from
+     * again. A threshold of 8 means a probability of about 10^-8 that a suspicion is wrong
+     *
+     * @return threshold of the phi accrual failure detector
+     */
+    public static double getPhiThreshold() {
+        return getDouble("dynamo.failure.phiThreshold", 8);
+    }
+
+    /**
+     * Method to return the number of threads coordinating the requests forwarded to this node,
+     * which wait for the quorum of the replicas (property {@code dynamo.threads.coordination})
+     *
+     * @return size of the coordination thread pool
+     */
+    public static int getCoordinationThreads() {
+        return getInt("dynamo.threads.coordination", 32);
+    }
+
+    /**
+     * Method to return the number of threads performing the replica requests received by this
+     * node against its storage (property {@code dynamo.threads.disk})
+     *
+     * @return size of the disk thread pool
+     */
+    public static int getDiskThreads() {
+        return getInt("dynamo.threads.disk", 16);
+    }
+
+    /**
+     * Method to return the number of threads running background tasks such as hinted handoff,
+     * read repair and Merkle tree comparisons (property {@code dynamo.threads.maintenance})
+     *
+     * @return size of the maintenance thread pool, besides the threads of the periodic tasks
+     */
+    public static int getMaintenanceThreads() {
+        return getInt("dynamo.threads.maintenance", 4);
+    }
+
+    /**
+     * Method to return whether the requests forwarded to this node are coordinated on virtual
+     * threads, one per request, instead of the coordination thread pool (property
+     * {@code dynamo.threads.virtual}). Requires Java 21, the {@code virtual-threads} build profile
+     * sets it. The pool is used on older Java versions
+     *
+     * @return true to coordinate the requests on virtual threads
+     */
+    public static boolean isVirtualThreads() {
+        return Boolean.parseBoolean(System.getProperty("dynamo.threads.virtual", "false"));
+    }
+
+    /**
+     * Method to return the number of tasks which may wait for a thread in each thread pool
+     * (property {@code dynamo.threads.queue}). A request arriving while the queue of its pool is
+     * full is answered right away with an "overloaded" status
+     *
+     * @return capacity of the queue of each thread pool
+     */
+    public static int getThreadQueueSize() {
+        return getInt("dynamo.threads.queue", 256);
+    }
+
+    private static int getInt(String property, int defaultValue) {
+        return Integer.parseInt(System.getProperty(property, String.valueOf(defaultValue)));
+    }
+
+    private static long getLong(String property, long defaultValue) {
+        return Long.parseLong(System.getProperty(property, String.valueOf(defaultValue)));
+    }
+
+    private static double getDouble(String property, double defaultValue) {
+        return Double.parseDouble(System.getProperty(property, String.valueOf(defaultValue)));
+    }
+}
@@ -221,8 +221,7 @@ public class CityHash implements HashFunction {
     }
 
     @Override
-    public long hash(String key) {
-        byte[] arr = key.getBytes();
-        return cityHash64WithSeed(arr, 0, arr.length, 703);
+    public long hash(byte[] key, int offset, int length) {
+        return cityHash64WithSeed(key, offset, length, 703);
     }
 }
\ No newline at end of file
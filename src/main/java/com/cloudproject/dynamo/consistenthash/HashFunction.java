@@ -1,14 +1,56 @@
 package com.cloudproject.dynamo.consistenthash;
 
+import java.nio.ByteBuffer;
+
 /**
- * Interface to be used for building a hash function
+ * Interface to be used for building a hash function. An implementation only has to hash a range
+ * of a byte array; keys held as strings or buffers are hashed through their UTF-8 bytes, so that
+ * a key gets the same hash whichever form it comes in.
  */
 public interface HashFunction {
+    /**
+     * Method to return the hash value for a range of bytes
+     *
+     * @param key    array holding the key
+     * @param offset index of the first byte of the key
+     * @param length number of bytes of the key
+     * @return the hash value
+     */
+    long hash(byte[] key, int offset, int length);
+
+    /**
+     * Method to return the hash value for a given key
+     *
+     * @param key the key to be hashed
+     * @return the hash value
+     */
+    default long hash(byte[] key) {
+        return hash(key, 0, key.length);
+    }
+
+    /**
+     * Method to return the hash value for the remaining bytes of a buffer, without moving its
+     * position
+     *
+     * @param key buffer holding the key
+     * @return the hash value
+     */
+    default long hash(ByteBuffer key) {
+        if (key.hasArray()) {
+            return hash(key.array(), key.arrayOffset() + key.position(), key.remaining());
+        }
+        byte[] bytes = new byte[key.remaining()];
+        key.duplicate().get(bytes);
+        return hash(bytes, 0, bytes.length);
+    }
+
     /**
      * Method to return the hash value for a given key
      *
      * @param key the key to be hashed
      * @return the hash value
      */
-    long hash(String key);
+    default long hash(String key) {
+        return KeyEncoder.hash(this, key);
+    }
 }
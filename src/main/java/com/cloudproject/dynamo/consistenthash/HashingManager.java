@@ -21,27 +21,51 @@ import com.cloudproject.dynamo.models.Quorum;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.SortedMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
- * Class for managing the hashing of nodes and data objects into nodes in a consistent manner
+ * Class for managing the hashing of nodes and data objects into nodes in a consistent manner.
+ * <p>
+ * The ring is an immutable snapshot, the tokens of the virtual nodes in a sorted array searched
+ * by binary search. Adding or removing a node builds a new snapshot, which replaces the current
+ * one atomically, so that routing never takes a lock and always sees a consistent ring.
+ * </p>
+ * <p>
+ * All the keys between two consecutive tokens (a segment of the ring) have the same preference
+ * list, so the preference list of every segment is computed once when the snapshot is built,
+ * up to {@link #PRECOMPUTED_NODES} nodes. Routing a key is then a binary search followed by an
+ * array read.
+ * </p>
+ * <p>
+ * Every physical node takes as many virtual nodes as it asks for with
+ * {@link Node#getVirtualNodeCount()}, so that a node owns a share of the keys in proportion to
+ * its capacity.
+ * </p>
  *
  * @param <T> An object that extends the {@link Node} interface
  */
 public class HashingManager<T extends Node> {
 
-    private final TreeMap<Long, VirtualNode<T>> ring;
+    /* length of the precomputed preference lists: the replicas, and as many stand-ins */
+    private static final int PRECOMPUTED_NODES = 2 * Quorum.getReplicas();
+
     private final HashFunction hashFunction;
-    private final int vNodeCount;
     private final Object lock;
+    /* the current state of the ring, replaced as a whole by every change */
+    private volatile Ring<T> ring;
 
     public HashingManager(Collection<T> pNodes, @NotNull HashFunction hashFunction) {
         this.hashFunction = hashFunction;
-        this.ring = new TreeMap<>();
-
-        this.vNodeCount = 5;
+        this.ring = new Ring<>(new TreeMap<>());
 
         lock = new Object();
 
@@ -52,21 +76,51 @@ public class HashingManager<T extends Node> {
     }
 
     /**
-     * Adds a new physical node to the hash ring, with specified number of replicas
+     * Creates a copy of a hash ring, which is not affected by later changes of the original one
+     *
+     * @param other the hash ring to be copied
+     */
+    private HashingManager(HashingManager<T> other) {
+        this.hashFunction = other.hashFunction;
+        this.ring = other.ring;
+        this.lock = new Object();
+    }
+
+    /**
+     * Method to return a copy of the current state of the ring, such as the ring before a node
+     * is added or removed. As the state of the ring is immutable, the copy shares it
+     *
+     * @return a copy of the ring
+     */
+    public HashingManager<T> snapshot() {
+        return new HashingManager<>(this);
+    }
+
+    /**
+     * Adds a new physical node to the hash ring, with the number of virtual nodes it asks for. If
+     * the node is already on the ring, its virtual nodes are replaced, so that it takes the new
+     * number of virtual nodes
      *
      * @param pNode the physical node to be added to the ring
      */
     public void addNode(T pNode) {
+        int vNodeCount = pNode.getVirtualNodeCount();
         if (vNodeCount < 0) {
             throw new IllegalArgumentException("Number of virtual nodes cannot be negative!");
         }
-        int existingReplicas = getExistingReplicas(pNode);
-        for (int i = 0; i < vNodeCount; i++) {
-            VirtualNode<T> vNode = new VirtualNode<>(pNode, i + existingReplicas);
-            ring.put(hashFunction.hash(vNode.getAddress()), vNode);
-
-            // TODO: Rehash data from adjacent nodes, both previous one and next one
+        synchronized (lock) {
+            TreeMap<Long, VirtualNode<T>> tokens = ring.toMap();
+            if (containsNode(pNode)) {
+                tokens.values().removeIf(vNode -> vNode.isVirtualNodeOf(pNode));
+            }
+            for (int i = 0; i < vNodeCount; i++) {
+                VirtualNode<T> vNode = new VirtualNode<>(pNode, i);
+                tokens.put(hashFunction.hash(vNode.getAddress()), vNode);
+            }
+            ring = new Ring<>(tokens);
         }
+        /* the keys are not moved here: the owner of the ring compares it with a snapshot taken
+         * before the change, and streams the ranges which changed replicas */
     }
 
     /**
@@ -75,15 +129,13 @@ public class HashingManager<T extends Node> {
      * @param pNode the physical node to be removed form the hash ring
      */
     public void removeNode(T pNode) {
-        ring.keySet().removeIf(key -> ring.get(key).isVirtualNodeOf(pNode));
-
-        // TODO: Rehash data from next node (restore multiplicity)
-//        Iterator<Long> it = ring.keySet().iterator();
-//        while (it.hasNext()) {
-//            if(ring.get(it.next()).isVirtualNodeOf(pNode)) {
-//                it.remove();
-//            }
-//        }
+        synchronized (lock) {
+            TreeMap<Long, VirtualNode<T>> tokens = ring.toMap();
+            tokens.values().removeIf(vNode -> vNode.isVirtualNodeOf(pNode));
+            ring = new Ring<>(tokens);
+        }
+        /* the ranges of the node are copied to the next nodes of the ring by the owner of the
+         * ring, which restores the number of replicas of their keys */
     }
 
     /**
@@ -93,68 +145,144 @@ public class HashingManager<T extends Node> {
      * @return list of nodes to which the object will be hashed
      */
     public ArrayList<T> routeNodes(@NotNull String objectKey) {
-        if (ring.isEmpty()) {
+        return routeNodes(objectKey, Quorum.getReplicas());
+    }
+
+    /**
+     * Method that returns the preference list of a data object: the first distinct physical nodes
+     * met when walking the ring clockwise from the hash of its key. The first
+     * {@link Quorum#getReplicas()} nodes are the replicas of the object, the following ones
+     * are the nodes which stand in for them while they are down
+     *
+     * @param objectKey the key of the object to be hashed
+     * @param count     maximum number of nodes to be returned
+     * @return list of at most count nodes, in ring order, or null if the ring is empty
+     */
+    public ArrayList<T> routeNodes(@NotNull String objectKey, int count) {
+        return routeHash(hash(objectKey), count);
+    }
+
+    /**
+     * Method that returns the preference list of a position of the ring: the first distinct
+     * physical nodes met when walking the ring clockwise from that position
+     *
+     * @param hash  position on the ring, such as the hash of a key
+     * @param count maximum number of nodes to be returned
+     * @return list of at most count nodes, in ring order, or null if the ring is empty
+     */
+    public ArrayList<T> routeHash(long hash, int count) {
+        Ring<T> current = ring;
+        if (current.tokens.length == 0) {
             return null;
         }
-        Long hash = hashFunction.hash(objectKey);
-        SortedMap<Long, VirtualNode<T>> tailMap = ring.tailMap(hash);
-//        Long nodeHash = (!tailMap.isEmpty()) ? tailMap.firstKey() : ring.firstKey();
-//        ring.get(nodeHash).getPhysicalNode();
-        ArrayList<T> nodesList = new ArrayList<>();
-//        for (int i = 0; i < Quorum.getReplicas(); i++) {
-//            if (tailMap.isEmpty()) {
-//                // loop around
-//                tailMap = ring.tailMap(ring.firstKey());
-//            }
-//            if (!nodesList.contains(ring.get(tailMap.firstKey()).getPhysicalNode())) {
-//                // new physical node, add to list
-//                nodesList.add(ring.get(tailMap.firstKey()).getPhysicalNode());
-//            } else {
-//                // physical node already exists in list, find another node
-//                i--;
-//            }
-//            // get next element of the ring
-//            tailMap = ring.tailMap(tailMap.firstKey());
-//        }
-        int i = 0;
-
-        Long nodeHash = (!tailMap.isEmpty()) ? tailMap.firstKey() : ring.firstKey();
-        VirtualNode<T> firstNode = ring.get(nodeHash);
-        while (i < Quorum.getReplicas()) {
-            VirtualNode<T> node = ring.get(nodeHash);
-            if (!nodesList.contains(node.getPhysicalNode())) {
-                // if physical node was not already added, add it
-                nodesList.add(node.getPhysicalNode());
-                i++;
-            } else if (node == firstNode) {
-                break;
-            }
+        int first = current.indexOf(hash);
+        List<T> preferences = current.preferences[first];
+        if (count <= preferences.size() || preferences.size() == current.pNodeCount) {
+            return new ArrayList<>(preferences.subList(0, Math.min(count, preferences.size())));
+        }
+        // longer than the precomputed list: walk the ring at most once, looping around its end
+        return Ring.walk(current.vNodes, first, count);
+    }
+
+    /**
+     * Method that returns the replicas of a data object, without copying them: the list is
+     * shared by every key of the same segment of the ring and cannot be modified
+     *
+     * @param objectKey the key of the object to be hashed
+     * @return list of the replicas of the object, empty if the ring is empty
+     */
+    public List<T> getReplicas(@NotNull String objectKey) {
+        Ring<T> current = ring;
+        if (current.tokens.length == 0) {
+            return Collections.emptyList();
+        }
+        return current.replicas[current.indexOf(hash(objectKey))];
+    }
+
+    /**
+     * Method to return the position of a key on the ring
+     *
+     * @param objectKey the key of the object
+     * @return the hash of the key
+     */
+    public long hash(@NotNull String objectKey) {
+        return hashFunction.hash(objectKey);
+    }
 
-            // get key for next node; loop around if higherKey does not exist
-            nodeHash = (ring.higherKey(nodeHash) != null ? ring.higherKey(nodeHash) : ring.firstKey());
+    /**
+     * Method to return the positions of the virtual nodes on the ring. A key belongs to the
+     * first virtual node at or after its own position, wrapping around the end of the ring
+     *
+     * @return the positions of the virtual nodes, in increasing order
+     */
+    public NavigableSet<Long> getTokens() {
+        TreeSet<Long> tokens = new TreeSet<>();
+        for (long token : ring.tokens) {
+            tokens.add(token);
         }
+        return tokens;
+    }
+
+    /**
+     * Method to return every physical node of the ring, without walking it: the list is kept by
+     * the state of the ring and cannot be modified
+     *
+     * @return the distinct physical nodes, in the order of their first token on the ring
+     */
+    public List<T> getNodes() {
+        return ring.pNodes;
+    }
+
+    /**
+     * Method to check whether a physical node is part of the hash ring
+     *
+     * @param pNode the physical node
+     * @return true if the ring holds virtual nodes of the physical node
+     */
+    public boolean containsNode(T pNode) {
+        return getVirtualNodeCount(pNode) > 0;
+    }
 
-        return nodesList;
+    /**
+     * Returns the number of virtual nodes of a physical node on the ring
+     *
+     * @param pNode the physical node
+     * @return the number of virtual nodes of the physical node, 0 if it is not on the ring
+     */
+    public int getVirtualNodeCount(T pNode) {
+        Integer count = ring.counts.get(pNode.getAddress());
+        return count != null ? count : 0;
     }
 
     /**
-     * Returns the number of existing replicas of a physical node
+     * Method to return the share of the keys of which every physical node is one of the first
+     * replicas, from the lengths of the segments of the ring
      *
-     * @param pNode the physical node whose number of replicas is required
-     * @return (int) the number of existing replicas of the given physical node
-     */
-    private int getExistingReplicas(T pNode) {
-        int replicas = 0;
-        for (VirtualNode<T> vNode : ring.values()) {
-            if (vNode.isVirtualNodeOf(pNode)) {
-                replicas++;
+     * @param replicas number of replicas counted, 1 for the share of which nodes are the first replica
+     * @return every physical node, in ring order, and the fraction of the keys it replicates
+     */
+    public LinkedHashMap<T, Double> getOwnership(int replicas) {
+        Ring<T> current = ring;
+        LinkedHashMap<T, Double> ownership = new LinkedHashMap<>();
+        int size = current.tokens.length;
+        for (int i = 0; i < size; i++) {
+            /* the segment ending at a token starts at the previous token, looping around the end of the ring */
+            long length = current.tokens[i] - current.tokens[(i + size - 1) % size];
+            double share = size == 1 ? 1 : (length < 0 ? length + 0x1p64 : length) / 0x1p64;
+            List<T> nodes = current.preferences[i];
+            if (nodes.size() < replicas && nodes.size() < current.pNodeCount) {
+                nodes = Ring.walk(current.vNodes, i, replicas);
+            }
+            for (int j = 0; j < replicas && j < nodes.size(); j++) {
+                ownership.merge(nodes.get(j), share, Double::sum);
             }
         }
-        return replicas;
+        return ownership;
     }
 
     /**
-     * Method to return an instance of a lock associated with this object
+     * Method to return an instance of a lock associated with this object, which serializes the
+     * changes of the ring. Routing never takes it
      *
      * @return instance of the lock
      */
@@ -162,4 +290,101 @@ public class HashingManager<T extends Node> {
         return lock;
     }
 
+    /**
+     * Immutable state of the ring: the tokens of the virtual nodes in increasing order, and the
+     * virtual node, the preference list and the replicas of the segment ending at every token,
+     * at the same index
+     */
+    private static final class Ring<T extends Node> {
+        private final long[] tokens;
+        private final VirtualNode<T>[] vNodes;
+        private final List<T>[] preferences;
+        private final List<T>[] replicas;
+        /* address of every physical node -> number of its virtual nodes */
+        private final HashMap<String, Integer> counts;
+        /* the distinct physical nodes, in the order of their first token */
+        private final List<T> pNodes;
+        private final int pNodeCount;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Ring(TreeMap<Long, VirtualNode<T>> ring) {
+            int size = ring.size();
+            this.tokens = new long[size];
+            this.vNodes = (VirtualNode<T>[]) new VirtualNode[size];
+            this.preferences = (List<T>[]) new List[size];
+            this.replicas = (List<T>[]) new List[size];
+            this.counts = new HashMap<>();
+            ArrayList<T> pNodes = new ArrayList<>();
+            int i = 0;
+            for (Map.Entry<Long, VirtualNode<T>> entry : ring.entrySet()) {
+                tokens[i] = entry.getKey();
+                vNodes[i] = entry.getValue();
+                T pNode = entry.getValue().getPhysicalNode();
+                if (counts.merge(pNode.getAddress(), 1, Integer::sum) == 1) {
+                    pNodes.add(pNode);
+                }
+                i++;
+            }
+            this.pNodes = Collections.unmodifiableList(pNodes);
+            this.pNodeCount = counts.size();
+            for (i = 0; i < size; i++) {
+                ArrayList<T> preference = walk(vNodes, i, PRECOMPUTED_NODES);
+                if (i > 0 && preference.equals(preferences[i - 1])) {
+                    /* consecutive segments often share their list */
+                    preferences[i] = preferences[i - 1];
+                    replicas[i] = replicas[i - 1];
+                } else {
+                    preferences[i] = Collections.unmodifiableList(preference);
+                    replicas[i] = Collections.unmodifiableList(
+                            new ArrayList<>(preference.subList(0, Math.min(Quorum.getReplicas(), preference.size()))));
+                }
+            }
+        }
+
+        /**
+         * Method to walk the ring from a token, collecting the first distinct physical nodes
+         *
+         * @param vNodes the virtual nodes of the ring
+         * @param first  index of the token the walk starts from
+         * @param count  maximum number of nodes to be returned
+         * @return list of at most count nodes, in ring order
+         */
+        static <T extends Node> ArrayList<T> walk(VirtualNode<T>[] vNodes, int first, int count) {
+            ArrayList<T> nodesList = new ArrayList<>();
+            for (int i = 0; i < vNodes.length && nodesList.size() < count; i++) {
+                T pNode = vNodes[(first + i) % vNodes.length].getPhysicalNode();
+                if (!nodesList.contains(pNode)) {
+                    // if physical node was not already added, add it
+                    nodesList.add(pNode);
+                }
+            }
+            return nodesList;
+        }
+
+        /**
+         * @return a sorted map of the tokens to their virtual nodes, from which a new state is built
+         */
+        TreeMap<Long, VirtualNode<T>> toMap() {
+            TreeMap<Long, VirtualNode<T>> ring = new TreeMap<>();
+            for (int i = 0; i < tokens.length; i++) {
+                ring.put(tokens[i], vNodes[i]);
+            }
+            return ring;
+        }
+
+        /**
+         * Method to return the index of the first token at or after a position, looping around
+         * the end of the ring
+         *
+         * @param hash the position
+         * @return index of the token
+         */
+        int indexOf(long hash) {
+            int index = Arrays.binarySearch(tokens, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index == tokens.length ? 0 : index;
+        }
+    }
 }
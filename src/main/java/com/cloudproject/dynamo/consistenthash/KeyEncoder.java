@@ -0,0 +1,48 @@
+package com.cloudproject.dynamo.consistenthash;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes string keys to UTF-8 for hashing. Keys are usually short and ASCII, so they are copied
+ * into a buffer owned by the calling thread rather than into a new array on every lookup; other
+ * keys go through the regular encoder.
+ */
+final class KeyEncoder {
+
+    private static final int MAX_BUFFERED_LENGTH = 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[64]);
+
+    private KeyEncoder() {
+    }
+
+    /**
+     * Method to hash the UTF-8 bytes of a key
+     *
+     * @param function the hash function
+     * @param key      the key to be hashed
+     * @return the hash value
+     */
+    static long hash(HashFunction function, String key) {
+        int length = key.length();
+        if (length <= MAX_BUFFERED_LENGTH) {
+            byte[] buffer = BUFFER.get();
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, 2 * buffer.length)];
+                BUFFER.set(buffer);
+            }
+            int i = 0;
+            while (i < length) {
+                char c = key.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                buffer[i++] = (byte) c;
+            }
+            if (i == length) {
+                return function.hash(buffer, 0, length);
+            }
+        }
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return function.hash(bytes, 0, bytes.length);
+    }
+}
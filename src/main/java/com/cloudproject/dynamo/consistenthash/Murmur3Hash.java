@@ -0,0 +1,122 @@
+package com.cloudproject.dynamo.consistenthash;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * MurmurHash3, in its x64 128-bit variant, of which the first 64 bits are returned. Matches the
+ * first half of the reference {@code MurmurHash3_x64_128} for the same seed.
+ */
+public class Murmur3Hash implements HashFunction {
+
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long seed;
+
+    public Murmur3Hash() {
+        this(0);
+    }
+
+    /**
+     * @param seed seed of the hash, taken as an unsigned 32-bit value
+     */
+    public Murmur3Hash(int seed) {
+        this.seed = seed & 0xffffffffL;
+    }
+
+    @Override
+    @SuppressWarnings("fallthrough")
+    public long hash(byte[] key, int offset, int length) {
+        long h1 = seed;
+        long h2 = seed;
+        int end = offset + (length & ~15);
+        for (int i = offset; i < end; i += 16) {
+            long k1 = (long) LONG_LE.get(key, i);
+            long k2 = (long) LONG_LE.get(key, i + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        /* the tail bytes are read from the last one down: every case falls through to the next */
+        switch (length & 15) {
+            case 15:
+                k2 ^= (long) (key[end + 14] & 0xff) << 48;
+            case 14:
+                k2 ^= (long) (key[end + 13] & 0xff) << 40;
+            case 13:
+                k2 ^= (long) (key[end + 12] & 0xff) << 32;
+            case 12:
+                k2 ^= (long) (key[end + 11] & 0xff) << 24;
+            case 11:
+                k2 ^= (long) (key[end + 10] & 0xff) << 16;
+            case 10:
+                k2 ^= (long) (key[end + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= key[end + 8] & 0xff;
+                h2 ^= mixK2(k2);
+            case 8:
+                k1 ^= (long) (key[end + 7] & 0xff) << 56;
+            case 7:
+                k1 ^= (long) (key[end + 6] & 0xff) << 48;
+            case 6:
+                k1 ^= (long) (key[end + 5] & 0xff) << 40;
+            case 5:
+                k1 ^= (long) (key[end + 4] & 0xff) << 32;
+            case 4:
+                k1 ^= (long) (key[end + 3] & 0xff) << 24;
+            case 3:
+                k1 ^= (long) (key[end + 2] & 0xff) << 16;
+            case 2:
+                k1 ^= (long) (key[end + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= key[end] & 0xff;
+                h1 ^= mixK1(k1);
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
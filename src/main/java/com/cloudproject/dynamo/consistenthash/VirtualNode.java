@@ -26,6 +26,16 @@ public class VirtualNode<T extends Node> implements Node {
         return physicalNode.getAddress() + "-" + replicaIndex;
     }
 
+    /**
+     * A virtual node is a single position of the ring
+     *
+     * @return 1
+     */
+    @Override
+    public int getVirtualNodeCount() {
+        return 1;
+    }
+
     /**
      * Method to check if this represents a virtual node of a given
      * physical node
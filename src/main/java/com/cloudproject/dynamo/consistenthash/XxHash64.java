@@ -0,0 +1,99 @@
+package com.cloudproject.dynamo.consistenthash;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * xxHash, in its 64-bit variant. Matches the reference {@code XXH64} for the same seed.
+ */
+public class XxHash64 implements HashFunction {
+
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private final long seed;
+
+    public XxHash64() {
+        this(0);
+    }
+
+    /**
+     * @param seed seed of the hash
+     */
+    public XxHash64(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public long hash(byte[] key, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        long h;
+        if (length >= 32) {
+            long v1 = seed + P1 + P2;
+            long v2 = seed + P2;
+            long v3 = seed;
+            long v4 = seed - P1;
+            int limit = end - 32;
+            do {
+                v1 = round(v1, (long) LONG_LE.get(key, pos));
+                v2 = round(v2, (long) LONG_LE.get(key, pos + 8));
+                v3 = round(v3, (long) LONG_LE.get(key, pos + 16));
+                v4 = round(v4, (long) LONG_LE.get(key, pos + 24));
+                pos += 32;
+            } while (pos <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + P5;
+        }
+
+        h += length;
+        while (pos + 8 <= end) {
+            h ^= round(0, (long) LONG_LE.get(key, pos));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+            pos += 8;
+        }
+        if (pos + 4 <= end) {
+            h ^= ((int) INT_LE.get(key, pos) & 0xffffffffL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            pos += 4;
+        }
+        while (pos < end) {
+            h ^= (key[pos] & 0xff) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+            pos++;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * P1 + P4;
+    }
+}
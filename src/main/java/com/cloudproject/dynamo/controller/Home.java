@@ -7,8 +7,11 @@ import com.cloudproject.dynamo.models.OutputModel;
 import com.cloudproject.dynamo.msgmanager.DynamoServer;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import java.net.SocketException;
+import java.util.function.BiConsumer;
 
 @Path("/")
 public class Home {
@@ -56,42 +59,55 @@ public class Home {
         return outputModel;
     }
 
+    /**
+     * Method to be used to monitor the load of the server
+     *
+     * @return for every node, the active threads, queued tasks and rejected tasks of each thread pool, and
+     * the hits, misses and evictions of the read cache
+     */
+    @GET
+    @Path("metrics")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String metrics() throws SocketException {
+        startDynamoServer();
+        return dynamoServer.getMetrics();
+    }
+
     /**
      * Method to be used for creating a new bucket in the database
      * @param inputModel POJO (generated by de-serializing the JSON request body) containing the bucket name
-     * @return POJO containing the response message. This is serialized to JSON to give REST API response
+     * @param asyncResponse resumed with the POJO containing the response message. This is serialized to JSON to
+     *                      give REST API response
      * @throws SocketException may sometimes occur
      */
     @POST
     @Path("bucket")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public OutputModel createBucket(BucketInputModel inputModel) throws SocketException {
-        OutputModel outputModel = new OutputModel();
-        startDynamoServer();
+    public void createBucket(BucketInputModel inputModel, @Suspended AsyncResponse asyncResponse)
+            throws SocketException {
 //        dynamoServer.createBucket(inputModel.getBucketName(), outputModel);
-        dynamoServer.forwardToRandNode(MessageTypes.BUCKET_CREATE, inputModel.getBucketName(), outputModel);
+        forward(asyncResponse, (server, outputModel) ->
+                server.forwardToRandNode(MessageTypes.BUCKET_CREATE, inputModel.getBucketName(), outputModel));
 //        bucketOutputModel.setResponse("Bucket " + inputModel.getBucketName() + " created successfully");
-        return outputModel;
     }
 
     /**
      * Method to be used for deleting a bucket from the database
      * @param inputModel POJO (generated by de-serailizing the JSON request body) containing the bucket name
-     * @return POJO containing the response message. This is serialized to JSON to give REST API response
+     * @param asyncResponse resumed with the POJO containing the response message. This is serialized to JSON to
+     *                      give REST API response
      * @throws SocketException may sometimes occur
      */
     @DELETE
     @Path("bucket")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public OutputModel deleteBucket(BucketInputModel inputModel) throws SocketException {
-        OutputModel outputModel = new OutputModel();
-        startDynamoServer();
+    public void deleteBucket(BucketInputModel inputModel, @Suspended AsyncResponse asyncResponse)
+            throws SocketException {
 //        bucketOutputModel.setResponse("Bucket " + inputModel.getBucketName() + " deleted successfully");
-        dynamoServer.forwardToRandNode(MessageTypes.BUCKET_DELETE, inputModel.getBucketName(), outputModel);
-
-        return outputModel;
+        forward(asyncResponse, (server, outputModel) ->
+                server.forwardToRandNode(MessageTypes.BUCKET_DELETE, inputModel.getBucketName(), outputModel));
     }
 
     /**
@@ -99,20 +115,18 @@ public class Home {
      * @param inputModel POJO (generated by de-serializing JSON request body) containing the key and value of the object
      * @param bucketName String (contained in the JSON request body) specifying the name of the bucket in which thhe
      *                   object is to be created
-     * @return POJO containing the response message. This is serialized to JSON to give REST API response
+     * @param asyncResponse resumed with the POJO containing the response message. This is serialized to JSON to
+     *                      give REST API response
      * @throws SocketException may sometimes occur
      */
     @POST
     @Path("{bucketName}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public OutputModel createObject(ObjectInputModel inputModel, @PathParam("bucketName") String bucketName) throws SocketException {
-        OutputModel outputModel = new OutputModel();
-        startDynamoServer();
-
-        dynamoServer.forwardToRandNode(MessageTypes.OBJECT_CREATE, bucketName, inputModel, outputModel);
-
-        return outputModel;
+    public void createObject(ObjectInputModel inputModel, @PathParam("bucketName") String bucketName,
+                             @Suspended AsyncResponse asyncResponse) throws SocketException {
+        forward(asyncResponse, (server, outputModel) ->
+                server.forwardToRandNode(MessageTypes.OBJECT_CREATE, bucketName, inputModel, outputModel));
     }
 
     /**
@@ -121,21 +135,18 @@ public class Home {
      *                   the key and new value of the object
      * @param bucketName String (contained in the JSON request body) specifying the name
      *                   of the bucket in which the object is to be created
-     * @return POJO containing the response message. This is serialized to JSON to give REST API response
+     * @param asyncResponse resumed with the POJO containing the response message. This is serialized to JSON to
+     *                      give REST API response
      * @throws SocketException may sometimes occur
      */
     @PUT
     @Path("{bucketName}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public OutputModel updateObject(ObjectInputModel inputModel, @PathParam("bucketName") String bucketName)
-            throws SocketException {
-        OutputModel outputModel = new OutputModel();
-        startDynamoServer();
-
-        dynamoServer.forwardToRandNode(MessageTypes.OBJECT_UPDATE, bucketName, inputModel, outputModel);
-
-        return outputModel;
+    public void updateObject(ObjectInputModel inputModel, @PathParam("bucketName") String bucketName,
+                             @Suspended AsyncResponse asyncResponse) throws SocketException {
+        forward(asyncResponse, (server, outputModel) ->
+                server.forwardToRandNode(MessageTypes.OBJECT_UPDATE, bucketName, inputModel, outputModel));
     }
 
     /**
@@ -143,20 +154,17 @@ public class Home {
      * @param bucketName String (contained in the JSON request body) specifying the name of the bucket in which the
      *                   object is to be created
      * @param key String containing the key of the object to be deleted
-     * @return POJO containing the response message. This is serialized to JSON to give REST API response
+     * @param asyncResponse resumed with the POJO containing the response message. This is serialized to JSON to
+     *                      give REST API response
      * @throws SocketException may sometimes occur
      */
     @DELETE
     @Path("{bucketName}/{objectKey}")
     @Produces(MediaType.APPLICATION_JSON)
-    public OutputModel deleteObject(@PathParam("bucketName") String bucketName,
-                                    @PathParam("objectKey") String key) throws SocketException {
-        OutputModel outputModel = new OutputModel();
-        startDynamoServer();
-
-        dynamoServer.forwardToRandNode(MessageTypes.OBJECT_DELETE, bucketName, key, outputModel);
-
-        return outputModel;
+    public void deleteObject(@PathParam("bucketName") String bucketName, @PathParam("objectKey") String key,
+                             @Suspended AsyncResponse asyncResponse) throws SocketException {
+        forward(asyncResponse, (server, outputModel) ->
+                server.forwardToRandNode(MessageTypes.OBJECT_DELETE, bucketName, key, outputModel));
     }
 
     /**
@@ -164,20 +172,41 @@ public class Home {
      * @param bucketName String (contained in the JSON request body) specifying the name of the bucket in which the
      *                   object is to be created
      * @param objectKey String containing the key of the object to be read
-     * @return POJO containing the response message. This is serialized to JSON to give REST API response
+     * @param asyncResponse resumed with the POJO containing the response message. This is serialized to JSON to
+     *                      give REST API response
      * @throws SocketException may sometimes occur
      */
     @GET
     @Path("{bucketName}/{objectKey}")
     @Produces(MediaType.APPLICATION_JSON)
-    public OutputModel readObject(@PathParam("bucketName") String bucketName,
-                                  @PathParam("objectKey") String objectKey) throws SocketException {
-        OutputModel outputModel = new OutputModel();
-        startDynamoServer();
-
-        dynamoServer.forwardToRandNode(MessageTypes.OBJECT_READ, bucketName, objectKey, outputModel);
+    public void readObject(@PathParam("bucketName") String bucketName, @PathParam("objectKey") String objectKey,
+                           @Suspended AsyncResponse asyncResponse) throws SocketException {
+        forward(asyncResponse, (server, outputModel) ->
+                server.forwardToRandNode(MessageTypes.OBJECT_READ, bucketName, objectKey, outputModel));
+    }
 
-        return outputModel;
+    /**
+     * Method to forward a request to the database, and resume the REST response with its result. The
+     * REST thread is released while the request waits for its coordinator if the server runs the
+     * requests of the gateway on virtual threads
+     * @param asyncResponse the REST response
+     * @param request forwards the request with the server, and fills in the POJO containing the response message
+     * @throws SocketException may sometimes occur
+     */
+    private void forward(AsyncResponse asyncResponse, BiConsumer<DynamoServer, OutputModel> request)
+            throws SocketException {
+        startDynamoServer();
+        DynamoServer server = dynamoServer;
+        server.runGatewayRequest(() -> {
+            OutputModel outputModel = new OutputModel();
+            try {
+                request.accept(server, outputModel);
+            } catch (RuntimeException e) {
+                outputModel.setStatus(false);
+                outputModel.setResponse(e.getMessage());
+            }
+            asyncResponse.resume(outputModel);
+        });
     }
 
     /**
@@ -10,12 +10,18 @@ public class AckPayload implements Serializable {
     private String identifier;
     private long txnID;
     private boolean status;
+    private Object result;
 
     public AckPayload(MessageTypes requestType, String identifier, long txnID, boolean status) {
+        this(requestType, identifier, txnID, status, null);
+    }
+
+    public AckPayload(MessageTypes requestType, String identifier, long txnID, boolean status, Object result) {
         this.requestType = requestType;
         this.identifier = identifier;
         this.txnID = txnID;
         this.status = status;
+        this.result = result;
     }
 
     /**
@@ -36,7 +42,8 @@ public class AckPayload implements Serializable {
     }
 
     /**
-     * Method to return the transaction ID of the request [not currently in use]
+     * Method to return the transaction ID of the request, used to match the acknowledgement
+     * with the request awaiting it
      * @return transaction id of the request
      */
     public long getTxnID() {
@@ -51,4 +58,14 @@ public class AckPayload implements Serializable {
     public boolean isStatus() {
         return status;
     }
+
+    /**
+     * Method to return the result associated with the acknowledgement, if any
+     * (for example, the value read in response to a read request)
+     *
+     * @return the result of the request, or null if there is none
+     */
+    public Object getResult() {
+        return result;
+    }
 }
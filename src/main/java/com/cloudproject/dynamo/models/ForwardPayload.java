@@ -7,12 +7,22 @@ public class ForwardPayload implements Serializable {
     private String bucketName;
     private Object inputModel;
     private long txnID;
+    private String hint;
 
     public ForwardPayload(MessageTypes requestType, String bucketName, Object inputModel, long txnID) {
+        this(requestType, bucketName, inputModel, txnID, null);
+    }
+
+    /**
+     * @param hint address of the replica for which the receiver stands in, null if the receiver
+     *             is itself a replica of the object
+     */
+    public ForwardPayload(MessageTypes requestType, String bucketName, Object inputModel, long txnID, String hint) {
         this.requestType = requestType;
         this.bucketName = bucketName;
         this.inputModel = inputModel;
         this.txnID = txnID;
+        this.hint = hint;
     }
 
     /**
@@ -41,11 +51,20 @@ public class ForwardPayload implements Serializable {
     }
 
     /**
-     * Method to get the transaction ID (currently not in use)
+     * Method to get the transaction ID. Acknowledgements for this request carry the same ID
      * @return transaction ID of the request
      */
     public long getTxnID() {
         return txnID;
     }
 
+    /**
+     * Method to get the replica for which a hinted write is intended. The receiver of a hinted
+     * write keeps it aside and hands it off to that replica once it is reachable again
+     * @return address of the intended replica, or null if the request is not hinted
+     */
+    public String getHint() {
+        return hint;
+    }
+
 }
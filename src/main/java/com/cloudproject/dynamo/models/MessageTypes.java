@@ -6,5 +6,7 @@ package com.cloudproject.dynamo.models;
 public enum MessageTypes {
     PING, NODE_LIST, BUCKET_CREATE, BUCKET_DELETE, OBJECT_CREATE,
     OBJECT_READ, OBJECT_UPDATE, OBJECT_DELETE, ACKNOWLEDGEMENT, FORWARD,
-    FORWARD_ACK, FORWARD_ACK_READ
+    FORWARD_ACK, FORWARD_ACK_READ, OBJECT_REPAIR, OBJECT_HANDOFF,
+    MERKLE_ROOT, MERKLE_HASHES, MERKLE_KEYS, REBALANCE_DONE,
+    NODE_DIGEST, NODE_DIGEST_ACK, NODE_DIGEST_ACK2, NODE_STATS
 }
\ No newline at end of file
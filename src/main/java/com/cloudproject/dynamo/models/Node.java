@@ -10,4 +10,9 @@ public interface Node {
      * @return The key to be used for hashing
      */
     String getAddress();
+
+    /**
+     * @return The number of virtual nodes the node takes on the hash ring, in proportion to its capacity
+     */
+    int getVirtualNodeCount();
 }
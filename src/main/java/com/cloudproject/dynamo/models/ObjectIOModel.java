@@ -4,27 +4,49 @@ import java.io.Serializable;
 
 /**
  * POJO for handling IO payloads
+ * <p>
+ * A deleted object is kept as a delete marker: a version without value, whose clock descends
+ * from the clock of the deleted version, so that replicas which missed the delete are repaired
+ * rather than bringing the object back. Markers are never returned to clients
+ * </p>
  */
 public class ObjectIOModel implements Serializable {
-    private long version;
+    private VectorClock clock;
     private String value;
+    private boolean deleted;
 
-    public ObjectIOModel(long version, String value) {
-        this.version = version;
+    public ObjectIOModel(VectorClock clock, String value) {
+        this.clock = clock;
         this.value = value;
     }
 
+    public ObjectIOModel(VectorClock clock, String value, boolean deleted) {
+        this.clock = clock;
+        this.value = value;
+        this.deleted = deleted;
+    }
+
+    /**
+     * Method to return the delete marker of an object
+     *
+     * @param clock the vector clock of the delete
+     * @return a version without value, marked as deleted
+     */
+    public static ObjectIOModel deleteMarker(VectorClock clock) {
+        return new ObjectIOModel(clock, "", true);
+    }
+
     public ObjectIOModel() {
         // necessary public constructor for serialization
     }
 
     /**
-     * Method to return the version number of the object associated with the server
+     * Method to return the vector clock of this version of the object
      *
-     * @return the version number of requested object registered with the server
+     * @return the vector clock of the object
      */
-    public long getVersion() {
-        return version;
+    public VectorClock getClock() {
+        return clock;
     }
 
     /**
@@ -36,11 +58,19 @@ public class ObjectIOModel implements Serializable {
     }
 
     /**
-     * Method to set the version number (received from object in the server)
-     * @param version the version number associated with the object in server
+     * Method to check whether this version is the delete marker of the object
+     * @return true if the object was deleted
      */
-    public void setVersion(long version) {
-        this.version = version;
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Method to set the vector clock of this version of the object
+     * @param clock the vector clock of the object
+     */
+    public void setClock(VectorClock clock) {
+        this.clock = clock;
     }
 
     /**
@@ -50,4 +80,12 @@ public class ObjectIOModel implements Serializable {
     public void setValue(String value) {
         this.value = value;
     }
+
+    /**
+     * Method to mark this version as the delete marker of the object
+     * @param deleted true if the object was deleted
+     */
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
 }
@@ -9,6 +9,8 @@ public class ObjectInputModel implements Serializable {
 
     private String key;
     private String value;
+    private VectorClock context;
+    private boolean deleted;
 
     /**
      * Method to get the key
@@ -42,4 +44,39 @@ public class ObjectInputModel implements Serializable {
     public void setValue(String value) {
         this.value = value;
     }
+
+    /**
+     * Method to get the context of the write: the vector clock of the version(s) it overwrites,
+     * as returned by a read, or null if the client did not read the object first
+     * @return the context of the write
+     */
+    public VectorClock getContext() {
+        return context;
+    }
+
+    /**
+     * Method to set the context of the write. Set by the client from a previous read, and by the
+     * coordinator to the clock of the new version before forwarding the write to the replicas
+     * @param context the context of the write
+     */
+    public void setContext(VectorClock context) {
+        this.context = context;
+    }
+
+    /**
+     * Method to check whether the write is the delete marker of the record. Only set by the nodes
+     * on the writes they exchange, the requests of clients are never markers
+     * @return true if the record was deleted
+     */
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Method to mark the write as the delete marker of the record
+     * @param deleted true if the record was deleted
+     */
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
 }
@@ -10,6 +10,7 @@ public class OutputModel implements Serializable {
 
     private String response;
     private boolean status;
+    private VectorClock context;
 
     /**
      * Method to get the status of the request
@@ -44,4 +45,21 @@ public class OutputModel implements Serializable {
     public void setResponse(String response) {
         this.response = response;
     }
+
+    /**
+     * Method to get the context of a read: the merge of the vector clocks of all versions returned,
+     * to be passed back with a subsequent update of the object
+     * @return the context, or null if the request was not a read
+     */
+    public VectorClock getContext() {
+        return context;
+    }
+
+    /**
+     * Method to set the context of a read. Used by the receiver of the request
+     * @param context the merged vector clock of all versions returned
+     */
+    public void setContext(VectorClock context) {
+        this.context = context;
+    }
 }
@@ -0,0 +1,252 @@
+package com.cloudproject.dynamo.models;
+
+import com.cloudproject.dynamo.consistenthash.CityHash;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Vector clock of an object: for every node which coordinated a write of the object, the
+ * number of writes it coordinated and the time of the last one. Nodes are identified by a
+ * 64-bit hash of their address rather than by name, and the entries are kept in three parallel
+ * arrays sorted by node id, so that clocks are compact and can be compared in a single pass.
+ * <p>
+ * Clocks are treated as immutable: every operation returns a new clock. The setters only
+ * exist for deserialization.
+ * </p>
+ */
+public class VectorClock implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Causal order of a clock with respect to another one
+     */
+    public enum Order {
+        BEFORE, AFTER, EQUAL, CONCURRENT
+    }
+
+    private long[] nodeIds;
+    private long[] counters;
+    private long[] timestamps;
+
+    public VectorClock() {
+        // necessary public constructor for serialization
+        this(new long[0], new long[0], new long[0]);
+    }
+
+    /**
+     * @param nodeIds    ids of the nodes, in increasing order
+     * @param counters   number of writes coordinated by each node
+     * @param timestamps time (in milliseconds) of the last write coordinated by each node
+     */
+    public VectorClock(long[] nodeIds, long[] counters, long[] timestamps) {
+        this.nodeIds = nodeIds;
+        this.counters = counters;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Method to return the id under which a node appears in vector clocks
+     *
+     * @param address address (ip:port) of the node
+     * @return id of the node
+     */
+    public static long nodeId(String address) {
+        byte[] bytes = address.getBytes(StandardCharsets.UTF_8);
+        return CityHash.cityHash64(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Method to return the clock of a write coordinated by a node, which descends from this clock.
+     * If the clock then holds more than {@code maxEntries} entries, the entry of the node which
+     * coordinated a write least recently is dropped
+     *
+     * @param nodeId     id of the coordinating node
+     * @param timestamp  time (in milliseconds) of the write
+     * @param maxEntries maximum number of entries of the clock
+     * @return the incremented clock
+     */
+    public VectorClock increment(long nodeId, long timestamp, int maxEntries) {
+        int index = Arrays.binarySearch(nodeIds, nodeId);
+        long[] ids;
+        long[] counts;
+        long[] times;
+        if (index >= 0) {
+            ids = nodeIds.clone();
+            counts = counters.clone();
+            times = timestamps.clone();
+            counts[index]++;
+            times[index] = timestamp;
+        } else {
+            int insert = -index - 1;
+            ids = insert(nodeIds, insert, nodeId);
+            counts = insert(counters, insert, 1);
+            times = insert(timestamps, insert, timestamp);
+        }
+        while (ids.length > Math.max(1, maxEntries)) {
+            int oldest = -1;
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != nodeId && (oldest < 0 || times[i] < times[oldest])) {
+                    oldest = i;
+                }
+            }
+            ids = remove(ids, oldest);
+            counts = remove(counts, oldest);
+            times = remove(times, oldest);
+        }
+        return new VectorClock(ids, counts, times);
+    }
+
+    /**
+     * Method to return the smallest clock descending from both this clock and another one
+     *
+     * @param other the other clock
+     * @return the merged clock
+     */
+    public VectorClock merge(VectorClock other) {
+        long[] ids = new long[nodeIds.length + other.nodeIds.length];
+        long[] counts = new long[ids.length];
+        long[] times = new long[ids.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < nodeIds.length || j < other.nodeIds.length) {
+            if (j >= other.nodeIds.length || (i < nodeIds.length && nodeIds[i] < other.nodeIds[j])) {
+                ids[n] = nodeIds[i];
+                counts[n] = counters[i];
+                times[n++] = timestamps[i++];
+            } else if (i >= nodeIds.length || other.nodeIds[j] < nodeIds[i]) {
+                ids[n] = other.nodeIds[j];
+                counts[n] = other.counters[j];
+                times[n++] = other.timestamps[j++];
+            } else {
+                ids[n] = nodeIds[i];
+                counts[n] = Math.max(counters[i], other.counters[j]);
+                times[n++] = Math.max(timestamps[i++], other.timestamps[j++]);
+            }
+        }
+        return new VectorClock(Arrays.copyOf(ids, n), Arrays.copyOf(counts, n), Arrays.copyOf(times, n));
+    }
+
+    /**
+     * Method to compare this clock with another one
+     *
+     * @param other the other clock, null being treated as an empty clock
+     * @return {@link Order#BEFORE} if this clock is an ancestor of the other one, {@link Order#AFTER}
+     * if it descends from it, {@link Order#EQUAL} if both are the same and {@link Order#CONCURRENT} otherwise
+     */
+    public Order compare(VectorClock other) {
+        if (other == null) {
+            other = new VectorClock();
+        }
+        boolean smaller = false;
+        boolean larger = false;
+        int i = 0;
+        int j = 0;
+        while (i < nodeIds.length || j < other.nodeIds.length) {
+            if (j >= other.nodeIds.length || (i < nodeIds.length && nodeIds[i] < other.nodeIds[j])) {
+                larger = true;
+                i++;
+            } else if (i >= nodeIds.length || other.nodeIds[j] < nodeIds[i]) {
+                smaller = true;
+                j++;
+            } else {
+                larger |= counters[i] > other.counters[j];
+                smaller |= counters[i] < other.counters[j];
+                i++;
+                j++;
+            }
+        }
+        if (smaller && larger) {
+            return Order.CONCURRENT;
+        } else if (smaller) {
+            return Order.BEFORE;
+        } else if (larger) {
+            return Order.AFTER;
+        }
+        return Order.EQUAL;
+    }
+
+    private static long[] insert(long[] array, int index, long value) {
+        long[] result = new long[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static long[] remove(long[] array, int index) {
+        long[] result = new long[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    /**
+     * Method to return the ids of the nodes having an entry in the clock
+     *
+     * @return node ids, in increasing order
+     */
+    public long[] getNodeIds() {
+        return nodeIds;
+    }
+
+    /**
+     * Method to set the ids of the nodes having an entry in the clock. Used for deserialization
+     *
+     * @param nodeIds node ids, in increasing order
+     */
+    public void setNodeIds(long[] nodeIds) {
+        this.nodeIds = nodeIds;
+    }
+
+    /**
+     * Method to return the number of writes coordinated by every node of the clock
+     *
+     * @return counters, in the order of the node ids
+     */
+    public long[] getCounters() {
+        return counters;
+    }
+
+    /**
+     * Method to set the number of writes coordinated by every node of the clock. Used for deserialization
+     *
+     * @param counters counters, in the order of the node ids
+     */
+    public void setCounters(long[] counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * Method to return the time of the last write coordinated by every node of the clock
+     *
+     * @return timestamps (in milliseconds), in the order of the node ids
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Method to set the time of the last write coordinated by every node of the clock. Used for deserialization
+     *
+     * @param timestamps timestamps (in milliseconds), in the order of the node ids
+     */
+    public void setTimestamps(long[] timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("[");
+        for (int i = 0; i < nodeIds.length; i++) {
+            if (i > 0) {
+                str.append(", ");
+            }
+            str.append(Long.toHexString(nodeIds[i])).append(':').append(counters[i]);
+        }
+        return str.append(']').toString();
+    }
+}
@@ -0,0 +1,64 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool with a fixed number of threads and a bounded queue. A task submitted while every
+ * thread is busy and the queue is full is rejected with a {@link RejectedExecutionException}
+ * rather than queued without limit, so that the caller can shed the load, such as by answering
+ * a request with an "overloaded" status. The pool keeps count of the tasks it rejected.
+ */
+class BoundedExecutor extends ThreadPoolExecutor {
+
+    private final String name;
+    private final int queueCapacity;
+    private final AtomicLong rejected;
+
+    /**
+     * @param name          name of the pool, used to name its threads
+     * @param threads       number of threads of the pool
+     * @param queueCapacity maximum number of tasks waiting for a thread
+     */
+    BoundedExecutor(String name, int threads, int queueCapacity) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueCapacity)));
+        this.name = name;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.rejected = new AtomicLong();
+        AtomicInteger threadCount = new AtomicInteger();
+        setThreadFactory(task -> new Thread(task, "dynamo-" + name + "-" + threadCount.incrementAndGet()));
+        setRejectedExecutionHandler((task, executor) -> {
+            this.rejected.incrementAndGet();
+            throw new RejectedExecutionException("The " + name + " executor is overloaded");
+        });
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return number of tasks waiting for a thread
+     */
+    int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return number of tasks rejected since the pool was created
+     */
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Method to describe the load of the pool
+     *
+     * @return the active threads, queued tasks and rejected tasks of the pool
+     */
+    String describe() {
+        return name + ": " + getActiveCount() + "/" + getMaximumPoolSize() + " threads active, "
+                + getQueueDepth() + "/" + queueCapacity + " tasks queued, " + getRejectedCount() + " rejected";
+    }
+}
@@ -1,5 +1,6 @@
 package com.cloudproject.dynamo.msgmanager;
 
+import com.cloudproject.dynamo.config.ServerConfig;
 import com.cloudproject.dynamo.models.Node;
 
 import java.io.Serializable;
@@ -7,47 +8,159 @@ import java.io.Serializable;
 public class DynamoNode implements Serializable, Cloneable, Node {
     public String name;
     private String address;
-    private int heartbeat;
-    private transient TimeoutTimer timeoutTimer;
+    /* generation in the high 32 bits, counter in the low 32 bits */
+    private volatile long heartbeat;
+    private transient HashedWheelTimer timer;
+    private transient HashedWheelTimer.Timeout timeout;
+    private transient int ttl;
+    private transient PhiAccrualDetector detector;
+    private transient volatile boolean suspected;
+    /* time (in milliseconds) at which the node was moved to the dead list, 0 once it was removed from the ring */
+    private transient volatile long deadSince;
     private boolean apiNode;
+    /* number of virtual nodes advertised by the node, 0 while it is not known */
+    private int vNodeCount;
 
-    public DynamoNode(String name, String address, DynamoServer server, int heartbeat, int ttl, boolean apiNode) {
+    DynamoNode(String name, String address, HashedWheelTimer timer, long heartbeat, int ttl, boolean apiNode,
+               int vNodeCount) {
         this.name = name;
         this.address = address;
         this.heartbeat = heartbeat;
-        this.timeoutTimer = new TimeoutTimer(ttl, server, this);
+        this.timer = timer;
+        this.ttl = ttl;
+        this.detector = new PhiAccrualDetector();
         this.apiNode = apiNode;
+        this.vNodeCount = vNodeCount;
+    }
+
+    /**
+     * Creates a node received from the network. Such a node has no timer associated with it,
+     * and only serves to identify the remote node
+     */
+    DynamoNode(String name, String address, long heartbeat, boolean apiNode, int vNodeCount) {
+        this.name = name;
+        this.address = address;
+        this.heartbeat = heartbeat;
+        this.apiNode = apiNode;
+        this.vNodeCount = vNodeCount;
     }
 
     public String getAddress() {
         return address;
     }
 
-    public int getHeartbeat() {
+    /**
+     * Method to build a heartbeat out of the generation of a node, which grows every time the node
+     * starts, and of the number of gossip rounds of the node since it started. Comparing two
+     * heartbeats as numbers compares their generations, then their counters
+     *
+     * @param generation the generation, not negative
+     * @param counter    the counter
+     * @return the heartbeat
+     */
+    static long heartbeatOf(int generation, int counter) {
+        return ((long) generation << 32) | (counter & 0xFFFFFFFFL);
+    }
+
+    public long getHeartbeat() {
         return heartbeat;
     }
 
-    public void setHeartbeat(int heartbeat) {
+    public void setHeartbeat(long heartbeat) {
         this.heartbeat = heartbeat;
     }
 
+    /**
+     * @return the generation of the heartbeat, which grows every time the node starts
+     */
+    public int getGeneration() {
+        return (int) (heartbeat >>> 32);
+    }
+
+    /**
+     * @return the counter of the heartbeat, which grows every gossip round of the node
+     */
+    public int getCounter() {
+        return (int) heartbeat;
+    }
+
+    /**
+     * Starts the TTL of the node, after which the node is moved to the dead list unless
+     * {@link #resetTimer()} is called in between
+     */
     public void startTimer() {
-        this.timeoutTimer.start();
+        this.timeout = this.timer.schedule(this, this.ttl);
     }
 
+    /**
+     * Restarts the TTL of the node, when a newer heartbeat of the node was received
+     */
     public void resetTimer() {
-        this.timeoutTimer.reset();
+        this.timeout.reset(this.ttl);
+    }
+
+    /**
+     * @return the failure detector fed with the heartbeats of the node
+     */
+    PhiAccrualDetector getDetector() {
+        return detector;
+    }
+
+    /**
+     * @return true if the node is suspected to be down, in which case requests are not routed to it
+     */
+    boolean isSuspected() {
+        return suspected;
+    }
+
+    void setSuspected(boolean suspected) {
+        this.suspected = suspected;
+    }
+
+    /**
+     * @return time (in milliseconds) at which the node was moved to the dead list, 0 if it is not
+     * waiting to be removed from the ring
+     */
+    long getDeadSince() {
+        return deadSince;
+    }
+
+    void setDeadSince(long deadSince) {
+        this.deadSince = deadSince;
     }
 
     @Override
     public String toString() {
-        return "DynamoNode <address=" + address + ", heartbeat=" + heartbeat + ">";
+        return "DynamoNode <address=" + address + ", heartbeat=" + getGeneration() + "." + getCounter() + ">";
     }
 
     public boolean isApiNode() {
         return apiNode;
     }
 
+    /**
+     * Method to return the number of virtual nodes of the node on the hash ring. Until the node
+     * has advertised it, such as for a seed node which was not heard from yet, the default
+     * number of {@link ServerConfig#getVirtualNodes()} is assumed
+     *
+     * @return number of virtual nodes of the node
+     */
+    @Override
+    public int getVirtualNodeCount() {
+        return vNodeCount > 0 ? vNodeCount : ServerConfig.getVirtualNodes();
+    }
+
+    /**
+     * @return number of virtual nodes advertised by the node, 0 if it is not known yet
+     */
+    int getAdvertisedVirtualNodeCount() {
+        return vNodeCount;
+    }
+
+    void setVirtualNodeCount(int vNodeCount) {
+        this.vNodeCount = vNodeCount;
+    }
+
     //    @Override
 //    protected Object clone() {
 //        return new DynamoNode(name, address, heartbeat, );
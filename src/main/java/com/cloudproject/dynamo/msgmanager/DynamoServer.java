@@ -1,27 +1,47 @@
 package com.cloudproject.dynamo.msgmanager;
 
-import com.cloudproject.dynamo.config.AppConfig;
+import com.cloudproject.dynamo.config.ServerConfig;
 import com.cloudproject.dynamo.consistenthash.CityHash;
 import com.cloudproject.dynamo.consistenthash.HashFunction;
 import com.cloudproject.dynamo.consistenthash.HashingManager;
+import com.cloudproject.dynamo.consistenthash.Murmur3Hash;
+import com.cloudproject.dynamo.consistenthash.XxHash64;
 import com.cloudproject.dynamo.models.*;
-import javafx.util.Pair;
+import com.cloudproject.dynamo.storage.BitcaskStorageEngine;
+import com.cloudproject.dynamo.storage.CachingStorageEngine;
+import com.cloudproject.dynamo.storage.DurableStorageEngine;
+import com.cloudproject.dynamo.storage.FileStorageEngine;
+import com.cloudproject.dynamo.storage.HintStore;
+import com.cloudproject.dynamo.storage.LsmStorageEngine;
+import com.cloudproject.dynamo.storage.StorageEngine;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.Nullable;
 
-import javax.management.Notification;
-import javax.management.NotificationListener;
 import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 /**
  * Class DynamoServer. Handles communication with other nodes:
@@ -35,22 +55,78 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *       actions (for example - writing to disk, updating node lists or forwarding messages to other nodes)
  */
 
-public class DynamoServer implements NotificationListener {
+public class DynamoServer {
 
-    private final ArrayList<DynamoNode> nodeList;
-    private final ArrayList<DynamoNode> deadList;
+    private final MembershipTable membership;
 
     private static DynamoServer selfServer;
 
-    private final ExecutorService executorService;
+    /* precision (in milliseconds) of the TTL of the nodes, and number of ticks of the timer wheel */
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    /* maximum number of node list entries sent in one gossip message, the rest follow in later rounds */
+    private static final int MAX_GOSSIP_ENTRIES = 128;
+    /* number of nodes a request from the API gateway is forwarded to before giving up */
+    private static final int FORWARD_ATTEMPTS = 2;
+    /* time the API gateway waits for a forwarded request, longer than the longest wait of a
+     * coordinator (20 seconds for the replicas of a bucket operation) */
+    private static final int FORWARD_TIMEOUT_SECONDS = 30;
+    /* number of hints handed off to a replica before waiting for their acknowledgements */
+    private static final int HANDOFF_BATCH = 64;
+    /* number of objects read at a time when scanning a bucket */
+    private static final int SCAN_PAGE = 1024;
+    /* time after which reads of a range being streamed to this node stop going through to its source */
+    private static final int TRANSFER_TIMEOUT_MINUTES = 60;
+    /* time after which a page of a rebalance which could not be streamed is tried again */
+    private static final int REBALANCE_RETRY_SECONDS = 5;
+    /* interval between two purges of the delete markers older than the grace period */
+    private static final long PURGE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /* identifier of the acknowledgement sent in place of a request which was rejected because
+     * the thread pool which should have run it was full */
+    private static final String OVERLOADED = "overloaded";
+    /* number of periodic tasks (timer, gossiper, anti-entropy, rebalancer) holding a maintenance
+     * thread for as long as the server runs */
+    private static final int MAINTENANCE_LOOPS = 4;
+
+    /* receive loops of the gossip and data transports */
+    private final BoundedExecutor network;
+    /* requests forwarded to this node, which wait for the quorum of their replicas: a bounded
+     * pool, or one virtual thread per request if enabled */
+    private final ExecutorService coordination;
+    /* API gateway requests waiting for their coordinator: one virtual thread per request if
+     * enabled, null to wait on the thread of the REST request */
+    @Nullable
+    private final ExecutorService gateway;
+    /* replica requests, performed against the storage of this node */
+    private final BoundedExecutor disk;
+    /* periodic tasks, hinted handoffs, read repairs and Merkle tree comparisons */
+    private final BoundedExecutor maintenance;
     private final DatagramSocket server;
-    private final DatagramSocket ioServer;
+    private final UdpTransport transport;
+    private final TcpTransport tcpTransport;
+    private final StorageEngine storage;
+    private final HintStore hintStore;
+    private final Set<String> handoffs;
+    /* bucket -> address of a node -> tree of the objects of the bucket replicated by both nodes */
+    private final ConcurrentHashMap<String, Map<String, MerkleTree>> merkleTrees;
+    private final Set<String> syncs;
+    /* plans of the key ranges to be streamed to their new replicas, run one at a time */
+    private final LinkedBlockingQueue<RebalancePlan> rebalances;
+    /* key range being streamed to this node -> time after which its reads stop going through to the source */
+    private final ConcurrentHashMap<RebalancePlan.Range, Long> transfers;
+    private final File rebalanceDirectory;
+    private final TokenBucket rebalanceThrottle;
+    private final AtomicLong planCounter;
+    private final ConcurrentHashMap<Long, PendingRequest> pendingRequests;
+    private final AtomicLong txnCounter;
     private final DynamoNode node;
     private final Random random;
+    private final HashFunction hashFunction;
+    private final HashedWheelTimer timer;
     private int gossipInt;
     private int ttl;
-    private HashingManager<DynamoNode> hashingManager;
-    private int ackPort;
+    /* built on first use; routing reads it without locking */
+    private volatile HashingManager<DynamoNode> hashingManager;
     private int ioPort;
 
     /**
@@ -72,80 +148,244 @@ public class DynamoServer implements NotificationListener {
                 if (!DynamoServer.this.server.isClosed()) {
                     DynamoServer.this.server.close();
                 }
-                if (!DynamoServer.this.ioServer.isClosed()) {
-                    DynamoServer.this.ioServer.close();
+                try {
+                    DynamoServer.this.transport.close();
+                    DynamoServer.this.tcpTransport.close();
+                    DynamoServer.this.storage.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 System.out.println("Goodbye my friends...");
             }
         }));
 
-        this.ackPort = 9720;
         this.ioPort = 9700;
-        this.nodeList = new ArrayList<>();
-        this.deadList = new ArrayList<>();
-        this.executorService = Executors.newCachedThreadPool();
+        this.membership = new MembershipTable();
+        this.pendingRequests = new ConcurrentHashMap<>();
+        this.handoffs = ConcurrentHashMap.newKeySet();
+        this.merkleTrees = new ConcurrentHashMap<>();
+        this.syncs = ConcurrentHashMap.newKeySet();
+        this.rebalances = new LinkedBlockingQueue<>();
+        this.transfers = new ConcurrentHashMap<>();
+        this.rebalanceDirectory = new File(ServerConfig.getStorageDirectory(), ".rebalance");
+        this.rebalanceThrottle = new TokenBucket(ServerConfig.getRebalanceBandwidth());
+        this.planCounter = new AtomicLong(System.currentTimeMillis());
+        this.txnCounter = new AtomicLong(0);
+        this.hashFunction = createHashFunction();
+        this.timer = new HashedWheelTimer(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, this::onNodeTimeout);
+        int queueSize = ServerConfig.getThreadQueueSize();
+        this.network = new BoundedExecutor("network", 2, 1);
+        ExecutorService virtualThreads = createVirtualThreadExecutor();
+        this.coordination = virtualThreads != null ? virtualThreads
+                : new BoundedExecutor("coordination", ServerConfig.getCoordinationThreads(), queueSize);
+        this.gateway = apiNode && virtualThreads != null ? createVirtualThreadExecutor() : null;
+        this.disk = new BoundedExecutor("disk", ServerConfig.getDiskThreads(), queueSize);
+        this.maintenance = new BoundedExecutor("maintenance",
+                MAINTENANCE_LOOPS + ServerConfig.getMaintenanceThreads(), queueSize);
         this.gossipInt = gossipInt;
         this.ttl = ttl;
         if (addr_list != null) {
             for (String addr : addr_list) {
-                this.nodeList.add(new DynamoNode(null, addr, this, 0, ttl, false));
+                this.membership.add(new DynamoNode(null, addr, this.timer, 0, ttl, false, 0), null);
             }
         }
 
-        this.node = new DynamoNode(name, address, this, 0, ttl, apiNode);
+        this.node = new DynamoNode(name, address, this.timer, 0, ttl, apiNode,
+                apiNode ? 0 : ServerConfig.getVirtualNodes());
         int port = Integer.parseInt(address.split(":")[1]);
 
+        try {
+            this.storage = openStorage();
+            this.hintStore = new HintStore(new File(ServerConfig.getStorageDirectory(), ".hints"));
+            if (!this.rebalanceDirectory.isDirectory() && !this.rebalanceDirectory.mkdirs()) {
+                throw new IOException("Could not create rebalance directory " + this.rebalanceDirectory);
+            }
+        } catch (IOException e) {
+            throw new SocketException("Could not open storage: " + e.getMessage());
+        }
+
         /* init Random */
         this.random = new Random();
         /* Listen at port number port */
         this.server = new DatagramSocket(port);
-        this.ioServer = new DatagramSocket(this.ioPort);
+        try {
+            this.transport = new UdpTransport();
+            /* requests and acknowledgements of all in-flight operations share one TCP listener */
+            this.tcpTransport = new TcpTransport(this.ioPort, this::onDataMessage);
+        } catch (IOException e) {
+            throw new SocketException("Could not open transport: " + e.getMessage());
+        }
         System.out.println("[Dynamo Server] Listening at port: " + port);
     }
 
-    @Override
-    public void handleNotification(Notification notification, Object o) {
-        DynamoNode deadNode = (DynamoNode)notification.getUserData();
-        System.out.println(">> LEAVE: " + deadNode.name + " has left the network");
-        synchronized (DynamoServer.this.nodeList) {
-            DynamoServer.this.nodeList.remove(deadNode);
+    /**
+     * Method to open the storage engine selected by {@link ServerConfig#getStorageEngine()},
+     * behind the write-ahead log and the read cache if they are enabled
+     *
+     * @return the local storage of this node
+     * @throws IOException if the write-ahead log could not be opened or replayed
+     */
+    private static StorageEngine openStorage() throws IOException {
+        File root = new File(ServerConfig.getStorageDirectory());
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create storage directory " + root);
+        }
+        /* with the write-ahead log making writes durable, the engine only needs to sync periodically */
+        int syncWrites = ServerConfig.getWalEnabled() ? 0 : ServerConfig.getSyncWrites();
+        StorageEngine engine;
+        switch (ServerConfig.getStorageEngine()) {
+            case "file":
+                engine = new FileStorageEngine(root);
+                break;
+            case "bitcask":
+                engine = new BitcaskStorageEngine(root, ServerConfig.getSegmentSize(), syncWrites,
+                        ServerConfig.getSyncInterval(), ServerConfig.getCompactionInterval(),
+                        ServerConfig.getCompactionThreshold());
+                break;
+            case "lsm":
+                engine = new LsmStorageEngine(root, ServerConfig.getMemtableSize(), ServerConfig.getTableSize(),
+                        ServerConfig.getLevel0Tables(), syncWrites, ServerConfig.getSyncInterval());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + ServerConfig.getStorageEngine());
         }
+        if (ServerConfig.getWalEnabled()) {
+            engine = new DurableStorageEngine(engine, new File(root, "dynamo.wal"), ServerConfig.getWalCheckpointSize());
+        }
+        if (ServerConfig.getCacheSize() > 0) {
+            engine = new CachingStorageEngine(engine, ServerConfig.getCacheSize());
+        }
+        return engine;
+    }
+
+    /**
+     * Method to create an executor running every task on its own virtual thread, if
+     * {@link ServerConfig#isVirtualThreads()} is set and the JVM supports virtual threads (Java 21).
+     * Requests waiting for their quorum or their coordinator then do not hold platform threads
+     *
+     * @return the executor, or null if virtual threads are not enabled or not supported
+     */
+    @Nullable
+    private static ExecutorService createVirtualThreadExecutor() {
+        if (!ServerConfig.isVirtualThreads()) {
+            return null;
+        }
+        try {
+            /* looked up by reflection, so that the server still builds for Java 13 */
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("[WARN] Virtual threads are not supported by Java "
+                    + System.getProperty("java.version") + ", using platform threads");
+            return null;
+        }
+    }
 
-        synchronized (DynamoServer.this.deadList) {
-            DynamoServer.this.deadList.add(deadNode);
+    /**
+     * Method to create the hash function selected by {@link ServerConfig#getHashFunction()},
+     * which places the nodes and the keys on the ring
+     *
+     * @return the hash function of the ring
+     */
+    private static HashFunction createHashFunction() {
+        switch (ServerConfig.getHashFunction()) {
+            case "city":
+                return new CityHash();
+            case "murmur3":
+                return new Murmur3Hash();
+            case "xxhash":
+                return new XxHash64();
+            default:
+                throw new IllegalArgumentException("Unknown hash function: " + ServerConfig.getHashFunction());
         }
+    }
 
-        if (hashingManager != null) {
-            synchronized (hashingManager.getLock()) {
-                hashingManager.removeNode(deadNode);
-            }
+    /**
+     * Method called by the timer when the TTL of a node expired, to move the node to the dead list
+     *
+     * @param deadNode the node which was not heard from within its TTL
+     */
+    private void onNodeTimeout(DynamoNode deadNode) {
+        /* the node is not evicted if its heartbeats have been as late before, per its failure detector */
+        PhiAccrualDetector detector = deadNode.getDetector();
+        if (detector.hasHistory()
+                && detector.phi(System.currentTimeMillis()) <= ServerConfig.getPhiThreshold()) {
+            deadNode.startTimer();
+            return;
+        }
+        if (!this.membership.markDead(deadNode)) {
+            return;
+        }
+        System.out.println(">> LEAVE: " + deadNode.name + " has left the network");
+
+        /* the node keeps its place on the ring: until it is back, the writes it should receive
+         * are handed to the next healthy nodes of the ring as hints (sloppy quorum). If it is
+         * still down after the removal delay, the gossiper removes it from the ring */
+        if (ServerConfig.getRingRemovalDelay() > 0 && !deadNode.isApiNode()) {
+            deadNode.setDeadSince(System.currentTimeMillis());
         }
 
         this.printNodeList();
     }
 
+    /**
+     * Method to remove from the ring the dead nodes which have been down for longer than
+     * {@link ServerConfig#getRingRemovalDelay()}, so that their ranges are copied to the next
+     * nodes of the ring
+     */
+    private void removeDeadNodes() {
+        long now = System.currentTimeMillis();
+        for (DynamoNode deadNode : this.membership.getDeadNodes()) {
+            long deadSince = deadNode.getDeadSince();
+            if (deadSince == 0 || now - deadSince < ServerConfig.getRingRemovalDelay()) {
+                continue;
+            }
+            deadNode.setDeadSince(0);
+            if (findLiveNode(deadNode.getAddress()) == null) {
+                System.out.println(">> REBALANCE: removing " + deadNode.name + " (" + deadNode.getAddress()
+                        + ") from the ring");
+                updateRing(deadNode, false);
+            }
+        }
+    }
+
     private void start() {
 
-        for (DynamoNode localNode : this.nodeList) {
+        for (DynamoNode localNode : this.membership.getLiveNodes()) {
             if (localNode != this.node) {
                 localNode.startTimer();
             }
         }
-        /* read logs, update heartbeat from previous session */
+        /* read logs, start a generation newer than the previous session, so that the heartbeats
+         * of this session are newer than any heartbeat of it the other nodes still hold */
         File file = new File(this.node.name + ".log");
-        if (file.exists()) {
-            try {
-                int log_hb = Integer.parseInt(FileUtils.readFileToString(file, Charset.defaultCharset()));
-                this.node.setHeartbeat(log_hb);
-            } catch (IOException e) {
-                e.printStackTrace();
+        int generation = 1;
+        try {
+            if (file.exists()) {
+                generation = Integer.parseInt(FileUtils.readFileToString(file, Charset.defaultCharset()).trim()) + 1;
             }
+            FileUtils.write(file, Integer.toString(generation), Charset.defaultCharset(), false);
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("[WARN] Could not persist generation " + generation + ": " + e.getMessage());
         }
+        this.node.setHeartbeat(DynamoNode.heartbeatOf(generation, 0));
 
         //exec.execute(new PingSender());
-        this.executorService.execute(new GossipReceiver());
-        this.executorService.execute(new Gossiper());
-        this.executorService.execute(new ioReceiver());
+        this.maintenance.execute(this.timer);
+        this.network.execute(new GossipReceiver());
+        this.maintenance.execute(new Gossiper());
+        this.network.execute(this.tcpTransport);
+        if (!this.node.isApiNode() && ServerConfig.getAntiEntropyInterval() > 0) {
+            this.maintenance.execute(new AntiEntropy());
+        }
+        if (!this.node.isApiNode()) {
+            /* transfers interrupted by the previous shutdown resume where they stopped */
+            try {
+                this.rebalances.addAll(RebalancePlan.load(this.rebalanceDirectory));
+            } catch (IOException e) {
+                System.out.println("[WARN] Could not read rebalance plans: " + e.getMessage());
+            }
+            this.maintenance.execute(new Rebalancer());
+        }
         this.printNodeList();
 
 //        while (true) {
@@ -160,8 +400,9 @@ public class DynamoServer implements NotificationListener {
         System.out.println("+------------------+");
         System.out.println("| Active node list |");
         System.out.println("+------------------+");
-        for (DynamoNode localNode : this.nodeList) {
-            System.out.println("|" + localNode.name + " ip: " + localNode.getAddress() + " HeartBeat: " + localNode.getHeartbeat());
+        for (DynamoNode localNode : this.membership.getLiveNodes()) {
+            System.out.println("|" + localNode.name + " ip: " + localNode.getAddress() + " HeartBeat: " + localNode.getGeneration() + "." + localNode.getCounter()
+                    + (localNode.isSuspected() ? " (suspected)" : ""));
         }
         System.out.println("+------------------+");
     }
@@ -174,37 +415,18 @@ public class DynamoServer implements NotificationListener {
      */
 
     private void sendMessage(DynamoNode node, DynamoMessage msg) throws IOException {
-        //vclock
-//        JVec jv=new JVec(DynamoServer.this.node);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(msg);
-        byte[] buf = baos.toByteArray();
-//        byte[] res=jv.prepareSend(buf);
-        String address = node.getAddress();
-        String host = address.split(":")[0];
-        int port;
-        if (msg.type == MessageTypes.NODE_LIST) {
-            port = Integer.parseInt(address.split(":")[1]);
-        } else if (msg.type == MessageTypes.ACKNOWLEDGEMENT
-                | msg.type == MessageTypes.FORWARD_ACK
-                | msg.type == MessageTypes.FORWARD_ACK_READ) {
-            port = this.ackPort;
-        } else {
-            port = this.ioPort;
-        }
+        MessageCodec codec = MessageCodec.get();
+        int length = codec.encode(msg);
 
-        InetAddress dest;
-        dest = InetAddress.getByName(host);
+        System.out.println("[DynamoServer] Sending " + msg.type.name() + " (" + length + ") to " + node.getAddress());
 
-        System.out.println("[DynamoServer] Sending " + msg.type.name() + " (" + buf.length + ") to " + dest.getHostAddress());
-//        System.out.println("[DynamoServer] Sending " + msg.type.name() + " (" + res.length + ") to " + dest.getHostAddress());
-
-        DatagramSocket socket = new DatagramSocket();
-        DatagramPacket datagramPacket = new DatagramPacket(buf, buf.length, dest, port);
-//        DatagramPacket datagramPacket = new DatagramPacket(res, res.length, dest, port);
-        socket.send(datagramPacket);
-        socket.close();
+        if (msg.type == MessageTypes.NODE_LIST || msg.type == MessageTypes.PING
+                || msg.type == MessageTypes.MERKLE_ROOT || msg.type == MessageTypes.NODE_DIGEST
+                || msg.type == MessageTypes.NODE_DIGEST_ACK || msg.type == MessageTypes.NODE_DIGEST_ACK2) {
+            this.transport.send(node, codec.array(), length);
+        } else {
+            this.tcpTransport.send(node, codec.array(), length);
+        }
     }
 
     /**
@@ -212,11 +434,11 @@ public class DynamoServer implements NotificationListener {
      *
      * @param excludeAPIgateway True if the API node is to be excluded from the list of nodes that can be
      *                          randomly selected. False, if it should be included.
-     * @return instance of a random node from nodeList
+     * @return instance of a random live node
      */
     private DynamoNode getRandomNode(boolean excludeAPIgateway) {
 
-        ArrayList<DynamoNode> randList = new ArrayList<>(nodeList);
+        ArrayList<DynamoNode> randList = new ArrayList<>(this.membership.getLiveNodes());
 
         if (excludeAPIgateway) {
             for (DynamoNode node : randList) {
@@ -238,24 +460,97 @@ public class DynamoServer implements NotificationListener {
     }
 
     /**
-     * Sends current node list to a random member in the node list.
+     * Sends the digest of the node list (the heartbeat of every node) to a random member in the
+     * node list, which answers with the entries this node is missing and asks for the ones it is
+     * missing itself. The node list itself is never sent whole.
      *
      * @throws IOException
      */
 
-    private void sendNodeList() throws IOException {
+    private void sendDigest() throws IOException {
+        /* only the counter of the heartbeat grows, the generation was persisted at startup */
         this.node.setHeartbeat(this.node.getHeartbeat() + 1);
-        File file = new File(this.node.name + ".log");
-        FileUtils.write(file, Integer.toString(this.node.getHeartbeat()), Charset.defaultCharset(), false);
-        //ArrayList<DynamoNode> sendList = cloneArrayList(this.nodeList);
-        synchronized (this.nodeList) {
-            DynamoNode dstNode = this.getRandomNode(false);
-            if (dstNode != null) {
-                DynamoMessage listMsg =
-                        new DynamoMessage(this.node, MessageTypes.NODE_LIST, this.nodeList);
-                this.sendMessage(dstNode, listMsg);
+        DynamoNode dstNode = this.getRandomNode(false);
+        LinkedHashMap<String, Long> versions = new LinkedHashMap<>();
+        for (DynamoNode localNode : this.membership.getLiveNodes()) {
+            versions.put(localNode.getAddress(), localNode.getHeartbeat());
+        }
+        if (dstNode != null) {
+            this.sendMessage(dstNode, new DynamoMessage(this.node, MessageTypes.NODE_DIGEST,
+                    new GossipDigest(versions, new ArrayList<>())));
+        }
+    }
+
+    /**
+     * Answers the digest of a node with the entries of the node list which are newer than the
+     * digest or missing from it, and with the heartbeat this node knows of the nodes for which the
+     * digest is newer, so that the node sends them back
+     *
+     * @param srcNode the node which sent the digest
+     * @param digest  heartbeat of every node known to srcNode
+     */
+    private void answerDigest(DynamoNode srcNode, GossipDigest digest) {
+        /* the sender is alive, whatever its digest holds */
+        this.mergeNodeLists(srcNode, new ArrayList<DynamoNode>());
+        ArrayList<DynamoNode> deltas = new ArrayList<>();
+        LinkedHashMap<String, Long> requests = new LinkedHashMap<>();
+        for (DynamoNode localNode : this.membership.getLiveNodes()) {
+            Long version = digest.getVersions().get(localNode.getAddress());
+            if (!localNode.equals(srcNode) && (version == null || version < localNode.getHeartbeat())
+                    && deltas.size() < MAX_GOSSIP_ENTRIES) {
+                deltas.add(localNode);
+            }
+        }
+        for (Map.Entry<String, Long> version : digest.getVersions().entrySet()) {
+            DynamoNode localNode = this.membership.getLive(version.getKey());
+            if (localNode == null) {
+                localNode = this.membership.getDead(version.getKey());
+            }
+            long heartbeat = localNode == null ? -1 : localNode.getHeartbeat();
+            if (!version.getKey().equals(this.node.getAddress()) && heartbeat < version.getValue()) {
+                requests.put(version.getKey(), heartbeat);
+            }
+        }
+        if (!deltas.isEmpty() || !requests.isEmpty()) {
+            sendGossip(srcNode, new DynamoMessage(this.node, MessageTypes.NODE_DIGEST_ACK,
+                    new GossipDigest(requests, deltas)));
+        }
+    }
+
+    /**
+     * Merges the entries received in answer to a digest, and sends the entries the peer asked for
+     *
+     * @param srcNode the node which answered the digest
+     * @param ack     entries newer than the digest, and heartbeats of the entries the peer wants
+     */
+    private void completeDigest(DynamoNode srcNode, GossipDigest ack) {
+        this.mergeNodeLists(srcNode, ack.getNodes());
+        ArrayList<DynamoNode> entries = new ArrayList<>();
+        for (Map.Entry<String, Long> version : ack.getVersions().entrySet()) {
+            DynamoNode localNode = this.membership.getLive(version.getKey());
+            if (localNode != null && version.getValue() < localNode.getHeartbeat() && entries.size() < MAX_GOSSIP_ENTRIES) {
+                entries.add(localNode);
             }
         }
+        if (!entries.isEmpty()) {
+            sendGossip(srcNode, new DynamoMessage(this.node, MessageTypes.NODE_DIGEST_ACK2,
+                    new GossipDigest(new LinkedHashMap<>(), entries)));
+        }
+    }
+
+    /**
+     * Sends a gossip message from the gossip receiver, which must keep running if it cannot be sent
+     *
+     * @param dstNode the node to send the message to
+     * @param msg     the message
+     */
+    private void sendGossip(DynamoNode dstNode, DynamoMessage msg) {
+        try {
+            this.sendMessage(dstNode, msg);
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not send " + msg.type.name() + " to " + dstNode.getAddress()
+                    + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -270,72 +565,59 @@ public class DynamoServer implements NotificationListener {
             ArrayList<DynamoNode> remoteNodesList = (ArrayList<DynamoNode>) payload;
             /* add srcNode to list too, since it has sent, so should be alive ! */
             remoteNodesList.add(srcNode);
-            synchronized (DynamoServer.this.deadList) {
-                synchronized (DynamoServer.this.nodeList) {
-                    /* remove self from remoteNode list */
-//                    for (int i = 0; i < remoteNodesList.size(); i++) {
-//                        if(remoteNodesList.get(i).equals(DynamoServer.this.node)) {
-//                            remoteNodesList.remove(i);
-//                            i--;
-//                        }
-//                    }
-
-                    remoteNodesList.remove(DynamoServer.this.node);
-                     /* Do the same with rest of the nodes */
-                    for (DynamoNode remoteNode : remoteNodesList) {
-                        if (DynamoServer.this.nodeList.contains(remoteNode)) {
-                                /* Just update the heartbeat to the latest one
-                                 * and reset timer */
-                                DynamoNode localNode = DynamoServer.this.nodeList.get(DynamoServer.this.nodeList.indexOf((remoteNode)));
-                            if (localNode.name == null) localNode.name = remoteNode.name;
-                                if (remoteNode.getHeartbeat() > localNode.getHeartbeat()) {
-                                    localNode.setHeartbeat(remoteNode.getHeartbeat());
-                                    localNode.resetTimer();
-                                }
-                        } else {
-                                /* local list does not contain remoteNode */
-
-                            if (DynamoServer.this.deadList.contains(remoteNode)) {
-                                /* The remoteNode previously was there in the local list
-                                 * but timed out. So revive it!!
-                                 * Updated heartbeat to the one received latest, and start timer*/
-                                DynamoNode localDeadNode =
-                                        DynamoServer.this.deadList.get(DynamoServer.this.deadList.indexOf(remoteNode));
-                                if (remoteNode.getHeartbeat() > localDeadNode.getHeartbeat()) {
-                                    DynamoServer.this.deadList.remove(localDeadNode);
-                                    DynamoNode newNode =
-                                            new DynamoNode(remoteNode.name, remoteNode.getAddress(),
-                                                    this, remoteNode.getHeartbeat(),
-                                                    this.ttl, remoteNode.isApiNode());
-                                    DynamoServer.this.nodeList.add(newNode);
-
-                                    if (hashingManager != null && !newNode.isApiNode()) {
-                                        hashingManager.addNode(newNode);
-                                    }
-
-                                    newNode.startTimer();
-                                    System.out.println(">> JOIN: " + newNode.name + " has joined the network");
-                                    this.printNodeList();
-                                }
-
-                            } else {
-                                /* Probably a new member, add it to the list, use remote heartbeat,
-                                 * start timer */
-                                DynamoNode newNode =
-                                        new DynamoNode(remoteNode.name, remoteNode.getAddress(),
-                                                this, remoteNode.getHeartbeat(), this.ttl, remoteNode.isApiNode());
-                                DynamoServer.this.nodeList.add(newNode);
-
-                                if (hashingManager != null && !newNode.isApiNode()) {
-                                    hashingManager.addNode(newNode);
-                                }
-
-                                newNode.startTimer();
-                                System.out.println(">> JOIN: " + newNode.name + " has joined the network");
-                                this.printNodeList();
-                            }
+            /* every entry is merged on its own, without locking the membership table */
+            for (DynamoNode remoteNode : remoteNodesList) {
+                if (remoteNode.equals(DynamoServer.this.node)) {
+                    continue;
+                }
+                DynamoNode localNode = DynamoServer.this.membership.getLive(remoteNode.getAddress());
+                if (localNode != null) {
+                    /* Just update the heartbeat to the latest one
+                     * and reset timer */
+                    if (localNode.name == null) localNode.name = remoteNode.name;
+                    int vNodeCount = remoteNode.getAdvertisedVirtualNodeCount();
+                    if (vNodeCount > 0 && vNodeCount != localNode.getAdvertisedVirtualNodeCount()
+                            && (remoteNode.getHeartbeat() > localNode.getHeartbeat()
+                            || localNode.getAdvertisedVirtualNodeCount() == 0)) {
+                        /* the node restarted with another number of virtual nodes, or was not heard from yet */
+                        localNode.setVirtualNodeCount(vNodeCount);
+                        this.updateRing(localNode, true);
+                    }
+                    if (remoteNode.getHeartbeat() > localNode.getHeartbeat()) {
+                        localNode.setHeartbeat(remoteNode.getHeartbeat());
+                        localNode.resetTimer();
+                        localNode.getDetector().heartbeat(System.currentTimeMillis());
+                        if (localNode.isSuspected()) {
+                            localNode.setSuspected(false);
+                            System.out.println(">> SUSPECT: " + localNode.name + " ("
+                                    + localNode.getAddress() + ") is reachable again");
                         }
+                        /* the node is alive, it may have missed writes while it was unreachable */
+                        this.handOffHints(localNode);
                     }
+                } else {
+                    /* If the remoteNode previously was there in the local list but timed out,
+                     * revive it if its heartbeat is newer. Otherwise it is probably a new member.
+                     * Either way, use remote heartbeat and start timer */
+                    DynamoNode localDeadNode = DynamoServer.this.membership.getDead(remoteNode.getAddress());
+                    if (localDeadNode != null && remoteNode.getHeartbeat() <= localDeadNode.getHeartbeat()) {
+                        continue;
+                    }
+                    DynamoNode newNode =
+                            new DynamoNode(remoteNode.name, remoteNode.getAddress(),
+                                    this.timer, remoteNode.getHeartbeat(), this.ttl, remoteNode.isApiNode(),
+                                    remoteNode.getAdvertisedVirtualNodeCount());
+                    if (!DynamoServer.this.membership.add(newNode, localDeadNode)) {
+                        /* merged concurrently by another thread */
+                        continue;
+                    }
+                    this.updateRing(newNode, true);
+
+                    newNode.startTimer();
+                    newNode.getDetector().heartbeat(System.currentTimeMillis());
+                    System.out.println(">> JOIN: " + newNode.name + " has joined the network");
+                    this.printNodeList();
+                    this.handOffHints(newNode);
                 }
             }
         } else {
@@ -344,6 +626,110 @@ public class DynamoServer implements NotificationListener {
 
     }
 
+    /**
+     * Method to add a node to the ring, or to change its number of virtual nodes, or to remove it,
+     * and to plan the transfer of the key ranges whose replicas changed. Nothing is done if the
+     * ring is not used yet, since it is built from the node list on first use
+     *
+     * @param ringNode the node
+     * @param add      true to add the node or update its virtual nodes, false to remove it
+     */
+    private void updateRing(DynamoNode ringNode, boolean add) {
+        if (hashingManager == null || ringNode.isApiNode()) {
+            return;
+        }
+        HashingManager<DynamoNode> before;
+        HashingManager<DynamoNode> after;
+        synchronized (hashingManager.getLock()) {
+            boolean unchanged = add ? hashingManager.getVirtualNodeCount(ringNode) == ringNode.getVirtualNodeCount()
+                    : !hashingManager.containsNode(ringNode);
+            if (unchanged) {
+                return;
+            }
+            before = hashingManager.snapshot();
+            if (add) {
+                hashingManager.addNode(ringNode);
+            } else {
+                hashingManager.removeNode(ringNode);
+            }
+            after = hashingManager.snapshot();
+        }
+        /* the replicas of some keys changed, the trees are rebuilt on next use */
+        this.merkleTrees.clear();
+        if (!this.node.isApiNode()) {
+            planRebalance(before, after);
+        }
+        printRingBalance();
+    }
+
+    /**
+     * Method to print the share of the keys owned by every node of the ring, as first replica and
+     * as any of the replicas, along with the spread of the shares
+     */
+    private void printRingBalance() {
+        HashingManager<DynamoNode> ring = this.hashingManager;
+        if (ring == null) {
+            return;
+        }
+        LinkedHashMap<DynamoNode, Double> primary = ring.getOwnership(1);
+        LinkedHashMap<DynamoNode, Double> replicas = ring.getOwnership(Quorum.getReplicas());
+        System.out.println("+--------------+");
+        System.out.println("| Ring balance |");
+        System.out.println("+--------------+");
+        for (Map.Entry<DynamoNode, Double> entry : replicas.entrySet()) {
+            DynamoNode ringNode = entry.getKey();
+            System.out.println(String.format("|%s ip: %s vnodes: %d owns: %.2f%% replicates: %.2f%%",
+                    ringNode.name, ringNode.getAddress(), ring.getVirtualNodeCount(ringNode),
+                    100 * primary.getOrDefault(ringNode, 0.0), 100 * entry.getValue()));
+        }
+        /* the fair share of a node is its share of the virtual nodes */
+        int totalVirtualNodes = 0;
+        for (DynamoNode ringNode : primary.keySet()) {
+            totalVirtualNodes += ring.getVirtualNodeCount(ringNode);
+        }
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (Map.Entry<DynamoNode, Double> entry : primary.entrySet()) {
+            double ratio = entry.getValue() * totalVirtualNodes / ring.getVirtualNodeCount(entry.getKey());
+            min = Math.min(min, ratio);
+            max = Math.max(max, ratio);
+        }
+        if (!primary.isEmpty()) {
+            System.out.println(String.format("| spread: %.0f%% to %.0f%% of the fair share", 100 * min, 100 * max));
+        }
+        System.out.println("+--------------+");
+    }
+
+    /**
+     * Method to work out the key ranges which this node streams to new replicas after a change
+     * of the ring, and those it receives. The outbound ranges are saved and queued for the
+     * {@link Rebalancer}, while the inbound ones are read through to their source until they are
+     * streamed
+     *
+     * @param before the ring before the change
+     * @param after  the ring after the change
+     */
+    private void planRebalance(HashingManager<DynamoNode> before, HashingManager<DynamoNode> after) {
+        RebalancePlan plan = RebalancePlan.compute(this.planCounter.incrementAndGet(), before, after,
+                this.node.getAddress(), Quorum.getReplicas(), address -> findLiveNode(address) != null,
+                this.storage.listBuckets());
+        long expiry = System.nanoTime() + TimeUnit.MINUTES.toNanos(TRANSFER_TIMEOUT_MINUTES);
+        for (RebalancePlan.Range range : plan.getInbound()) {
+            this.transfers.put(range, expiry);
+        }
+        if (!plan.getTargets().isEmpty()) {
+            try {
+                plan.save(this.rebalanceDirectory);
+            } catch (IOException e) {
+                System.out.println("[WARN] Could not save rebalance plan " + plan.getId()
+                        + ", it will not resume after a restart: " + e.getMessage());
+            }
+            this.rebalances.add(plan);
+        }
+        System.out.println(">> REBALANCE: plan " + plan.getId() + " streams ranges to " + plan.getTargets()
+                + ", " + plan.getInbound().size() + " ranges to be received");
+    }
+
 //    private ArrayList<DynamoNode> cloneArrayList(ArrayList<DynamoNode> nodeList) {
 //        ArrayList<DynamoNode> newList = new ArrayList<>();
 //        for(DynamoNode node : nodeList) {
@@ -396,12 +782,22 @@ public class DynamoServer implements NotificationListener {
     public void shutdownDynamoServer(OutputModel outputModel) {
         System.out.println("Forcing shutdown...");
         System.out.println("Goodbye my friends...");
-        this.executorService.shutdownNow();
+        this.network.shutdownNow();
+        this.coordination.shutdownNow();
+        if (this.gateway != null) {
+            this.gateway.shutdownNow();
+        }
+        this.disk.shutdownNow();
+        this.maintenance.shutdownNow();
         if (!DynamoServer.this.server.isClosed()) {
             DynamoServer.this.server.close();
         }
-        if (!DynamoServer.this.ioServer.isClosed()) {
-            DynamoServer.this.ioServer.close();
+        try {
+            DynamoServer.this.transport.close();
+            DynamoServer.this.tcpTransport.close();
+            DynamoServer.this.storage.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         outputModel.setResponse("Server successfully shutdown");
         outputModel.setStatus(true);
@@ -415,7 +811,7 @@ public class DynamoServer implements NotificationListener {
      * @param payload     the message payload
      */
     private void sendRequests(MessageTypes messageType, Object payload) {
-        this.executorService.execute(new MessageSender(messageType, payload));
+        sendRequests(new MessageSender(messageType, payload));
     }
 
     /**
@@ -426,21 +822,270 @@ public class DynamoServer implements NotificationListener {
      * @param sendList    List of nodes which will receive the message
      */
     private void sendRequests(MessageTypes messageType, Object payload, ArrayList<DynamoNode> sendList) {
-        this.executorService.execute(new MessageSender(messageType, payload, sendList));
+        sendRequests(new MessageSender(messageType, payload, sendList));
+    }
+
+    /**
+     * Method to send the messages of a sender on the calling thread, as replicateWrite does. The
+     * callers are coordination threads which then wait for the acknowledgements, so the sends must
+     * not wait for a coordination thread themselves
+     *
+     * @param sender the sender of the messages
+     */
+    private void sendRequests(MessageSender sender) {
+        sender.run();
+    }
+
+    /**
+     * Method to run a request of the API gateway, which forwards it to its coordinator and waits
+     * for the result. With virtual threads, the request runs on its own virtual thread, so that the
+     * REST thread is released while it waits; otherwise it runs on the calling thread
+     *
+     * @param request the request, which should complete the REST response itself
+     */
+    public void runGatewayRequest(Runnable request) {
+        if (this.gateway != null) {
+            this.gateway.execute(request);
+        } else {
+            request.run();
+        }
+    }
+
+    /**
+     * Method to return the metrics of this node and, on the API gateway, of every storage node,
+     * which are asked for theirs with a {@code NODE_STATS} request
+     *
+     * @return the metrics of every node, under the name and address of the node
+     */
+    public String getMetrics() {
+        StringBuilder metrics = new StringBuilder();
+        metrics.append(this.node.name).append(" (").append(this.node.getAddress()).append("):\n")
+                .append(getNodeMetrics()).append("\n");
+        if (!this.node.isApiNode()) {
+            return metrics.toString();
+        }
+        ArrayList<DynamoNode> storageNodes = getStorageNodes();
+        PendingRequest request = registerRequest(storageNodes.size(), storageNodes.size());
+        try {
+            sendRequests(MessageTypes.NODE_STATS, new ForwardPayload(MessageTypes.NODE_STATS, "", null,
+                    request.getTxnID()), storageNodes);
+            request.awaitAll(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.pendingRequests.remove(request.getTxnID());
+        }
+        LinkedHashMap<String, AckPayload> responses = request.getResponsesByNode();
+        for (DynamoNode storageNode : storageNodes) {
+            AckPayload ack = responses.get(storageNode.getAddress());
+            metrics.append(storageNode.name).append(" (").append(storageNode.getAddress()).append("):\n")
+                    .append(ack != null ? ack.getResult() : "no response").append("\n");
+        }
+        return metrics.toString();
+    }
+
+    /**
+     * Method to return the metrics of this node: the load of its thread pools, and the
+     * effectiveness of its read cache
+     *
+     * @return one line per thread pool, with its active threads, queued tasks and rejected tasks,
+     * and one line for the read cache
+     */
+    private String getNodeMetrics() {
+        String coordination = this.coordination instanceof BoundedExecutor
+                ? ((BoundedExecutor) this.coordination).describe()
+                : "coordination: virtual threads, " + this.pendingRequests.size() + " requests in flight";
+        String cache = this.storage instanceof CachingStorageEngine
+                ? ((CachingStorageEngine) this.storage).describe() : "cache: disabled";
+        return this.network.describe() + "\n" + coordination + "\n"
+                + this.disk.describe() + "\n" + this.maintenance.describe() + "\n" + cache;
+    }
+
+    /**
+     * Method to register a new in-flight request, which will be completed by the
+     * acknowledgements carrying its transaction ID
+     *
+     * @param expected number of responses expected for the request
+     * @param quorum   number of successful responses required for the request to succeed
+     * @return the registered request
+     */
+    private PendingRequest registerRequest(int expected, int quorum) {
+        PendingRequest request = new PendingRequest(this.txnCounter.incrementAndGet(), expected, quorum);
+        this.pendingRequests.put(request.getTxnID(), request);
+        return request;
+    }
+
+    /**
+     * Method to wait for an in-flight request to complete. The request is unregistered
+     * once this method returns, so that late acknowledgements are discarded
+     *
+     * @param request the request to wait for
+     * @param timeout maximum time (in seconds) to wait for the request
+     * @return true if the quorum of the request was achieved, false otherwise
+     */
+    private boolean awaitRequest(PendingRequest request, long timeout) {
+        return awaitRequest(request, timeout, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Method to wait for an in-flight request to complete. The request is unregistered
+     * once this method returns, so that late acknowledgements are discarded
+     *
+     * @param request the request to wait for
+     * @param timeout maximum time to wait for the request
+     * @param unit    unit of the timeout argument
+     * @return true if the quorum of the request was achieved, false otherwise
+     */
+    private boolean awaitRequest(PendingRequest request, long timeout, TimeUnit unit) {
+        try {
+            return request.await(timeout, unit);
+        } catch (TimeoutException e) {
+            System.out.println(">> Response timeout for txn " + request.getTxnID());
+            return false;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            this.pendingRequests.remove(request.getTxnID());
+        }
     }
 
     /**
-     * Method to send a request to a specific node
+     * Method to send a request to a random node
      *
      * @param payload the message payload
+     * @param exclude node which should not receive the request if another one can, null if none
+     * @return the node to which the request was sent
+     * @throws IOException if there is no node to send the request to, or if it could not be sent
      */
-    private void sendRequestToRandNode(Object payload)
+    private DynamoNode sendRequestToRandNode(Object payload, @Nullable DynamoNode exclude)
             throws IOException {
 //        ArrayList<DynamoNode> list = new ArrayList<>();
 //        list.add(dynamoNode);
 //        sendRequests(MessageTypes.FORWARD, payload, list);
-        this.sendMessage(getRandomNode(true),
-                new DynamoMessage(this.node, MessageTypes.FORWARD, payload));
+        ArrayList<DynamoNode> candidates = getStorageNodes();
+        if (candidates.size() > 1) {
+            candidates.remove(exclude);
+        }
+        if (candidates.isEmpty()) {
+            throw new IOException("No node to forward the request to");
+        }
+        DynamoNode dstNode = candidates.get(random.nextInt(candidates.size()));
+        this.sendMessage(dstNode, new DynamoMessage(this.node, MessageTypes.FORWARD, payload));
+        return dstNode;
+    }
+
+    /**
+     * Method to pick the node coordinating a request on an object: the first live replica of the
+     * key on this node's copy of the ring, which coordinates the request without forwarding it again
+     *
+     * @param key     key of the object
+     * @param exclude node which should not receive the request, null if none
+     * @return the coordinator, or null if no replica of the key is known to be alive yet
+     */
+    private DynamoNode findCoordinator(String key, @Nullable DynamoNode exclude) {
+        for (DynamoNode replica : getReplicas(key)) {
+            if (!replica.equals(exclude) && !replica.equals(this.node) && isAlive(replica)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to return the key by which a request is routed
+     *
+     * @param messageType the type of operation to be performed
+     * @param inputObject the input model of the request
+     * @return the key of the object, or null for bucket operations
+     */
+    @Nullable
+    private static String getRoutingKey(MessageTypes messageType, @Nullable Object inputObject) {
+        switch (messageType) {
+            case OBJECT_CREATE:
+            case OBJECT_UPDATE:
+                return ((ObjectInputModel) inputObject).getKey();
+            case OBJECT_READ:
+            case OBJECT_DELETE:
+                return String.valueOf(inputObject);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Method to forward a request to its coordinator, and wait for it to be acknowledged. A request
+     * on an object goes straight to a replica of its key; bucket operations, and requests whose
+     * replicas are not known yet because the ring is still being learnt from gossip, go to a random
+     * node, which forwards them on if it does not replicate the key. The request is forwarded to
+     * another node, up to {@link #FORWARD_ATTEMPTS} nodes, only if it could not be sent or if its
+     * node is found to be down while waiting, since a slow coordinator may still apply it. Every
+     * attempt carries the same transaction ID, so that a late acknowledgement still completes it
+     *
+     * @param messageType the type of operation to be performed
+     * @param bucketName  the name of the bucket
+     * @param inputObject the input model of the request, null for bucket operations
+     * @return the completed request, or null if no node acknowledged it in time
+     * @throws IOException          if there is no node to forward the request to
+     * @throws InterruptedException if the waiting thread was interrupted
+     * @throws ExecutionException   if the request completed exceptionally
+     */
+    private PendingRequest forwardRequest(MessageTypes messageType, String bucketName, @Nullable Object inputObject)
+            throws IOException, InterruptedException, ExecutionException {
+        String key = getRoutingKey(messageType, inputObject);
+        PendingRequest request = registerRequest(1, 1);
+        try {
+            ForwardPayload payload = new ForwardPayload(messageType, bucketName, inputObject, request.getTxnID());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FORWARD_TIMEOUT_SECONDS);
+            DynamoNode dstNode = null;
+            for (int attempt = 0; attempt < FORWARD_ATTEMPTS; attempt++) {
+                DynamoNode coordinator = key != null ? findCoordinator(key, dstNode) : null;
+                try {
+                    if (coordinator != null) {
+                        dstNode = coordinator;
+                        this.sendMessage(coordinator, new DynamoMessage(this.node, MessageTypes.FORWARD, payload));
+                    } else {
+                        dstNode = sendRequestToRandNode(payload, dstNode);
+                    }
+                } catch (IOException e) {
+                    if (attempt == FORWARD_ATTEMPTS - 1) {
+                        throw e;
+                    }
+                    System.out.println("[WARN] Could not forward " + messageType.name() + ": " + e.getMessage());
+                    continue;
+                }
+                while (true) {
+                    try {
+                        request.await(1, TimeUnit.SECONDS);
+                        return request;
+                    } catch (TimeoutException e) {
+                        if (System.nanoTime() - deadline >= 0) {
+                            System.out.println(">> Response timeout from " + dstNode.name + " ("
+                                    + dstNode.getAddress() + ") for " + messageType.name());
+                            return null;
+                        }
+                        if (!isAlive(dstNode)) {
+                            System.out.println(">> " + dstNode.name + " (" + dstNode.getAddress()
+                                    + ") is down, forwarding " + messageType.name() + " to another node");
+                            break;
+                        }
+                    }
+                }
+            }
+            return null;
+        } finally {
+            this.pendingRequests.remove(request.getTxnID());
+        }
+    }
+
+    /**
+     * @param request a request forwarded to a coordinator
+     * @return true if the coordinator rejected the request because it was overloaded
+     */
+    private static boolean isOverloaded(PendingRequest request) {
+        List<AckPayload> responses = request.getResponses();
+        return !responses.isEmpty() && !responses.get(0).isStatus()
+                && OVERLOADED.equals(responses.get(0).getIdentifier());
     }
 
     /**
@@ -452,9 +1097,18 @@ public class DynamoServer implements NotificationListener {
      */
     public void forwardToRandNode(MessageTypes messageType, String bucketName, OutputModel outputModel) {
         try {
-            Future future = this.executorService.submit(new ReceiveFromRandNode(outputModel));
-            sendRequestToRandNode(new ForwardPayload(messageType, bucketName, null, 0));
-            future.get(20, TimeUnit.SECONDS);
+            PendingRequest request = forwardRequest(messageType, bucketName, null);
+            if (request == null) {
+                outputModel.setStatus(false);
+                outputModel.setResponse("Request timed out");
+                return;
+            }
+            if (isOverloaded(request)) {
+                outputModel.setStatus(false);
+                outputModel.setResponse("Server overloaded, try again later");
+                return;
+            }
+            outputModel.setStatus(request.await(0, TimeUnit.SECONDS));
 
             // outputModel contains status, read status and set message
             switch (messageType) {
@@ -468,12 +1122,9 @@ public class DynamoServer implements NotificationListener {
                     break;
             }
 
-        } catch (ExecutionException | InterruptedException | IOException e) {
+        } catch (ExecutionException | InterruptedException | IOException | TimeoutException e) {
             outputModel.setStatus(false);
             outputModel.setResponse(e.getMessage());
-        } catch (TimeoutException e) {
-            System.out.println(">> Response timeout! Use sloppy quorum!");
-            e.printStackTrace();
         }
     }
 
@@ -485,18 +1136,22 @@ public class DynamoServer implements NotificationListener {
      * @param inputObject POJO containing the key and value of the object
      * @param outputModel POJO which will return the response
      */
+    @SuppressWarnings("unchecked")
     public void forwardToRandNode(MessageTypes messageType, String bucketName,
                                   Object inputObject, OutputModel outputModel) {
         try {
-            Future future = this.executorService.submit(new ReceiveFromRandNode(outputModel));
-            sendRequestToRandNode(new ForwardPayload(messageType, bucketName, inputObject, 2));
-            future.get(20, TimeUnit.SECONDS);
-            /* TODO: [temp done]Since we will not be using the Receiver for randNode, kill the thread,
-             *  it is occupying a port and CPU time without any reason.
-             */
-            if (!future.isDone()) {
-                future.cancel(true);
+            PendingRequest request = forwardRequest(messageType, bucketName, inputObject);
+            if (request == null) {
+                outputModel.setStatus(false);
+                outputModel.setResponse("Request timed out");
+                return;
             }
+            if (isOverloaded(request)) {
+                outputModel.setStatus(false);
+                outputModel.setResponse("Server overloaded, try again later");
+                return;
+            }
+            outputModel.setStatus(request.await(0, TimeUnit.SECONDS));
             // outputModel contains status, read status and set message
             switch (messageType) {
                 case OBJECT_CREATE:
@@ -505,7 +1160,20 @@ public class DynamoServer implements NotificationListener {
                             (outputModel.isStatus() ? " creation successfully" : " creation failed"));
                     break;
                 case OBJECT_READ:
-                    // value should already be written
+                    ArrayList<ObjectIOModel> list =
+                            (ArrayList<ObjectIOModel>) request.getResponses().get(0).getResult();
+                    StringBuilder str = new StringBuilder();
+                    VectorClock context = new VectorClock();
+                    /* iterate list and append to output string, the merged clock is the context of the next write */
+                    for (ObjectIOModel oim : list) {
+                        str.append("<value: ").append(oim.getValue())
+                                .append(" clock: ").append(oim.getClock()).append("> ");
+                        if (oim.getClock() != null) {
+                            context = context.merge(oim.getClock());
+                        }
+                    }
+                    outputModel.setResponse(str.toString());
+                    outputModel.setContext(context);
                     break;
                 case OBJECT_UPDATE:
                     outputModel.setResponse("Record " +
@@ -517,13 +1185,10 @@ public class DynamoServer implements NotificationListener {
                             (outputModel.isStatus() ? " removed successfully" : " removal failed"));
                     break;
             }
-        } catch (ExecutionException | InterruptedException | IOException e) {
+        } catch (ExecutionException | InterruptedException | IOException | TimeoutException e) {
             outputModel.setStatus(false);
             outputModel.setResponse(e.getMessage());
             e.printStackTrace();
-        } catch (TimeoutException e) {
-            System.out.println(">> Response timeout! Use sloppy quorum!");
-            e.printStackTrace();
         }
     }
 
@@ -535,9 +1200,10 @@ public class DynamoServer implements NotificationListener {
      * @param apiGateway The DynamoNode instance representing API Gateway
      */
     private void forwardToRandomNode(ForwardPayload payload, ArrayList<DynamoNode> hashNodes, DynamoNode apiGateway) {
-        /* This node is not a part of the hashnodes, forward request to one of the hashNodes */
-        if (hashNodes.size() > 0) {
-            DynamoNode newCoord = hashNodes.get(random.nextInt(hashNodes.size()));
+        /* This node is not a part of the hashnodes, forward request to one of the hashNodes which is alive */
+        ArrayList<DynamoNode> liveNodes = getLiveNodes(hashNodes);
+        if (liveNodes.size() > 0) {
+            DynamoNode newCoord = liveNodes.get(random.nextInt(liveNodes.size()));
 
             /* Send forward to this node, src being the API gateway */
             DynamoMessage msg = new DynamoMessage(apiGateway, MessageTypes.FORWARD, payload);
@@ -549,6 +1215,21 @@ public class DynamoServer implements NotificationListener {
         }
     }
 
+    /**
+     * Method to return the list of nodes (excluding API gateways) which receive bucket operations
+     *
+     * @return list of nodes which store data
+     */
+    private ArrayList<DynamoNode> getStorageNodes() {
+        ArrayList<DynamoNode> storageNodes = new ArrayList<>();
+        for (DynamoNode node : this.membership.getLiveNodes()) {
+            if (!node.isApiNode()) {
+                storageNodes.add(node);
+            }
+        }
+        return storageNodes;
+    }
+
     /**
      * Method to create the bucket in the database having the specified name
      *
@@ -557,33 +1238,23 @@ public class DynamoServer implements NotificationListener {
      */
     private boolean createBucket(String name) {
 //        // create folder in current node
-        AtomicBoolean success = new AtomicBoolean(false);
+        boolean success = createFolder(name);
         /* TODO: Add quorum implementation */
-        success.set(createFolder(name));
+        ArrayList<DynamoNode> storageNodes = getStorageNodes();
 
-        /* Spawn ack thread to collect acks, and write to output model */
-        try {
-            AckReceiver ackThread = new AckReceiver(success);
-            Future future = this.executorService.submit(ackThread);
+        if (storageNodes.size() > 0) {
+            /* register request to collect acks */
+            PendingRequest request = registerRequest(storageNodes.size(), storageNodes.size());
 
             // send a request to each node in the system to create the folder
-            sendRequests(MessageTypes.BUCKET_CREATE, name);
-
-            // wait for thread termination
-            future.get(20, TimeUnit.SECONDS);
-            /* TODO: [TEMP DONE] Since we will not be using the Receiver for randNode, kill the thread,
-             *  it is occupying a port and CPU time without any reason.
-             */
-            if (!future.isDone()) {
-                future.cancel(true);
-                success.set(false);
-            }
-        } catch (SocketException | InterruptedException | ExecutionException | TimeoutException e) {
-            success.set(false);
-            e.printStackTrace();
+            sendRequests(MessageTypes.BUCKET_CREATE,
+                    new ForwardPayload(MessageTypes.BUCKET_CREATE, name, null, request.getTxnID()), storageNodes);
+
+            // wait for acknowledgements
+            success = awaitRequest(request, 20);
         }
 
-        return success.get();
+        return success;
 
     }
 
@@ -594,7 +1265,7 @@ public class DynamoServer implements NotificationListener {
      * @return true if folder was created successfully, false otherwise
      */
     private boolean createFolder(String name) {
-        return new File("/" + name).mkdir();
+        return this.storage.createBucket(name);
     }
 
     /**
@@ -605,30 +1276,20 @@ public class DynamoServer implements NotificationListener {
      */
     private boolean deleteBucket(String name) {
 
-        AtomicBoolean success = new AtomicBoolean(false);
-        success.set(deleteFolder(name));
+        boolean success = deleteFolder(name);
+        ArrayList<DynamoNode> storageNodes = getStorageNodes();
 
-        try {
-            AckReceiver ackThread = new AckReceiver(success);
-            Future future = this.executorService.submit(ackThread);
+        if (storageNodes.size() > 0) {
+            PendingRequest request = registerRequest(storageNodes.size(), storageNodes.size());
 
             // send a request to each node in the system to delete the folder
-            sendRequests(MessageTypes.BUCKET_DELETE, name);
-
-            // wait for thread termination
-            future.get(20, TimeUnit.SECONDS);
-            /* TODO: [TEMP DONE] Since we will not be using the Receiver for randNode, kill the thread,
-             *  it is occupying a port and CPU time without any reason.
-             */
-            if (!future.isDone()) {
-                future.cancel(true);
-                success.set(false);
-            }
-        } catch (SocketException | InterruptedException | ExecutionException | TimeoutException e) {
-            success.set(false);
-            e.printStackTrace();
+            sendRequests(MessageTypes.BUCKET_DELETE,
+                    new ForwardPayload(MessageTypes.BUCKET_DELETE, name, null, request.getTxnID()), storageNodes);
+
+            // wait for acknowledgements
+            success = awaitRequest(request, 20);
         }
-        return success.get();
+        return success;
 
     }
 
@@ -639,17 +1300,8 @@ public class DynamoServer implements NotificationListener {
      * @return true if the folder was deleted successfully
      */
     private boolean deleteFolder(String name) {
-        boolean status = false;
-        try {
-            File file = new File("/" + name);
-            if (file.exists()) {
-                FileUtils.deleteDirectory(new File("/" + name));
-                status = true;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return status;
+        this.merkleTrees.remove(name);
+        return this.storage.deleteBucket(name);
     }
 
     /**
@@ -661,130 +1313,337 @@ public class DynamoServer implements NotificationListener {
      * @return true if object was created successfully, false otherwise
      */
     private boolean addRecord(String bucket, ObjectInputModel inputModel, ArrayList<DynamoNode> hashNodes) {
-        AtomicBoolean success = new AtomicBoolean(true);
-        success.set(createFile(bucket, inputModel.getKey(), inputModel.getValue(), true));
-        hashNodes.remove(this.node);
-
-
-        // send requests to all appropriate nodes and await response
-        if (hashNodes.size() > 0) {
-            try {
-                System.out.println("Sending CREATE request to " + hashNodes.size() + " other nodes");
-                for (DynamoNode node : hashNodes) {
-                    System.out.println(node.name + " " + node.getAddress());
-                }
-                AckReceiver ackThread = new AckReceiver(success, hashNodes.size(),
-                        (success.get() ? Quorum.getWriteQuorum() - 1 : Quorum.getWriteQuorum()));
-                Future future = this.executorService.submit(ackThread);
-
-                // send a request to each relevant hash-node to create the object
-                sendRequests(MessageTypes.OBJECT_CREATE, new Pair<>(bucket, inputModel), hashNodes);
-
-                // wait for thread termination
-                future.get(10, TimeUnit.SECONDS);
-                /* TODO: [TEMP DONE] Since we will not be using the Receiver for randNode, kill the thread,
-                 *  it is occupying a port and CPU time without any reason.
-                 */
-                if (!future.isDone()) {
-                    future.cancel(true);
-                    success.set(false);
-                }
-            } catch (SocketException | InterruptedException | ExecutionException | TimeoutException e) {
-                success.set(false);
-                e.printStackTrace();
-            }
-        }
-
-        return success.get();
-    }
+        /* the replicas store the clock given by the coordinator, which descends from the delete
+         * marker of the object if it was deleted before */
+        ObjectIOModel current = readFile(bucket, inputModel.getKey());
+        inputModel.setContext(nextClock(current != null && current.isDeleted() ? current.getClock() : null));
+        // create the object here while the replicas do the same, the write returns once its group commit is durable
+        return replicateWrite(MessageTypes.OBJECT_CREATE, bucket, inputModel.getKey(), inputModel, hashNodes,
+                () -> createFile(bucket, inputModel.getKey(), inputModel.getValue(), inputModel.getContext()));
+    }
 
     /**
-     * Method to delete a record from the database
+     * Method to delete a record from the database. The replicas replace the record with a delete
+     * marker, whose clock descends from the version stored here
      *
      * @param bucketName The name of the bucket which contains the record
      * @param key        the key of the object ot be deleted
      * @return true if deletion was successful, false otherwise
      */
     private boolean deleteRecord(String bucketName, String key, ArrayList<DynamoNode> hashNodes) {
-        // track success of operation
-        AtomicBoolean success = new AtomicBoolean(true);
+        ObjectIOModel current = readFile(bucketName, key);
+        ObjectInputModel marker = new ObjectInputModel();
+        marker.setKey(key);
+        marker.setContext(nextClock(current != null ? current.getClock() : null));
+        marker.setDeleted(true);
+        return replicateWrite(MessageTypes.OBJECT_DELETE, bucketName, key, marker, hashNodes,
+                () -> deleteFile(bucketName, key, marker.getContext()));
+    }
 
-        // key present in coordinator
-        if (hashNodes.contains(this.node)) {
-            System.out.println("Key to be deleted present in coordinator " + this.node.name);
-            success.set(deleteFile(bucketName, key));
-            hashNodes.remove(this.node);
+    /**
+     * Method to update a record in the database
+     *
+     * @param bucket     Name of the bucket which contains the record
+     * @param inputModel POJO containing the key of the record and the associated new value
+     * @param hashNodes  List of nodes into which the record is hashed
+     * @return true if the updation was successful, false otherwise
+     */
+    private boolean updateRecord(String bucket, ObjectInputModel inputModel, ArrayList<DynamoNode> hashNodes) {
+        /* without the context of a read, the new version descends from the version stored here */
+        VectorClock context = inputModel.getContext();
+        if (context == null) {
+            ObjectIOModel current = readFile(bucket, inputModel.getKey());
+            context = current != null ? current.getClock() : null;
         }
+        inputModel.setContext(nextClock(context));
 
-        // key present in other nodes
-        if (hashNodes.size() > 0) {
-            try {
-                System.out.println("Sending DELETE request to " + hashNodes.size() + " other nodes");
-                AckReceiver ackReceiver = new AckReceiver(success, hashNodes.size(), Quorum.getWriteQuorum());
+        // update the object here while the replicas do the same, the write returns once its group commit is durable
+        return replicateWrite(MessageTypes.OBJECT_UPDATE, bucket, inputModel.getKey(), inputModel, hashNodes,
+                () -> updateFile(bucket, inputModel.getKey(), inputModel.getValue(), inputModel.getContext()));
+    }
+
+    /**
+     * Method to replicate a write to the replicas of an object with a sloppy quorum. A replica
+     * which is down, or which does not answer within {@link ServerConfig#getHandoffTimeout()},
+     * is replaced by the next healthy node of the preference list of the object, which keeps the
+     * write as a hint and hands it off to the replica once it is back. Stand-ins which do not
+     * answer either are replaced in turn, until the write quorum is achieved, the preference list
+     * is exhausted or the write times out
+     *
+     * @param type       the type of the replica requests (create, update or delete)
+     * @param bucket     name of the bucket holding the object
+     * @param key        key of the object
+     * @param inputModel the input model of the replica requests
+     * @param hashNodes  the replicas of the object
+     * @param localWrite the write applied by this node if it is one of the replicas
+     * @return true if the write quorum was achieved, false otherwise
+     */
+    private boolean replicateWrite(MessageTypes type, String bucket, String key, Object inputModel,
+                                   ArrayList<DynamoNode> hashNodes, BooleanSupplier localWrite) {
+        ArrayList<DynamoNode> replicas = new ArrayList<>(hashNodes);
+        boolean isReplica = hashNodes.remove(this.node);
+        if (isReplica && hashNodes.isEmpty()) {
+            return localWrite.getAsBoolean();
+        }
 
-                // initialize Acknowledgement Receiver thread to listen for acknowledgements
-                Future future = this.executorService.submit(ackReceiver);
+        /* nodes past the replicas in the preference list, in the order in which they stand in */
+        Iterator<DynamoNode> standIns = getStandIns(key, replicas);
+        // target node -> address of the replica it stands in for, null if it is the replica itself
+        LinkedHashMap<DynamoNode, String> targets = new LinkedHashMap<>();
+        for (DynamoNode replica : hashNodes) {
+            if (isAlive(replica)) {
+                targets.put(replica, null);
+            } else {
+                addStandIn(targets, standIns, replica.getAddress());
+            }
+        }
 
-                // send a request to each relevant hash-node to create the object
-                sendRequests(MessageTypes.OBJECT_DELETE, new Pair<>(bucketName, key), hashNodes);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        int successes = 0;
+        boolean firstRound = true;
+        while (true) {
+            /* the local write counts as one of the responses */
+            boolean local = firstRound && isReplica;
+            PendingRequest request = registerRequest(targets.size() + (local ? 1 : 0),
+                    Quorum.getWriteQuorum() - successes);
+            System.out.println("Sending " + type.name() + " request to " + targets.size() + " other nodes");
+            for (Map.Entry<DynamoNode, String> target : targets.entrySet()) {
+                sendReplicaRequest(type, bucket, key, inputModel, request, target.getKey(), target.getValue());
+            }
+            if (local) {
+                request.onResponse(this.node, new AckPayload(type, key, request.getTxnID(),
+                        localWrite.getAsBoolean()));
+            }
 
-                // wait for acknowledgement thread termination
-                future.get(20, TimeUnit.SECONDS);
-            } catch (SocketException | InterruptedException | ExecutionException | TimeoutException e) {
-                success.set(false);
-                e.printStackTrace();
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            awaitRequest(request, Math.max(0, Math.min(ServerConfig.getHandoffTimeout(), remaining)),
+                    TimeUnit.MILLISECONDS);
+            LinkedHashMap<String, AckPayload> responses = request.getResponsesByNode();
+            if (local && responses.get(this.node.getAddress()).isStatus()) {
+                successes++;
             }
+
+            /* a node which answered has decided, only the silent ones are handed to stand-ins */
+            LinkedHashMap<DynamoNode, String> silent = new LinkedHashMap<>();
+            for (Map.Entry<DynamoNode, String> target : targets.entrySet()) {
+                AckPayload ack = responses.get(target.getKey().getAddress());
+                if (ack == null) {
+                    addStandIn(silent, standIns,
+                            target.getValue() != null ? target.getValue() : target.getKey().getAddress());
+                } else if (ack.isStatus()) {
+                    successes++;
+                }
+            }
+            if (successes >= Quorum.getWriteQuorum()) {
+                return true;
+            }
+            if (silent.isEmpty() || System.nanoTime() >= deadline) {
+                System.out.println(">> " + type.name() + " of /" + bucket + "/" + key + " failed: "
+                        + successes + " of " + Quorum.getWriteQuorum() + " acknowledgements");
+                return false;
+            }
+            targets = silent;
+            firstRound = false;
         }
+    }
 
-        return success.get();
+    /**
+     * Method to return the nodes which may stand in for the replicas of an object, in the order
+     * of its preference list. The candidates are taken from the preference list precomputed by
+     * the ring first, and the ring is only walked further when all of them were used, so that a
+     * write does not walk the whole ring while its replicas are up
+     *
+     * @param key      key of the object
+     * @param replicas the replicas of the object, which are skipped
+     * @return iterator over the stand-ins, computed as they are requested
+     */
+    private Iterator<DynamoNode> getStandIns(String key, List<DynamoNode> replicas) {
+        return new Iterator<DynamoNode>() {
+            private final ArrayList<DynamoNode> visited = new ArrayList<>(replicas);
+            private Iterator<DynamoNode> candidates = iterate(
+                    getHashingManager().routeNodes(key, 2 * Quorum.getReplicas()));
+            private boolean walked = false;
+            private DynamoNode next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (candidates.hasNext()) {
+                        DynamoNode candidate = candidates.next();
+                        if (!visited.contains(candidate)) {
+                            visited.add(candidate);
+                            next = candidate;
+                        }
+                    } else if (!walked) {
+                        walked = true;
+                        candidates = iterate(getPreferenceList(key));
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public DynamoNode next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                DynamoNode candidate = next;
+                next = null;
+                return candidate;
+            }
+
+            private Iterator<DynamoNode> iterate(@Nullable List<DynamoNode> nodes) {
+                return nodes != null ? nodes.iterator() : Collections.emptyIterator();
+            }
+        };
     }
 
     /**
-     * Method to update a record in the database
+     * Method to pick the next healthy stand-in of the preference list for a replica
      *
-     * @param bucket     Name of the bucket which contains the record
-     * @param inputModel POJO containing the key of the record and the associated new value
-     * @param hashNodes  List of nodes into which the record is hashed
-     * @return true if the updation was successful, false otherwise
+     * @param targets  the targets of the write, to which the stand-in is added
+     * @param standIns the remaining candidates of the preference list
+     * @param owner    address of the replica for which the stand-in holds the write
      */
-    private boolean updateRecord(String bucket, ObjectInputModel inputModel, ArrayList<DynamoNode> hashNodes) {
-        AtomicBoolean success = new AtomicBoolean(true);
+    private void addStandIn(LinkedHashMap<DynamoNode, String> targets, Iterator<DynamoNode> standIns, String owner) {
+        while (standIns.hasNext()) {
+            DynamoNode candidate = standIns.next();
+            if (isAlive(candidate) && !targets.containsKey(candidate)) {
+                targets.put(candidate, owner);
+                return;
+            }
+        }
+        System.out.println("[WARN] No node left to stand in for " + owner);
+    }
 
-        // this node is one of the hash replicas, create object here
-        success.set(updateFile(bucket, inputModel.getKey(), inputModel.getValue(), true));
-        hashNodes.remove(this.node);
+    /**
+     * Method to send a replica request to a node, or to apply it locally if this node stands in
+     * for the replica
+     *
+     * @param type       the type of the request
+     * @param bucket     name of the bucket holding the object
+     * @param key        key of the object
+     * @param inputModel the input model of the request
+     * @param request    the request collecting the acknowledgements
+     * @param target     the node receiving the request
+     * @param hint       address of the replica for which the target stands in, null if it is the replica
+     */
+    private void sendReplicaRequest(MessageTypes type, String bucket, String key, Object inputModel,
+                                    PendingRequest request, DynamoNode target, @Nullable String hint) {
+        if (hint != null) {
+            System.out.println(">> HINT: " + type.name() + " of /" + bucket + "/" + key + " for " + hint
+                    + " sent to " + target.name + " (" + target.getAddress() + ")");
+        }
+        if (target.equals(this.node)) {
+            boolean status = storeHint(hint, type, bucket, inputModel);
+            request.onResponse(this.node, new AckPayload(type, key, request.getTxnID(), status));
+            return;
+        }
+        try {
+            sendMessage(target, new DynamoMessage(this.node, type,
+                    new ForwardPayload(type, bucket, inputModel, request.getTxnID(), hint)));
+        } catch (IOException e) {
+            /* the node is handed to a stand-in once the request times out */
+            System.out.println("[WARN] Could not send " + type.name() + " to " + target.name
+                    + " (" + target.getAddress() + "): " + e.getMessage());
+        }
+    }
 
+    /**
+     * Method to keep a write intended for another replica in the hint store of this node
+     *
+     * @param owner      address of the replica
+     * @param type       the type of the write (create, update or delete)
+     * @param bucket     name of the bucket holding the object
+     * @param inputModel the input model of the write
+     * @return true if the hint was stored durably
+     */
+    private boolean storeHint(String owner, MessageTypes type, String bucket, Object inputModel) {
+        ObjectInputModel objectInput = (ObjectInputModel) inputModel;
+        return this.hintStore.store(owner, bucket, objectInput.getKey(), toVersion(objectInput));
+    }
 
-        // send requests to all appropriate nodes and await response
-        if (hashNodes.size() > 0) {
-            try {
-                System.out.println("Sending UPDATE request to " + hashNodes.size() + " other nodes");
-                for (DynamoNode node : hashNodes) {
-                    System.out.println(node.name + " " + node.getAddress());
+    /**
+     * Method to hand off, in the background, the hinted writes held for a replica which is
+     * reachable again. Nothing is done if no hint is held for the replica, or if its hints are
+     * already being handed off
+     *
+     * @param owner the replica
+     */
+    private void handOffHints(DynamoNode owner) {
+        if (!this.hintStore.hasHints(owner.getAddress()) || !this.handoffs.add(owner.getAddress())) {
+            return;
+        }
+        try {
+            this.maintenance.execute(() -> {
+                try {
+                    deliverHints(owner);
+                } finally {
+                    this.handoffs.remove(owner.getAddress());
                 }
-                AckReceiver ackThread = new AckReceiver(success, hashNodes.size(),
-                        (success.get() ? Quorum.getWriteQuorum() - 1 : Quorum.getWriteQuorum()));
-                Future future = this.executorService.submit(ackThread);
-
-                // send a request to each relevant hash-node to create the object
-                sendRequests(MessageTypes.OBJECT_UPDATE, new Pair<>(bucket, inputModel), hashNodes);
+            });
+        } catch (RejectedExecutionException e) {
+            /* the hints stay in the store, and are handed off the next time the replica is seen alive */
+            this.handoffs.remove(owner.getAddress());
+            System.out.println("[WARN] Hinted handoff to " + owner.name + " postponed: " + this.maintenance.describe());
+        }
+    }
 
-                // wait for thread termination
-                future.get(10, TimeUnit.SECONDS);
-                /* TODO: [TEMP DONE] Since we will not be using the Receiver for randNode, kill the thread,
-                 *  it is occupying a port and CPU time without any reason.
-                 */
-                if (!future.isDone()) {
-                    future.cancel(true);
-                    success.set(false);
+    /**
+     * Method to send the hinted writes held for a replica, in batches of {@link #HANDOFF_BATCH}.
+     * Hints which the replica does not acknowledge are put back in the hint store, along with the
+     * remaining batches, to be handed off the next time the replica is seen alive
+     *
+     * @param owner the replica
+     */
+    private void deliverHints(DynamoNode owner) {
+        ArrayList<HintStore.Hint> hints;
+        try {
+            hints = this.hintStore.drain(owner.getAddress());
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not read hints for " + owner.getAddress() + ": " + e.getMessage());
+            return;
+        }
+        ArrayList<HintStore.Hint> undelivered = new ArrayList<>();
+        for (int start = 0; start < hints.size(); start += HANDOFF_BATCH) {
+            List<HintStore.Hint> batch = hints.subList(start, Math.min(start + HANDOFF_BATCH, hints.size()));
+            if (!undelivered.isEmpty()) {
+                /* the replica stopped answering, keep the rest for later */
+                undelivered.addAll(batch);
+                continue;
+            }
+            ArrayList<PendingRequest> requests = new ArrayList<>(batch.size());
+            for (HintStore.Hint hint : batch) {
+                PendingRequest request = registerRequest(1, 1);
+                requests.add(request);
+                /* hints stored without a value are deletes, written before deletes left a marker */
+                Object inputModel = hint.getValue() != null ? toInputModel(hint.getKey(), hint.getValue())
+                        : hint.getKey();
+                try {
+                    sendMessage(owner, new DynamoMessage(this.node, MessageTypes.OBJECT_HANDOFF,
+                            new ForwardPayload(MessageTypes.OBJECT_HANDOFF, hint.getBucket(), inputModel,
+                                    request.getTxnID())));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            for (int i = 0; i < requests.size(); i++) {
+                if (!awaitRequest(requests.get(i), Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    undelivered.add(batch.get(i));
                 }
-            } catch (SocketException | InterruptedException | ExecutionException | TimeoutException e) {
-                success.set(false);
-                e.printStackTrace();
             }
         }
-
-        return success.get();
+        try {
+            this.hintStore.restore(owner.getAddress(), undelivered);
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not keep " + undelivered.size() + " hints for " + owner.getAddress()
+                    + ": " + e.getMessage());
+        }
+        System.out.println(">> HANDOFF: " + (hints.size() - undelivered.size()) + " of " + hints.size()
+                + " hinted writes delivered to " + owner.name + " (" + owner.getAddress() + ")");
     }
 
     /**
@@ -800,39 +1659,180 @@ public class DynamoServer implements NotificationListener {
 
         /* if is a coord then read from this node and decrement read quorum if applicable */
         int readQuorum = Quorum.getReadQuorum();
-        AtomicBoolean success = new AtomicBoolean(false);
 
         ArrayList<ObjectIOModel> out = new ArrayList<>();
 
-        if (isCoordinator(hashNodes)) {
-            ObjectIOModel ioModel = readFile(bucket, key);
-            if (ioModel != null && !ioModel.getValue().isEmpty()) {
-                out.add(ioModel);
-                hashNodes.remove(this.node);
+        /* replicas which are down would only delay the read */
+        hashNodes.removeIf(replica -> !isAlive(replica));
+        final boolean isReplica = isCoordinator(hashNodes);
+        final ObjectIOModel local = isReplica ? readThrough(bucket, key, null) : null;
+        if (isReplica) {
+            hashNodes.remove(this.node);
+            if (local != null && (local.isDeleted() || !local.getValue().isEmpty())) {
+                out.add(local);
                 readQuorum--;
             }
         }
 
+        if (hashNodes.size() > 0) {
+            /* return as soon as the read quorum is met, the remaining responses are only used for read repair */
+            PendingRequest request = registerRequest(hashNodes.size(), readQuorum);
+            // send a request to each relevant hash-node to read the object
+            sendRequests(MessageTypes.OBJECT_READ,
+                    new ForwardPayload(MessageTypes.OBJECT_READ, bucket, key, request.getTxnID()), hashNodes);
+
+            try {
+                request.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                e.printStackTrace();
+            }
+            int success = 0;
+            for (AckPayload ack : request.getResponses()) {
+                ObjectIOModel payload = (ObjectIOModel) ack.getResult();
+                if (payload != null && (payload.isDeleted() || !payload.getValue().isEmpty())) {
+                    success++;
+                    out.add(payload);
+                }
+            }
+            System.out.println(">> READ RECEIVE: quorum: " + readQuorum + " success: " + success);
+
+            boolean repairing = false;
+            if (this.random.nextDouble() < ServerConfig.getReadRepairProbability()) {
+                try {
+                    this.maintenance.execute(() -> repairReplicas(bucket, key, request, hashNodes, isReplica, local));
+                    repairing = true;
+                } catch (RejectedExecutionException e) {
+                    /* read repair is best effort, anti-entropy catches up with the replicas later */
+                    System.out.println("[WARN] Read repair of " + key + " skipped: " + this.maintenance.describe());
+                }
+            }
+            if (!repairing) {
+                this.pendingRequests.remove(request.getTxnID());
+            }
+        }
+        /* a delete marker hides the versions it supersedes, then is hidden itself */
+        ArrayList<ObjectIOModel> latest = reconcile(out);
+        latest.removeIf(ObjectIOModel::isDeleted);
+        return latest;
+    }
+
+    /**
+     * Method to perform read repair: waits for the responses of all replicas to a read, and writes
+     * the newest version of the object back to every replica which returned an older version or
+     * no version at all. Runs in the background, after the read was answered.
+     * <p>
+     * Nothing is repaired when the replicas hold concurrent siblings, which only a write of the
+     * client can reconcile. Delete markers are versions like any other, so a replica which missed
+     * a delete receives the marker, and a replica missing the object receives the newest version.
+     * </p>
+     *
+     * @param bucket    name of the bucket holding the object
+     * @param key       key of the object
+     * @param request   the read request sent to the other replicas
+     * @param hashNodes the other replicas of the object
+     * @param isReplica true if this node is a replica of the object
+     * @param local     the version held by this node, null if none
+     */
+    private void repairReplicas(String bucket, String key, PendingRequest request,
+                                ArrayList<DynamoNode> hashNodes, boolean isReplica, @Nullable ObjectIOModel local) {
+        LinkedHashMap<String, AckPayload> responses;
         try {
-            ReadReceiver readThread = new ReadReceiver(hashNodes.size(), readQuorum, out, success);
-            // send a request to each relevant hash-node to create the object
-            Future future = this.executorService.submit(readThread);
-            sendRequests(MessageTypes.OBJECT_READ, new Pair<>(bucket, key), hashNodes);
-
-            // wait for thread termination
-            future.get(10, TimeUnit.SECONDS);
-            /* TODO: [TEMP DONE] Since we will not be using the Receiver for randNode, kill the thread,
-             *  it is occupying a port and CPU time without any reason.
-             */
-            if (!future.isDone()) {
-                future.cancel(true);
-                success.set(false);
-            }
-
-        } catch (SocketException | InterruptedException | TimeoutException | ExecutionException e) {
-            e.printStackTrace();
+            request.awaitAll(10, TimeUnit.SECONDS);
+            responses = request.getResponsesByNode();
+        } catch (InterruptedException e) {
+            return;
+        } finally {
+            this.pendingRequests.remove(request.getTxnID());
+        }
+
+        HashMap<DynamoNode, ObjectIOModel> versions = new HashMap<>();
+        ArrayList<ObjectIOModel> found = new ArrayList<>();
+        if (isReplica) {
+            versions.put(this.node, local);
+            if (local != null) {
+                found.add(local);
+            }
+        }
+        for (DynamoNode replica : hashNodes) {
+            AckPayload ack = responses.get(replica.getAddress());
+            if (ack == null) {
+                /* no response, the replica may be down */
+                continue;
+            }
+            ObjectIOModel version = (ObjectIOModel) ack.getResult();
+            versions.put(replica, version);
+            if (version != null) {
+                found.add(version);
+            }
+        }
+
+        ArrayList<ObjectIOModel> latest = reconcile(found);
+        if (latest.size() != 1) {
+            return;
+        }
+        ObjectIOModel newest = latest.get(0);
+        for (Map.Entry<DynamoNode, ObjectIOModel> entry : versions.entrySet()) {
+            ObjectIOModel version = entry.getValue();
+            boolean stale = version == null || version.getClock() == null
+                    || version.getClock().compare(newest.getClock()) == VectorClock.Order.BEFORE;
+            if (!stale) {
+                continue;
+            }
+            System.out.println(">> READ REPAIR: /" + bucket + "/" + key + " on " + entry.getKey().getAddress()
+                    + " to " + newest.getClock());
+            if (entry.getKey() == this.node) {
+                repairFile(bucket, key, newest);
+            } else {
+                ObjectInputModel inputModel = toInputModel(key, newest);
+                try {
+                    sendMessage(entry.getKey(), new DynamoMessage(this.node, MessageTypes.OBJECT_REPAIR,
+                            new ForwardPayload(MessageTypes.OBJECT_REPAIR, bucket, inputModel, 0)));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
-        return out;
+    }
+
+    /**
+     * Method to reconcile the versions of an object read from its replicas. Every version
+     * whose clock is an ancestor of (or equal to) the clock of another version is dropped,
+     * so that only the latest version, or the concurrent siblings, are returned
+     *
+     * @param versions the versions read
+     * @return the versions which are not superseded by another one
+     */
+    private static ArrayList<ObjectIOModel> reconcile(ArrayList<ObjectIOModel> versions) {
+        ArrayList<ObjectIOModel> siblings = new ArrayList<>();
+        for (ObjectIOModel version : versions) {
+            VectorClock clock = version.getClock() != null ? version.getClock() : new VectorClock();
+            boolean superseded = false;
+            Iterator<ObjectIOModel> iterator = siblings.iterator();
+            while (iterator.hasNext() && !superseded) {
+                VectorClock.Order order = clock.compare(iterator.next().getClock());
+                if (order == VectorClock.Order.BEFORE || order == VectorClock.Order.EQUAL) {
+                    superseded = true;
+                } else if (order == VectorClock.Order.AFTER) {
+                    iterator.remove();
+                }
+            }
+            if (!superseded) {
+                siblings.add(version);
+            }
+        }
+        return siblings;
+    }
+
+    /**
+     * Method to return the clock of a new version of an object, written with this node as coordinator
+     *
+     * @param context clock of the version(s) overwritten, null for a new object
+     * @return the clock of the new version
+     */
+    private VectorClock nextClock(@Nullable VectorClock context) {
+        VectorClock base = context != null ? context : new VectorClock();
+        return base.increment(VectorClock.nodeId(this.node.getAddress()), System.currentTimeMillis(),
+                ServerConfig.getClockMaxEntries());
     }
 
     /**
@@ -841,95 +1841,699 @@ public class DynamoServer implements NotificationListener {
      * @param folder   The folder in which the file is to be created
      * @param name     the name of the file to be created
      * @param contents the contents to be written to the file
-     * @param isCoord  true if the caller node is the coordinator, false otherwise
+     * @param clock    the vector clock of the new object
      * @return true if file creation was successful
      */
-    private boolean createFile(String folder, String name, String contents, boolean isCoord) {
-        ObjectIOModel ioModel = new ObjectIOModel((isCoord) ? 1 : 0, contents);
-        String json = AppConfig.getParser().serialize(ioModel);
-        boolean status = false;
+    private boolean createFile(String folder, String name, String contents, @Nullable VectorClock clock) {
+        ObjectIOModel ioModel = new ObjectIOModel(clock != null ? clock : new VectorClock(), contents);
+        ObjectIOModel current = readFile(folder, name);
+        boolean status;
+        if (current == null) {
+            status = this.storage.create(folder, name, ioModel);
+        } else if (current.isDeleted() && (ioModel.getClock().compare(current.getClock()) == VectorClock.Order.AFTER
+                || ioModel.getClock().compare(current.getClock()) == VectorClock.Order.CONCURRENT)) {
+            /* the object was deleted, the new one replaces its delete marker */
+            status = this.storage.update(folder, name, ioModel);
+        } else {
+            return false;
+        }
+        if (status) {
+            onLocalWrite(folder, name, current != null ? current.getClock() : null, ioModel.getClock());
+        }
+        return status;
+    }
+
+    /**
+     * Method to read a file and return its contents
+     *
+     * @param folder The folder in which the file is present
+     * @param name   the name of hte file
+     * @return A string representing the contents of the file
+     */
+    private ObjectIOModel readFile(String folder, String name) {
+        return this.storage.read(folder, name);
+    }
+
+    /**
+     * Method to update a file in the current node (only overwrites existing files,
+     * reports failure if file doesn't exist). A version whose clock is an ancestor of the
+     * stored clock is stale and is rejected, while a version equal to the stored one was
+     * already applied
+     *
+     * @param folder   The folder in which the file is to be updated
+     * @param name     the name of the file to be updated
+     * @param contents the contents to be written to the file
+     * @param clock    the vector clock of the new version
+     * @return true if the file was updated successfully
+     */
+    private boolean updateFile(String folder, String name, String contents, @Nullable VectorClock clock) {
+        // read file contents into ObjectIOModel, from the previous replica if it was not streamed here yet
+        ObjectIOModel ioModel = readThrough(folder, name, null);
+        if (ioModel == null || ioModel.isDeleted()) {
+            return false;
+        }
+        if (clock == null) {
+            clock = new VectorClock();
+        }
+        switch (clock.compare(ioModel.getClock())) {
+            case BEFORE:
+                System.out.println("[" + node.name + "] Rejecting stale version " + clock + " of /" + folder + "/"
+                        + name + ", stored version is " + ioModel.getClock());
+                return false;
+            case EQUAL:
+                return true;
+            default:
+                boolean status = this.storage.update(folder, name, new ObjectIOModel(clock, contents));
+                if (status) {
+                    onLocalWrite(folder, name, ioModel.getClock(), clock);
+                }
+                return status;
+        }
+    }
+
+    /**
+     * Method to store a version of an object sent by read repair, unless the version stored
+     * in the current node is the same or newer
+     *
+     * @param folder  The folder in which the file is to be written
+     * @param name    the name of the file to be written
+     * @param ioModel the version to be stored
+     * @return true if the version was stored
+     */
+    private boolean repairFile(String folder, String name, ObjectIOModel ioModel) {
+        ObjectIOModel current = readFile(folder, name);
+        boolean status;
+        if (current == null) {
+            status = this.storage.create(folder, name, ioModel);
+        } else if (current.getClock() != null
+                && ioModel.getClock().compare(current.getClock()) != VectorClock.Order.AFTER) {
+            return false;
+        } else {
+            status = this.storage.update(folder, name, ioModel);
+        }
+        if (status) {
+            onLocalWrite(folder, name, current != null ? current.getClock() : null, ioModel.getClock());
+        }
+        return status;
+    }
+
+    /**
+     * Method to delete a file in the current node, by replacing it with its delete marker. A delete
+     * whose clock is an ancestor of the stored clock is stale and is rejected. The marker is stored
+     * even if the file does not exist here, so that the deleted version is rejected if it reaches
+     * the current node later
+     *
+     * @param folder The folder in which the file is to be deleted
+     * @param name   the name of the file to be deleted
+     * @param clock  the vector clock of the delete, null to delete the version stored in the current node
+     * @return true if the file was deleted successfully, or if the same delete was already applied
+     */
+    private boolean deleteFile(String folder, String name, @Nullable VectorClock clock) {
+        ObjectIOModel current = readFile(folder, name);
+        if (clock == null) {
+            if (current == null || current.isDeleted()) {
+                return false;
+            }
+            clock = nextClock(current.getClock());
+        }
+        ObjectIOModel marker = ObjectIOModel.deleteMarker(clock);
+        if (current == null) {
+            if (this.storage.create(folder, name, marker)) {
+                onLocalWrite(folder, name, null, clock);
+            }
+            return false;
+        }
+        switch (clock.compare(current.getClock())) {
+            case BEFORE:
+                System.out.println("[" + node.name + "] Rejecting stale delete " + clock + " of /" + folder + "/"
+                        + name + ", stored version is " + current.getClock());
+                return false;
+            case EQUAL:
+                return current.isDeleted();
+            default:
+                boolean status = this.storage.update(folder, name, marker);
+                if (status) {
+                    onLocalWrite(folder, name, current.getClock(), clock);
+                }
+                return status && !current.isDeleted();
+        }
+    }
+
+    /**
+     * Method to remove a file from the current node without leaving a delete marker, such as a
+     * file which the current node no longer replicates, or a marker past its grace period
+     *
+     * @param folder The folder in which the file is to be removed
+     * @param name   the name of the file to be removed
+     * @return true if the file was removed successfully
+     */
+    private boolean removeFile(String folder, String name) {
+        ObjectIOModel current = this.merkleTrees.containsKey(folder) ? readFile(folder, name) : null;
+        boolean status = this.storage.delete(folder, name);
+        if (status && current != null) {
+            onLocalWrite(folder, name, current.getClock(), null);
+        }
+        return status;
+    }
+
+    /**
+     * Method to purge the delete markers of a bucket which are older than
+     * {@link ServerConfig#getDeleteGracePeriod()}. By then, every replica is expected to have
+     * received the delete, and the other replicas purge the same markers
+     *
+     * @param bucket name of the bucket
+     */
+    private void purgeDeleteMarkers(String bucket) {
+        long expiry = System.currentTimeMillis() - ServerConfig.getDeleteGracePeriod();
+        int purged = 0;
+        String fromKey = null;
+        SortedMap<String, ObjectIOModel> page;
+        do {
+            page = this.storage.scan(bucket, fromKey, SCAN_PAGE);
+            for (Map.Entry<String, ObjectIOModel> entry : page.entrySet()) {
+                ObjectIOModel marker = entry.getValue();
+                if (!marker.isDeleted() || getLastWriteTime(marker.getClock()) > expiry) {
+                    continue;
+                }
+                /* unless the object was written again since the scan */
+                ObjectIOModel current = readFile(bucket, entry.getKey());
+                if (current != null && current.isDeleted()
+                        && current.getClock().compare(marker.getClock()) == VectorClock.Order.EQUAL
+                        && removeFile(bucket, entry.getKey())) {
+                    purged++;
+                }
+            }
+            if (!page.isEmpty()) {
+                fromKey = page.lastKey() + "\0";
+            }
+        } while (page.size() == SCAN_PAGE);
+        if (purged > 0) {
+            System.out.println("[Storage] Purged " + purged + " delete markers of /" + bucket);
+        }
+    }
+
+    /**
+     * Method to return the time of the last write of a version of an object, such as the time of
+     * the delete of a delete marker
+     *
+     * @param clock the vector clock of the version
+     * @return the latest timestamp of the clock, 0 if it has none
+     */
+    private static long getLastWriteTime(@Nullable VectorClock clock) {
+        long time = 0;
+        if (clock != null) {
+            for (long timestamp : clock.getTimestamps()) {
+                time = Math.max(time, timestamp);
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Method to return the input model carrying a version of an object to another node
+     *
+     * @param key     key of the object
+     * @param version the version, which may be a delete marker
+     * @return the input model of the version
+     */
+    private static ObjectInputModel toInputModel(String key, ObjectIOModel version) {
+        ObjectInputModel inputModel = new ObjectInputModel();
+        inputModel.setKey(key);
+        inputModel.setValue(version.getValue());
+        inputModel.setContext(version.getClock());
+        inputModel.setDeleted(version.isDeleted());
+        return inputModel;
+    }
+
+    /**
+     * Method to return the version of an object carried by an input model received from another node
+     *
+     * @param inputModel the input model
+     * @return the version, a delete marker if the input model carries a delete
+     */
+    private static ObjectIOModel toVersion(ObjectInputModel inputModel) {
+        if (inputModel.isDeleted()) {
+            return ObjectIOModel.deleteMarker(inputModel.getContext());
+        }
+        return new ObjectIOModel(inputModel.getContext(), inputModel.getValue());
+    }
+
+    /**
+     * Method to reflect a write of the local storage in the Merkle trees shared with the other
+     * replicas of the object
+     *
+     * @param bucket   name of the bucket holding the object
+     * @param key      key of the object
+     * @param previous clock of the version replaced, null if the object did not exist
+     * @param current  clock of the version written, null if the object was deleted
+     */
+    private void onLocalWrite(String bucket, String key, @Nullable VectorClock previous,
+                              @Nullable VectorClock current) {
+        Map<String, MerkleTree> trees = this.merkleTrees.get(bucket);
+        if (trees == null) {
+            return;
+        }
+        long previousHash = MerkleTree.hashOf(key, previous);
+        long currentHash = MerkleTree.hashOf(key, current);
+        for (DynamoNode replica : getReplicas(key)) {
+            MerkleTree tree = trees.get(replica.getAddress());
+            if (tree != null && !replica.equals(this.node)) {
+                tree.update(key, previousHash, currentHash);
+            }
+        }
+    }
+
+    /**
+     * Method to return the Merkle trees of a bucket, building them if they were not used since
+     * the bucket was opened or the ring changed
+     *
+     * @param bucket name of the bucket
+     * @return address of every other node of the ring -> tree of the objects of the bucket which
+     * this node replicates together with that node
+     */
+    private Map<String, MerkleTree> getMerkleTrees(String bucket) {
+        return this.merkleTrees.computeIfAbsent(bucket, this::buildMerkleTrees);
+    }
+
+    /**
+     * Method to build the Merkle trees of a bucket with a single scan of the bucket. Writes which
+     * happen during the scan may be missed by the trees, such a drift is detected and repaired by
+     * the next synchronization
+     *
+     * @param bucket name of the bucket
+     * @return address of every other node of the ring -> tree shared with that node
+     */
+    private Map<String, MerkleTree> buildMerkleTrees(String bucket) {
+        HashMap<String, MerkleTree> trees = new HashMap<>();
+        for (DynamoNode peer : getHashingManager().getNodes()) {
+            if (!peer.equals(this.node)) {
+                trees.put(peer.getAddress(), new MerkleTree());
+            }
+        }
+        int count = 0;
+        String fromKey = null;
+        SortedMap<String, ObjectIOModel> page;
+        do {
+            page = this.storage.scan(bucket, fromKey, SCAN_PAGE);
+            for (Map.Entry<String, ObjectIOModel> entry : page.entrySet()) {
+                String key = entry.getKey();
+                List<DynamoNode> replicas = getReplicas(key);
+                if (!replicas.contains(this.node)) {
+                    continue;
+                }
+                long hash = MerkleTree.hashOf(key, entry.getValue().getClock());
+                for (DynamoNode replica : replicas) {
+                    MerkleTree tree = trees.get(replica.getAddress());
+                    if (tree != null) {
+                        tree.update(key, 0, hash);
+                    }
+                }
+                count++;
+            }
+            if (!page.isEmpty()) {
+                /* the smallest key following the last one */
+                fromKey = page.lastKey() + "\0";
+            }
+        } while (page.size() == SCAN_PAGE);
+        System.out.println("[Dynamo Server] Built Merkle trees of bucket " + bucket + " (" + count + " objects)");
+        return trees;
+    }
+
+    /**
+     * Method to read the key and clock of every object of some leaves of the tree shared with another node
+     *
+     * @param bucket name of the bucket
+     * @param peer   the other node
+     * @param leaves indexes of the leaves
+     * @return key -> clock of the objects of the leaves which both nodes replicate
+     */
+    private TreeMap<String, VectorClock> getLeafObjects(String bucket, DynamoNode peer, Set<Integer> leaves) {
+        TreeMap<String, VectorClock> objects = new TreeMap<>();
+        String fromKey = null;
+        SortedMap<String, ObjectIOModel> page;
+        do {
+            page = this.storage.scan(bucket, fromKey, SCAN_PAGE);
+            for (Map.Entry<String, ObjectIOModel> entry : page.entrySet()) {
+                String key = entry.getKey();
+                if (leaves.contains(MerkleTree.leafOf(key))) {
+                    List<DynamoNode> replicas = getReplicas(key);
+                    if (replicas.contains(this.node) && replicas.contains(peer)) {
+                        objects.put(key, entry.getValue().getClock());
+                    }
+                }
+            }
+            if (!page.isEmpty()) {
+                fromKey = page.lastKey() + "\0";
+            }
+        } while (page.size() == SCAN_PAGE);
+        return objects;
+    }
+
+    /**
+     * Method to compare the root of a Merkle tree received from another node with the root of the
+     * same tree on this node, and to synchronize both nodes if they differ
+     *
+     * @param msg the MERKLE_ROOT message received
+     */
+    private void compareMerkleRoot(DynamoMessage msg) {
+        ForwardPayload payload = (ForwardPayload) msg.payload;
+        long[] root = (long[]) payload.getInputModel();
+        MerkleTree tree = getMerkleTrees(payload.getBucketName()).get(msg.srcNode.getAddress());
+        if (tree == null || root.length != 1 || tree.getRoot() == root[0]) {
+            return;
+        }
+        String sync = payload.getBucketName() + "/" + msg.srcNode.getAddress();
+        if (this.syncs.add(sync)) {
+            try {
+                synchronizeReplica(payload.getBucketName(), msg.srcNode, tree);
+            } finally {
+                this.syncs.remove(sync);
+            }
+        }
+    }
+
+    /**
+     * Method to make this node and another replica converge on the objects of a bucket which they
+     * both replicate. The trees of both nodes are compared top-down, segments first and then the
+     * leaves of the segments which differ, so that only the keys of the leaves which differ are
+     * exchanged. Then, for every key, the node holding the older version (or no version) receives
+     * the newer one: pulled from the other replica, or pushed to it as a repair. Concurrent versions
+     * are left to the reconciliation of reads and client writes. Delete markers are compared by
+     * their clock like any other version, so a replica which missed a delete receives the marker.
+     *
+     * @param bucket name of the bucket
+     * @param peer   the other replica
+     * @param tree   the tree of this node shared with the other replica
+     */
+    @SuppressWarnings("unchecked")
+    private void synchronizeReplica(String bucket, DynamoNode peer, MerkleTree tree) {
+        long[] remoteSegments = (long[]) queryReplica(peer, MessageTypes.MERKLE_HASHES, bucket, new long[0]);
+        if (remoteSegments == null || remoteSegments.length != MerkleTree.SEGMENTS) {
+            return;
+        }
+        long[] localSegments = tree.getSegments();
+        ArrayList<Long> segmentList = new ArrayList<>();
+        for (int i = 0; i < MerkleTree.SEGMENTS; i++) {
+            if (localSegments[i] != remoteSegments[i]) {
+                segmentList.add((long) i);
+            }
+        }
+        long[] segments = segmentList.stream().mapToLong(Long::longValue).toArray();
+        if (segments.length == 0) {
+            return;
+        }
+        long[] remoteLeaves = (long[]) queryReplica(peer, MessageTypes.MERKLE_HASHES, bucket, segments);
+        if (remoteLeaves == null || remoteLeaves.length != segments.length * MerkleTree.LEAVES_PER_SEGMENT) {
+            return;
+        }
+        long[] localLeaves = tree.getLeaves(segments);
+        TreeSet<Integer> leaves = new TreeSet<>();
+        for (int i = 0; i < localLeaves.length; i++) {
+            if (localLeaves[i] != remoteLeaves[i]) {
+                leaves.add((int) segments[i / MerkleTree.LEAVES_PER_SEGMENT] * MerkleTree.LEAVES_PER_SEGMENT
+                        + i % MerkleTree.LEAVES_PER_SEGMENT);
+            }
+        }
+        ArrayList<ObjectInputModel> remoteObjects = (ArrayList<ObjectInputModel>) queryReplica(peer,
+                MessageTypes.MERKLE_KEYS, bucket, leaves.stream().mapToLong(Integer::longValue).toArray());
+        if (remoteObjects == null) {
+            return;
+        }
+
+        TreeMap<String, VectorClock> local = getLeafObjects(bucket, peer, leaves);
+        TreeMap<String, VectorClock> remote = new TreeMap<>();
+        for (ObjectInputModel object : remoteObjects) {
+            remote.put(object.getKey(), object.getContext());
+        }
+        ArrayList<String> pulls = new ArrayList<>();
+        ArrayList<String> pushes = new ArrayList<>();
+        int concurrent = 0;
+        for (Map.Entry<String, VectorClock> entry : remote.entrySet()) {
+            VectorClock clock = local.get(entry.getKey());
+            VectorClock.Order order = entry.getValue() != null ? entry.getValue().compare(clock)
+                    : clock != null ? VectorClock.Order.BEFORE : VectorClock.Order.EQUAL;
+            if (!local.containsKey(entry.getKey()) || order == VectorClock.Order.AFTER) {
+                pulls.add(entry.getKey());
+            } else if (order == VectorClock.Order.BEFORE) {
+                pushes.add(entry.getKey());
+            } else if (order == VectorClock.Order.CONCURRENT) {
+                concurrent++;
+            }
+        }
+        for (String key : local.keySet()) {
+            if (!remote.containsKey(key)) {
+                pushes.add(key);
+            }
+        }
+        System.out.println(">> ANTI-ENTROPY: /" + bucket + " with " + peer.name + " (" + peer.getAddress() + "): "
+                + leaves.size() + " leaves differ, pulling " + pulls.size() + " and pushing " + pushes.size()
+                + " objects");
+        if (pulls.isEmpty() && pushes.isEmpty() && concurrent == 0) {
+            /* both replicas hold the same objects, so a tree drifted from the storage */
+            this.merkleTrees.remove(bucket);
+            return;
+        }
+
+        for (String key : pushes) {
+            ObjectIOModel version = readFile(bucket, key);
+            if (version == null) {
+                continue;
+            }
+            ObjectInputModel inputModel = toInputModel(key, version);
+            try {
+                sendMessage(peer, new DynamoMessage(this.node, MessageTypes.OBJECT_REPAIR,
+                        new ForwardPayload(MessageTypes.OBJECT_REPAIR, bucket, inputModel, 0)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (int start = 0; start < pulls.size(); start += HANDOFF_BATCH) {
+            List<String> batch = pulls.subList(start, Math.min(start + HANDOFF_BATCH, pulls.size()));
+            ArrayList<PendingRequest> requests = new ArrayList<>(batch.size());
+            for (String key : batch) {
+                PendingRequest request = registerRequest(1, 1);
+                requests.add(request);
+                try {
+                    sendMessage(peer, new DynamoMessage(this.node, MessageTypes.OBJECT_READ,
+                            new ForwardPayload(MessageTypes.OBJECT_READ, bucket, key, request.getTxnID())));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            for (int i = 0; i < requests.size(); i++) {
+                if (awaitRequest(requests.get(i), Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    ObjectIOModel version = (ObjectIOModel) requests.get(i).getResponses().get(0).getResult();
+                    repairFile(bucket, batch.get(i), version);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to send a request to another node and wait for the result carried by its acknowledgement
+     *
+     * @param peer       the node
+     * @param type       the type of the request
+     * @param bucket     name of the bucket
+     * @param inputModel the input model of the request
+     * @return the result of the request, or null if the node did not answer in time
+     */
+    private Object queryReplica(DynamoNode peer, MessageTypes type, String bucket, Object inputModel) {
+        PendingRequest request = registerRequest(1, 1);
         try {
-            File parent = new File("/" + folder);
-            if (parent.exists()) {
-                File file = new File(parent, name);
-                if (!file.exists()) {
-                    FileUtils.write(file, json, Charset.defaultCharset(), false);
-                    status = true;
+            sendMessage(peer, new DynamoMessage(this.node, type,
+                    new ForwardPayload(type, bucket, inputModel, request.getTxnID())));
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.pendingRequests.remove(request.getTxnID());
+            return null;
+        }
+        if (!awaitRequest(request, 10)) {
+            return null;
+        }
+        return request.getResponses().get(0).getResult();
+    }
+
+    /**
+     * Method to read an object stored in this node. If the object is missing but its key belongs
+     * to a range being streamed to this node, the object is read from the source of the range and
+     * stored here, so that reads do not miss objects which were not transferred yet
+     *
+     * @param bucket    name of the bucket
+     * @param key       key of the object
+     * @param requester address of the node which requested the read, which is not read through
+     *                  to, null if the read is local
+     * @return the object, or null if neither this node nor the source holds it
+     */
+    private ObjectIOModel readThrough(String bucket, String key, @Nullable String requester) {
+        ObjectIOModel contents = readFile(bucket, key);
+        if (contents != null || this.transfers.isEmpty()) {
+            return contents;
+        }
+        long hash = getHashingManager().hash(key);
+        long now = System.nanoTime();
+        for (Map.Entry<RebalancePlan.Range, Long> transfer : this.transfers.entrySet()) {
+            if (now - transfer.getValue() > 0) {
+                this.transfers.remove(transfer.getKey());
+                continue;
+            }
+            if (!transfer.getKey().contains(hash)) {
+                continue;
+            }
+            for (String source : transfer.getKey().getNodes()) {
+                DynamoNode sourceNode = findLiveNode(source);
+                if (sourceNode == null || sourceNode == this.node || source.equals(requester)) {
+                    continue;
+                }
+                Object result = queryReplica(sourceNode, MessageTypes.OBJECT_READ, bucket, key);
+                if (result instanceof ObjectIOModel) {
+                    System.out.println(">> REBALANCE: /" + bucket + "/" + key + " read through from "
+                            + sourceNode.name + " (" + source + ")");
+                    repairFile(bucket, key, (ObjectIOModel) result);
+                    return (ObjectIOModel) result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to stream one page of a bucket to the new replicas of the keys of the page which
+     * belong to the outbound ranges of a rebalance. Once every object is acknowledged, the objects
+     * of the ranges this node no longer replicates are deleted, and the progress of the plan is
+     * saved
+     *
+     * @param plan   the plan of the rebalance
+     * @param bucket name of the bucket
+     * @return true if the page was streamed, false if it has to be tried again
+     * @throws InterruptedException if the streaming thread was interrupted
+     */
+    private boolean streamPage(RebalancePlan plan, String bucket) throws InterruptedException {
+        HashingManager<DynamoNode> ring = this.hashingManager;
+        if (ring == null) {
+            /* the ring is built on first use, only then can the targets be checked */
+            return false;
+        }
+        HashMap<String, DynamoNode> targets = new HashMap<>();
+        for (String address : plan.getTargets()) {
+            DynamoNode target = findLiveNode(address);
+            if (target != null) {
+                targets.put(address, target);
+            } else if (ring.containsNode(new DynamoNode(null, address, 0, false, 0))) {
+                System.out.println(">> REBALANCE: waiting for " + address + " to stream /" + bucket);
+                return false;
+            }
+            /* a target which left the ring since is skipped, the plan which removed it covers its ranges */
+        }
+
+        String cursor = plan.getCursor(bucket);
+        SortedMap<String, ObjectIOModel> page = this.storage.scan(bucket, cursor != null ? cursor + "\0" : null,
+                SCAN_PAGE);
+        LinkedHashMap<String, ObjectIOModel> released = new LinkedHashMap<>();
+        ArrayList<PendingRequest> requests = new ArrayList<>();
+        boolean acked = true;
+        boolean skipped = false;
+        int streamed = 0;
+        for (Map.Entry<String, ObjectIOModel> entry : page.entrySet()) {
+            RebalancePlan.Range range = plan.findOutbound(ring.hash(entry.getKey()));
+            if (range == null) {
+                continue;
+            }
+            ObjectInputModel inputModel = toInputModel(entry.getKey(), entry.getValue());
+            for (String address : range.getNodes()) {
+                DynamoNode target = targets.get(address);
+                if (target == null) {
+                    skipped = true;
+                    continue;
+                }
+                this.rebalanceThrottle.acquire(entry.getKey().length()
+                        + (inputModel.getValue() != null ? inputModel.getValue().length() : 0) + 64);
+                PendingRequest request = registerRequest(1, 1);
+                requests.add(request);
+                try {
+                    sendMessage(target, new DynamoMessage(this.node, MessageTypes.OBJECT_HANDOFF,
+                            new ForwardPayload(MessageTypes.OBJECT_HANDOFF, bucket, inputModel, request.getTxnID())));
+                } catch (IOException e) {
+                    System.out.println("[WARN] Could not stream /" + bucket + "/" + entry.getKey() + " to "
+                            + address + ": " + e.getMessage());
+                }
+                if (requests.size() == HANDOFF_BATCH) {
+                    acked &= awaitRequests(requests);
+                }
+            }
+            if (range.isRelease()) {
+                released.put(entry.getKey(), entry.getValue());
+            }
+            streamed++;
+        }
+        acked &= awaitRequests(requests);
+        if (!acked) {
+            System.out.println(">> REBALANCE: objects of /" + bucket + " were not acknowledged, retrying");
+            return false;
+        }
+
+        /* with every new replica holding the objects, this node can drop those it no longer replicates,
+         * unless they were written in the meantime */
+        if (!skipped) {
+            for (Map.Entry<String, ObjectIOModel> entry : released.entrySet()) {
+                ObjectIOModel current = readFile(bucket, entry.getKey());
+                if (current != null && current.getClock() != null
+                        && current.getClock().compare(entry.getValue().getClock()) == VectorClock.Order.EQUAL) {
+                    removeFile(bucket, entry.getKey());
                 }
             }
+        }
+        plan.advance(bucket, page.size() < SCAN_PAGE ? null : page.lastKey());
+        try {
+            plan.save(this.rebalanceDirectory);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("[WARN] Could not save rebalance plan " + plan.getId() + ": " + e.getMessage());
         }
-
-        return status;
+        if (streamed > 0) {
+            System.out.println(">> REBALANCE: " + streamed + " objects of /" + bucket + " streamed"
+                    + (skipped ? "" : ", " + released.size() + " released"));
+        }
+        return true;
     }
 
     /**
-     * Method to read a file and return its contents
+     * Method to wait for the acknowledgements of a batch of requests, within a single deadline
      *
-     * @param folder The folder in which the file is present
-     * @param name   the name of hte file
-     * @return A string representing the contents of the file
+     * @param requests the requests, cleared once they are complete
+     * @return true if every request was acknowledged successfully
      */
-    private ObjectIOModel readFile(String folder, String name) {
-        ObjectIOModel contents = null;
-        File file = new File("/" + folder + "/" + name);
-        if (file.exists()) {
-            try {
-                contents = AppConfig.getParser().deserialize(
-                        FileUtils.readFileToString(file, Charset.defaultCharset()), ObjectIOModel.class);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private boolean awaitRequests(ArrayList<PendingRequest> requests) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        boolean acked = true;
+        for (PendingRequest request : requests) {
+            acked &= awaitRequest(request, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
         }
-        return contents;
+        requests.clear();
+        return acked;
     }
 
     /**
-     * Method to update a file in the current node (only overwrites existing files,
-     * reports failure if file doesn't exist)
+     * Method to end a rebalance once every bucket is streamed: the new replicas are told that the
+     * ranges are complete, so that they stop reading them through, and the saved plan is deleted
      *
-     * @param folder   The folder in which the file is to be updated
-     * @param name     the name of the file to be updated
-     * @param contents the contents to be written to the file
-     * @param isCoord  true if the caller node is the coordinator, false otherwise
-     * @return true if the file was updated successfully
+     * @param plan the plan of the rebalance
      */
-    private boolean updateFile(String folder, String name, String contents, boolean isCoord) {
-        boolean status = false;
-        File file = new File("/" + folder + "/" + name);
-        if (file.exists()) {
+    private void finishRebalance(RebalancePlan plan) {
+        for (String address : plan.getTargets()) {
+            DynamoNode target = findLiveNode(address);
+            if (target == null) {
+                continue;
+            }
             try {
-                // read file contents into ObjectIOModel
-                ObjectIOModel ioModel = readFile(folder, name);
-                if (isCoord) {
-                    ioModel.setVersion(ioModel.getVersion() + 1);
-                }
-                ioModel.setValue(contents);
-                FileUtils.write(file, AppConfig.getParser().serialize(ioModel),
-                        Charset.defaultCharset(), false);
-                status = true;
+                sendMessage(target, new DynamoMessage(this.node, MessageTypes.REBALANCE_DONE,
+                        new ForwardPayload(MessageTypes.REBALANCE_DONE, "", plan.getBounds(address), 0)));
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        return status;
-    }
-
-    /**
-     * Method to delete a file in the current node
-     *
-     * @param folder The folder in which the file is to be deleted
-     * @param name   the name of the file to be deleted
-     * @return true if the file was deleted successfully
-     */
-    private boolean deleteFile(String folder, String name) {
-        boolean status = false;
-        File file = new File("/" + folder + "/" + name);
-        if (file.exists()) {
-            status = file.delete();
-        }
-        return status;
+        plan.delete(this.rebalanceDirectory);
+        System.out.println(">> REBALANCE: plan " + plan.getId() + " complete");
     }
 
     private class GossipReceiver implements Runnable {
@@ -943,11 +2547,10 @@ public class DynamoServer implements NotificationListener {
 
             System.out.print("[Dynamo Server] Gossip receive started");
 
+            /* init a buffer where the packets will be placed, large enough for any datagram */
+            byte[] buf = new byte[UdpTransport.MAX_DATAGRAM_SIZE];
             while (keepRunning.get()) {
                 /* Logic for receiving */
-
-                /* init a buffer where the packet will be placed */
-                byte[] buf = new byte[1500];
                 DatagramPacket p = new DatagramPacket(buf, buf.length);
                 System.out.print("[Dynamo Server] GOSSIP received ");
                 try {
@@ -956,34 +2559,42 @@ public class DynamoServer implements NotificationListener {
                     //vclock
 //                    JVec jv=new JVec(DynamoServer.this.node);
 //                    byte[] res=jv.unpackReceive(p.getData());
-//                     ByteArrayInputStream bais = new ByteArrayInputStream(res);
-                    ByteArrayInputStream bais = new ByteArrayInputStream(p.getData());
-                    ObjectInputStream ois = new ObjectInputStream(bais);
-                    Object readObject = ois.readObject();
-                    if (readObject instanceof DynamoMessage) {
-                        DynamoMessage msg = (DynamoMessage) readObject;
-                        System.out.print("from " + msg.srcNode.name);
-                        boolean status;
-                        String bucketName = null;
-                        Pair<String, ObjectInputModel> obj = null;
-                        switch (msg.type) {
-                            case PING:
-                                System.out.println("[Dynamo Server] PING recieved from " + msg.srcNode.name);
-                                break;
-                            case NODE_LIST:
-                                DynamoServer.this.mergeNodeLists(msg.srcNode, msg.payload);
-                                break;
-                            default:
-                                System.out.println("Unrecognized packet type: " + msg.type.name());
-                        }
-                    } else {
-                        System.out.println("Malformed packet!");
+                    DynamoMessage msg = MessageCodec.decode(ByteBuffer.wrap(p.getData(), 0, p.getLength()));
+                    System.out.print("from " + msg.srcNode.name);
+                    switch (msg.type) {
+                        case PING:
+                            System.out.println("[Dynamo Server] PING recieved from " + msg.srcNode.name);
+                            break;
+                        case NODE_LIST:
+                            DynamoServer.this.mergeNodeLists(msg.srcNode, msg.payload);
+                            break;
+                        case NODE_DIGEST:
+                            DynamoServer.this.answerDigest(msg.srcNode, (GossipDigest) msg.payload);
+                            break;
+                        case NODE_DIGEST_ACK:
+                            DynamoServer.this.completeDigest(msg.srcNode, (GossipDigest) msg.payload);
+                            break;
+                        case NODE_DIGEST_ACK2:
+                            DynamoServer.this.mergeNodeLists(msg.srcNode, ((GossipDigest) msg.payload).getNodes());
+                            break;
+                        case MERKLE_ROOT:
+                            /* comparing may require building the tree, do not hold up the receiver */
+                            try {
+                                DynamoServer.this.maintenance.execute(() -> DynamoServer.this.compareMerkleRoot(msg));
+                            } catch (RejectedExecutionException e) {
+                                /* the peer sends its roots again in the next anti-entropy round */
+                                System.out.println("[WARN] Merkle roots from " + msg.srcNode.name + " dropped: "
+                                        + DynamoServer.this.maintenance.describe());
+                            }
+                            break;
+                        default:
+                            System.out.println("Unrecognized packet type: " + msg.type.name());
                     }
+                } catch (ProtocolException e) {
+                    System.out.println("Malformed packet! " + e.getMessage());
                 } catch (IOException e) {
                     e.printStackTrace();
                     keepRunning.set(false);
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
                 }
             }
         }
@@ -995,7 +2606,7 @@ public class DynamoServer implements NotificationListener {
 
         MessageSender(MessageTypes type, Object payload) {
             this.sendMsg = new DynamoMessage(DynamoServer.this.node, type, payload);
-            this.sendList = new ArrayList<>(DynamoServer.this.nodeList);
+            this.sendList = new ArrayList<>(DynamoServer.this.membership.getLiveNodes());
         }
 
         MessageSender(MessageTypes type, Object payload, ArrayList<DynamoNode> sendList) {
@@ -1041,7 +2652,9 @@ public class DynamoServer implements NotificationListener {
             while (this.keepRunning.get()) {
                 try {
                     TimeUnit.MILLISECONDS.sleep(DynamoServer.this.gossipInt);
-                    DynamoServer.this.sendNodeList();
+                    DynamoServer.this.sendDigest();
+                    DynamoServer.this.updateSuspicions();
+                    DynamoServer.this.removeDeadNodes();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                     this.keepRunning.set(false);
@@ -1054,25 +2667,112 @@ public class DynamoServer implements NotificationListener {
         }
     }
 
+    /**
+     * Runnable class that starts an anti-entropy round at a time interval of
+     * {@link ServerConfig#getAntiEntropyInterval()}: the roots of the Merkle trees of every bucket
+     * shared with a random node are sent to it over the gossip transport, and that node
+     * synchronizes the buckets whose roots differ. Every {@link #PURGE_INTERVAL_MILLIS}, the delete
+     * markers past their grace period are purged.
+     */
+    private class AntiEntropy implements Runnable {
+
+        public void run() {
+            long lastPurge = System.currentTimeMillis();
+            while (!DynamoServer.this.maintenance.isShutdown()) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(ServerConfig.getAntiEntropyInterval());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (System.currentTimeMillis() - lastPurge >= PURGE_INTERVAL_MILLIS) {
+                    lastPurge = System.currentTimeMillis();
+                    for (String bucket : DynamoServer.this.storage.listBuckets()) {
+                        purgeDeleteMarkers(bucket);
+                    }
+                }
+                ArrayList<DynamoNode> peers = getLiveNodes(getStorageNodes());
+                if (peers.isEmpty()) {
+                    continue;
+                }
+                DynamoNode peer = peers.get(DynamoServer.this.random.nextInt(peers.size()));
+                for (String bucket : DynamoServer.this.storage.listBuckets()) {
+                    MerkleTree tree = getMerkleTrees(bucket).get(peer.getAddress());
+                    if (tree == null) {
+                        continue;
+                    }
+                    try {
+                        sendMessage(peer, new DynamoMessage(DynamoServer.this.node, MessageTypes.MERKLE_ROOT,
+                                new ForwardPayload(MessageTypes.MERKLE_ROOT, bucket, new long[]{tree.getRoot()}, 0)));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runnable class that runs the rebalance plans one at a time, streaming the buckets page by
+     * page at the rate allowed by {@link ServerConfig#getRebalanceBandwidth()}. A page which could
+     * not be streamed, because a new replica is down or did not acknowledge it, is tried again.
+     */
+    private class Rebalancer implements Runnable {
+
+        public void run() {
+            try {
+                while (!DynamoServer.this.maintenance.isShutdown()) {
+                    RebalancePlan plan = DynamoServer.this.rebalances.take();
+                    String bucket;
+                    while ((bucket = plan.nextBucket()) != null) {
+                        if (!streamPage(plan, bucket)) {
+                            TimeUnit.SECONDS.sleep(REBALANCE_RETRY_SECONDS);
+                        }
+                    }
+                    finishRebalance(plan);
+                }
+            } catch (InterruptedException e) {
+                /* shutting down, the saved plans resume on restart */
+            }
+        }
+    }
+
     /**
      * Method to initialize an instance of {@link HashingManager} for first time use
      *
      * @param hashFunction an instance of the hash function to be used
      */
-    private void initializeHashingManager(HashFunction hashFunction) {
+    private synchronized void initializeHashingManager(HashFunction hashFunction) {
         if (hashingManager == null) {
             // initialize hashingManager only if it is null
-            ArrayList<DynamoNode> hashNodes = new ArrayList<>();
-            for (DynamoNode node : nodeList) {
-                if (!node.isApiNode()) {
-                    hashNodes.add(node);
-                }
-            }
+            ArrayList<DynamoNode> hashNodes = getStorageNodes();
 
-            hashNodes.add(this.node);
+            /* an API gateway keeps a copy of the ring to route requests, but does not take part in it */
+            if (!this.node.isApiNode()) {
+                hashNodes.add(this.node);
+            }
 
             hashingManager = new HashingManager<>(hashNodes, hashFunction);
+
+            if (!this.node.isApiNode()) {
+                /* if this node just joined, its ranges are being streamed to it by their previous replicas */
+                HashingManager<DynamoNode> before = hashingManager.snapshot();
+                before.removeNode(this.node);
+                planRebalance(before, hashingManager.snapshot());
+            }
+            printRingBalance();
+        }
+    }
+
+    /**
+     * Method to return the ring, building it on first use
+     *
+     * @return the ring
+     */
+    private HashingManager<DynamoNode> getHashingManager() {
+        if (hashingManager == null) {
+            initializeHashingManager(hashFunction);
         }
+        return hashingManager;
     }
 
     /**
@@ -1082,501 +2782,474 @@ public class DynamoServer implements NotificationListener {
      * @return list of hash nodes
      */
     private ArrayList<DynamoNode> getHashNodes(String key) {
-        if (hashingManager == null) {
-            initializeHashingManager(new CityHash());
-        }
-
         // get all the nodes to which this record should be written
-        return hashingManager.routeNodes(key);
+        return getHashingManager().routeNodes(key);
     }
 
     /**
-     * Method to check if current node is a coordinator or not
+     * Method to return the replicas of an object, for callers which only read the list
      *
-     * @param hashNodes List of hash nodes
-     * @return true if this node is a coordinator, false otherwise
+     * @param key key of object
+     * @return the replicas, in a list which cannot be modified
      */
-    private boolean isCoordinator(@Nullable ArrayList<DynamoNode> hashNodes) {
-        if (hashNodes == null) {
-            return true;
-        }
-        return hashNodes.contains(this.node);
+    private List<DynamoNode> getReplicas(String key) {
+        return getHashingManager().getReplicas(key);
     }
 
     /**
-     * Thread to receive IO related messages and take action according to the type of message
+     * Method to return the preference list of an object: every node of the ring, in the order in
+     * which they replicate the object or stand in for its replicas
+     *
+     * @param key key of object
+     * @return list of hash nodes, starting with the replicas of the object
      */
-    @SuppressWarnings("unchecked")
-    private class ioReceiver implements Runnable {
-        private AtomicBoolean keepRunning;
+    private ArrayList<DynamoNode> getPreferenceList(String key) {
+        return getHashingManager().routeNodes(key, Integer.MAX_VALUE);
+    }
 
-        ioReceiver() {
-            keepRunning = new AtomicBoolean(true);
+    /**
+     * Method to check whether a node is currently considered alive by the gossip protocol
+     *
+     * @param node the node
+     * @return true if the node is this node, or is in the node list and not suspected to be down
+     */
+    private boolean isAlive(DynamoNode node) {
+        if (node.equals(this.node)) {
+            return true;
         }
+        DynamoNode liveNode = this.membership.getLive(node.getAddress());
+        return liveNode != null && !liveNode.isSuspected();
+    }
 
-        public void run() {
-
-            System.out.println("[Dynamo Server] IO receiver started");
-            while (keepRunning.get()) {
-
-                /* init a buffer where the packet will be placed */
-                byte[] buf = new byte[1500];
-                DatagramPacket p = new DatagramPacket(buf, buf.length);
-
-                System.out.print("[Dynamo Server] IO request received ");
-
-                try {
-                    DynamoServer.this.ioServer.receive(p);
-                    /* Parse this packet into an object */
-                    ByteArrayInputStream bais = new ByteArrayInputStream(p.getData());
-                    ObjectInputStream ois = new ObjectInputStream(bais);
-                    Object readObject = ois.readObject();
-                    if (readObject instanceof DynamoMessage) {
-                        DynamoMessage msg = (DynamoMessage) readObject;
-                        System.out.println("from " + msg.srcNode.name);
-                        boolean status;
-                        ArrayList<ObjectIOModel> list = null;
-                        String bucketName = null;
-                        Pair<String, ?> obj = null;
-                        switch (msg.type) {
-                            case PING:
-                                System.out.println("[Dynamo Server] PING recieved from " + msg.srcNode.name);
-                                break;
-                            case BUCKET_CREATE:
-                                bucketName = (String) msg.payload;
-                                status = createFolder(bucketName);
-                                System.out.println("[" + node.name + "] Folder " + bucketName + " created: " + status);
-                                /* TODO: Change txnID when implementing parallel IO */
-                                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                        MessageTypes.ACKNOWLEDGEMENT,
-                                        new AckPayload(MessageTypes.BUCKET_CREATE, bucketName, 0, status)));
-                                break;
-                            case BUCKET_DELETE:
-                                bucketName = (String) msg.payload;
-                                status = deleteFolder(bucketName);
-                                System.out.println("[" + node.name + "] Folder " + bucketName + " deleted: " + status);
-                                /* TODO: Change txnID when implementing parallel IO */
-                                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                        MessageTypes.ACKNOWLEDGEMENT,
-                                        new AckPayload(MessageTypes.BUCKET_DELETE, bucketName, 0, status)));
-                                break;
-                            case OBJECT_CREATE:
-                                obj = (Pair<String, ObjectInputModel>) msg.payload;
-                                status = createFile(obj.getKey(), ((ObjectInputModel) obj.getValue()).getKey(),
-                                        ((ObjectInputModel) obj.getValue()).getValue(), false);
-                                System.out.println("[" + node.name + "] File /" + obj.getKey() + "/"
-                                        + ((ObjectInputModel) obj.getValue()).getKey() + " created: " + status);
-                                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                        MessageTypes.ACKNOWLEDGEMENT,
-                                        new AckPayload(MessageTypes.OBJECT_CREATE,
-                                                ((ObjectInputModel) obj.getValue()).getKey(),
-                                                2, status)));
-                                break;
-                            case OBJECT_READ:
-                                /* TODO: Read using ObjectIOModel and get content and version both
-                                 * and serialize payload in form Pair<String, Long> */
-                                obj = (Pair<String, String>) msg.payload;
-                                ObjectIOModel contents = readFile(obj.getKey(), String.valueOf(obj.getValue()));
-                                System.out.println("[" + node.name + "] File /" + obj.getKey() + "/"
-                                        + obj.getValue() + " read: " + contents);
-                                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                        MessageTypes.ACKNOWLEDGEMENT, contents));
-                                break;
-                            case OBJECT_UPDATE:
-                                obj = (Pair<String, ObjectInputModel>) msg.payload;
-                                status = updateFile(obj.getKey(),
-                                        ((ObjectInputModel) obj.getValue()).getKey(),
-                                        ((ObjectInputModel) obj.getValue()).getValue(), false);
-                                System.out.println("[" + node.name + "] File /" + obj.getKey() + "/"
-                                        + ((ObjectInputModel) obj.getValue()).getKey() + " updated: " + status);
-                                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                        MessageTypes.ACKNOWLEDGEMENT,
-                                        new AckPayload(MessageTypes.OBJECT_UPDATE,
-                                                obj.getKey() + "/" + ((ObjectInputModel) obj.getValue()).getKey(),
-                                                2, status)));
-                                break;
-                            case OBJECT_DELETE:
-                                obj = (Pair<String, String>) msg.payload;
-                                status = deleteFile(obj.getKey(), String.valueOf(obj.getValue()));
-                                System.out.println("[" + node.name + "] File /" + obj.getKey() + "/"
-                                        + obj.getValue() + " deleted: " + status);
-                                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                        MessageTypes.ACKNOWLEDGEMENT,
-                                        new AckPayload(MessageTypes.OBJECT_DELETE,
-                                                obj.getKey() + "/" + obj.getValue(),
-                                                2, status)));
-                                break;
-                            case FORWARD:
-                                ForwardPayload payload = (ForwardPayload) msg.payload;
-
-                                // get the list of hash nodes if applicable
-                                ArrayList<DynamoNode> hashNodes = null;
-                                if (payload.getRequestType() == MessageTypes.OBJECT_DELETE ||
-                                        payload.getRequestType() == MessageTypes.OBJECT_READ) {
-                                    hashNodes = getHashNodes(String.valueOf(payload.getInputModel()));
-                                } else if (payload.getRequestType() == MessageTypes.OBJECT_CREATE ||
-                                        payload.getRequestType() == MessageTypes.OBJECT_UPDATE) {
-                                    hashNodes = getHashNodes(((ObjectInputModel) payload.getInputModel()).getKey());
-                                }
-
-                                boolean isCoord = isCoordinator(hashNodes);
-
-                                switch (payload.getRequestType()) {
-                                    case BUCKET_CREATE:
-                                        status = createBucket(payload.getBucketName());
-                                        break;
-                                    case BUCKET_DELETE:
-                                        status = deleteBucket(payload.getBucketName());
-                                        break;
-                                    case OBJECT_CREATE:
-                                        if (isCoord) {
-                                            System.out.println("~DEBUG~ addRecord() being called");
-                                            assert hashNodes != null;
-                                            status = addRecord(payload.getBucketName(),
-                                                    (ObjectInputModel) payload.getInputModel(),
-                                                    hashNodes);
-                                        } else {
-                                            // forward to random node from hashNodes
-                                            forwardToRandomNode(payload, hashNodes, msg.srcNode);
-                                            status = true; /* TODO: temp */
-                                        }
-                                        break;
-                                    case OBJECT_UPDATE:
-                                        if (isCoord) {
-                                            System.out.println("~DEBUG~ updateRecord() being called");
-                                            assert hashNodes != null;
-                                            status = updateRecord(payload.getBucketName(),
-                                                    (ObjectInputModel) payload.getInputModel(),
-                                                    hashNodes);
-                                        } else {
-                                            // forward to random node from hashNodes
-                                            forwardToRandomNode(payload, hashNodes, msg.srcNode);
-                                            status = true; /* TODO: temp */
-                                        }
-                                        break;
-                                    case OBJECT_DELETE:
-                                        System.out.println("~DEBUG~ deleteRecord() being called");
-                                        assert hashNodes != null;
-                                        status = deleteRecord(payload.getBucketName(),
-                                                String.valueOf(payload.getInputModel()), hashNodes);
-                                        break;
-                                    case OBJECT_READ:
-                                        System.out.println("~DEBUG~ readRecord() being called");
-                                        /* Make it return a list, and pass the list to
-                                            FORWARD_ACK_READ
-                                         */
-                                        assert hashNodes != null;
-                                        list = readRecord(payload.getBucketName(),
-                                                String.valueOf(payload.getInputModel()), hashNodes);
-                                        status = true;  /* TODO: temp */
-                                        break;
-                                    default:
-                                        System.out.println(">> Unknown request forwarded!");
-                                        status = false;
-                                }
-
-                                // return to ForwardReceiver
-                                    if (payload.getRequestType() == MessageTypes.OBJECT_READ) {
-                                        /* something more needs to be sent back in case of READ */
-                                        sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                                MessageTypes.FORWARD_ACK_READ, list));
-                                    } else if ((payload.getRequestType() == MessageTypes.OBJECT_CREATE && isCoord) ||
-                                            (payload.getRequestType() == MessageTypes.OBJECT_UPDATE && isCoord) ||
-                                            (payload.getRequestType() == MessageTypes.BUCKET_CREATE) ||
-                                            (payload.getRequestType() == MessageTypes.BUCKET_DELETE) ||
-                                            (payload.getRequestType() == MessageTypes.OBJECT_DELETE)) {
-                                        sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
-                                                MessageTypes.FORWARD_ACK, status));
-                                    }
-                                break;
-                            default:
-                                System.out.println("Unrecognized packet type: " + msg.type.name());
-                        }
-                    } else {
-                        System.out.println("Malformed packet!");
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    keepRunning.set(false);
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Method to suspect the nodes of the node list whose heartbeats are late, according to their
+     * failure detector. A suspected node stays in the node list and on the ring, but is skipped by
+     * requests, and its writes are handed to stand-ins, until a newer heartbeat of it is received
+     */
+    private void updateSuspicions() {
+        long now = System.currentTimeMillis();
+        double threshold = ServerConfig.getPhiThreshold();
+        for (DynamoNode localNode : this.membership.getLiveNodes()) {
+            double phi = localNode.getDetector().phi(now);
+            if (!localNode.isSuspected() && phi > threshold) {
+                localNode.setSuspected(true);
+                System.out.println(">> SUSPECT: " + localNode.name + " (" + localNode.getAddress()
+                        + ") is suspected to be down, phi = " + String.format("%.1f", phi));
             }
         }
     }
 
     /**
-     * Runnable class that receives Acknowledgement message from other nodes. Usually launched when
-     * we have sent a request to a number of nodes, and are waiting for ACK from them to ensure
-     * quorum is satisfied.
+     * Method to look a node up by its address
+     *
+     * @param address address of the node
+     * @return this node, or the node of the node list having the address, null if it is not alive
      */
-    private class AckReceiver extends Thread {
-        private AtomicBoolean keepRunning;
-        private DatagramSocket ackServer;
-        private AtomicBoolean status;
-        private int numReplicas;
-        private int quorum;
+    private DynamoNode findLiveNode(String address) {
+        if (address.equals(this.node.getAddress())) {
+            return this.node;
+        }
+        return this.membership.getLive(address);
+    }
 
-        AckReceiver(AtomicBoolean status) throws SocketException {
-            this.keepRunning = new AtomicBoolean(true);
-            this.ackServer = new DatagramSocket(DynamoServer.this.ackPort);
-            this.status = status;
-            this.numReplicas = DynamoServer.this.nodeList.size() - 1;
-            this.quorum = numReplicas;
+    /**
+     * Method to return the nodes of a list which are alive
+     *
+     * @param nodes list of nodes
+     * @return a new list holding the nodes which are alive
+     */
+    private ArrayList<DynamoNode> getLiveNodes(ArrayList<DynamoNode> nodes) {
+        ArrayList<DynamoNode> liveNodes = new ArrayList<>();
+        for (DynamoNode node : nodes) {
+            if (isAlive(node)) {
+                liveNodes.add(node);
+            }
         }
+        return liveNodes;
+    }
 
-        AckReceiver(AtomicBoolean status, int size, int quorum) throws SocketException {
-            this(status);
-            this.numReplicas = size;
-            this.quorum = quorum;
+    /**
+     * Method to check if current node is a coordinator or not
+     *
+     * @param hashNodes List of hash nodes
+     * @return true if this node is a coordinator, false otherwise
+     */
+    private boolean isCoordinator(@Nullable ArrayList<DynamoNode> hashNodes) {
+        if (hashNodes == null) {
+            return true;
         }
+        return hashNodes.contains(this.node);
+    }
 
-        @Override
-        public void run() {
-            int receives = 0;
-            int success = 0;
-            System.out.println(">> ACK: quorum init: " + numReplicas + " receives init : " + receives);
-            while (keepRunning.get()) {
-                /* init a buffer where the packet will be placed */
-                byte[] buf = new byte[1500];
-                DatagramPacket p = new DatagramPacket(buf, buf.length);
-                System.out.print("[Dynamo Server] Acknowledgement received ");
-                try {
-                    this.ackServer.receive(p);
-                    /* Parse this packet into an object */
-                    ByteArrayInputStream bais = new ByteArrayInputStream(p.getData());
-                    ObjectInputStream ois = new ObjectInputStream(bais);
-                    Object readObject = ois.readObject();
-                    if (readObject instanceof DynamoMessage) {
-                        // TODO: Update method to manage successful receives vs. no. of receives
-                        DynamoMessage msg = (DynamoMessage) readObject;
-                        System.out.println("from " + msg.srcNode.name);
-
-                        receives++;
-                        System.out.println(">> ACK: quorum: " + numReplicas + " receives: " + receives);
-                        AckPayload payload = (AckPayload) msg.payload;
-//                        this.status.set(this.status.get() & (payload.isStatus()));
-                        if (payload.isStatus()) {
-                            success++;
-                        }
-                        /* TODO: track separate receives by txnID */
-                        if (receives >= numReplicas || success >= quorum) {
-                            if (success >= quorum) {
-                                status.set(true);
-                            } else {
-                                status.set(false);
-                            }
-                            System.out.println(">> ACK: Quorum achieved! Success!");
-                            switch (payload.getRequestType()) {
-                                case BUCKET_CREATE:
-                                    System.out.println(">> ACK: Quorum achieved for " + payload.getIdentifier()
-                                            + ": Setting BUCKET_CREATE response");
-                                    break;
-                                case BUCKET_DELETE:
-                                    System.out.println(">> ACK: Quorum achieved for " + payload.getIdentifier()
-                                            + ": Setting BUCKET_DELETE response");
-                                    break;
-                                case OBJECT_CREATE:
-                                    System.out.println(">> ACK: Quorum achieved for " + payload.getIdentifier()
-                                            + ": Setting OBJECT_CREATE response");
-                                    break;
-                                case OBJECT_READ:
-                                    System.out.println(">> ACK: Quorum achieved for " + payload.getIdentifier()
-                                            + ": Setting OBJECT_READ response");
-                                    break;
-                                case OBJECT_UPDATE:
-                                    System.out.println(">> ACK: Quorum achieved for " + payload.getIdentifier()
-                                            + ": Setting OBJECT_UPDATE response");
-                                    break;
-                                case OBJECT_DELETE:
-                                    System.out.println(">> ACK: Quorum achieved for " + payload.getIdentifier()
-                                            + ": Setting OBJECT_DELETE response");
-                                    break;
-                                default:
-                                    System.out.println("Unrecognized packet type!");
-                            }
-                            this.keepRunning.set(false);
+    /**
+     * Method to take action on a data-path message received by the TCP transport. Runs on the
+     * transport's selector thread, so anything that may block is handed to a thread pool: the
+     * coordination pool for forwarded requests, the disk pool for replica requests. A request
+     * arriving while its pool is full is answered right away with an "overloaded" status
+     *
+     * @param msg the message received
+     */
+    private void onDataMessage(DynamoMessage msg) {
+        System.out.println("[Dynamo Server] " + msg.type.name() + " received from " + msg.srcNode.name);
+        try {
+            switch (msg.type) {
+                case ACKNOWLEDGEMENT:
+                case FORWARD_ACK:
+                case FORWARD_ACK_READ:
+                    dispatchAck(msg);
+                    break;
+                case FORWARD:
+                    /* coordination blocks on quorum, do not hold up the receiver */
+                    this.coordination.execute(() -> handleForward(msg));
+                    break;
+                default:
+                    this.disk.execute(() -> {
+                        try {
+                            handleRequest(msg);
+                        } catch (IOException e) {
+                            e.printStackTrace();
                         }
-                    } else {
-                        System.out.println("Malformed packet!");
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    this.keepRunning.set(false);
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (!this.ackServer.isClosed()) {
-                this.ackServer.close();
+                    });
             }
+        } catch (RejectedExecutionException e) {
+            rejectRequest(msg);
         }
+    }
 
-        @Override
-        public void interrupt() {
-            super.interrupt();
-            if (!this.ackServer.isClosed()) {
-                this.ackServer.close();
-            }
-            this.keepRunning.set(false);
+    /**
+     * Method to answer a request which could not be run because its thread pool is full, with an
+     * acknowledgement whose status is false and whose identifier is {@link #OVERLOADED}, so that
+     * the sender does not wait for it to time out
+     *
+     * @param msg the request rejected
+     */
+    private void rejectRequest(DynamoMessage msg) {
+        if (!(msg.payload instanceof ForwardPayload) || ((ForwardPayload) msg.payload).getTxnID() == 0) {
+            System.out.println("[WARN] " + msg.type.name() + " from " + msg.srcNode.name + " dropped, server overloaded");
+            return;
+        }
+        ForwardPayload payload = (ForwardPayload) msg.payload;
+        MessageTypes ackType = MessageTypes.ACKNOWLEDGEMENT;
+        MessageTypes requestType = msg.type;
+        if (msg.type == MessageTypes.FORWARD) {
+            requestType = payload.getRequestType();
+            ackType = requestType == MessageTypes.OBJECT_READ ? MessageTypes.FORWARD_ACK_READ : MessageTypes.FORWARD_ACK;
+        }
+        System.out.println("[WARN] " + requestType.name() + " from " + msg.srcNode.name + " rejected, server overloaded");
+        try {
+            sendMessage(msg.srcNode, new DynamoMessage(this.node, ackType,
+                    new AckPayload(requestType, OVERLOADED, payload.getTxnID(), false)));
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Runnable class that receives ACKs for READS from nodes and the read value. Ensures read quorum.
+     * Method to perform the action requested by a replica request and acknowledge it
+     * to the sender, using the transaction ID of the request
+     *
+     * @param msg the message received
+     * @throws IOException if the acknowledgement could not be sent
      */
-    private class ReadReceiver extends Thread {
-        private AtomicBoolean keepRunning;
-        private DatagramSocket readServer;
-        private AtomicBoolean status;
-        private int quorum;
-        private int numReplicas;
-        private ArrayList<ObjectIOModel> out;
-
-        ReadReceiver(int size, int quorum, ArrayList<ObjectIOModel> out, AtomicBoolean status) throws SocketException {
-            keepRunning = new AtomicBoolean(true);
-            readServer = new DatagramSocket(DynamoServer.this.ackPort);
-            this.quorum = quorum;
-            this.numReplicas = size;
-            this.out = out;
-            this.status = status;
+    private void handleRequest(DynamoMessage msg) throws IOException {
+        boolean status;
+        ForwardPayload payload;
+        ObjectInputModel inputModel;
+        if (msg.payload instanceof ForwardPayload && ((ForwardPayload) msg.payload).getHint() != null) {
+            /* this node stands in for a replica which is down, keep the write aside for it */
+            payload = (ForwardPayload) msg.payload;
+            status = storeHint(payload.getHint(), msg.type, payload.getBucketName(), payload.getInputModel());
+            System.out.println("[" + node.name + "] Hinted " + msg.type.name() + " in /" + payload.getBucketName()
+                    + " for " + payload.getHint() + " stored: " + status);
+            sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                    MessageTypes.ACKNOWLEDGEMENT,
+                    new AckPayload(msg.type, payload.getBucketName(), payload.getTxnID(), status)));
+            return;
         }
-
-        @Override
-        public void run() {
-            int receives = 0;
-            int success = 0;
-            System.out.println(">> READ RECEIVE: quorum init: " + quorum + " receives init : " + receives);
-            while (keepRunning.get()) {
-                /* Logic for receiving */
-                /* init a buffer where the packet will be placed */
-                byte[] buf = new byte[1500];
-                DatagramPacket p = new DatagramPacket(buf, buf.length);
-                System.out.print("[Dynamo Server] Read receive request received ");
-                try {
-                    this.readServer.receive(p);
-                    /* Parse this packet into an object */
-                    ByteArrayInputStream bais = new ByteArrayInputStream(p.getData());
-                    ObjectInputStream ois = new ObjectInputStream(bais);
-                    Object readObject = ois.readObject();
-                    if (readObject instanceof DynamoMessage) {
-                        DynamoMessage msg = (DynamoMessage) readObject;
-                        System.out.println("from " + msg.srcNode.name);
-
-                        receives++;
-                        System.out.println(">> READ RECEIVE: quorum: " + quorum + " receives: " + receives);
-
-                        ObjectIOModel payload = (ObjectIOModel) msg.payload;
-                        if (payload != null && !payload.getValue().isEmpty()) {
-                            success++;
-                            this.out.add(payload);
-                        }
-
-                        if (success >= quorum) {
-                            this.status.set(true);
-                        }
-                        /* TODO: track separate receives by txnID */
-                        if (receives >= numReplicas) {
-                            System.out.println(">> READ RECEIVE: Replicas response achieved! Success!");
-                            this.keepRunning.set(false);
+        switch (msg.type) {
+            case PING:
+                System.out.println("[Dynamo Server] PING recieved from " + msg.srcNode.name);
+                break;
+            case BUCKET_CREATE:
+                payload = (ForwardPayload) msg.payload;
+                status = createFolder(payload.getBucketName());
+                System.out.println("[" + node.name + "] Folder " + payload.getBucketName() + " created: " + status);
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.BUCKET_CREATE, payload.getBucketName(),
+                                payload.getTxnID(), status)));
+                break;
+            case BUCKET_DELETE:
+                payload = (ForwardPayload) msg.payload;
+                status = deleteFolder(payload.getBucketName());
+                System.out.println("[" + node.name + "] Folder " + payload.getBucketName() + " deleted: " + status);
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.BUCKET_DELETE, payload.getBucketName(),
+                                payload.getTxnID(), status)));
+                break;
+            case OBJECT_CREATE:
+                payload = (ForwardPayload) msg.payload;
+                inputModel = (ObjectInputModel) payload.getInputModel();
+                status = createFile(payload.getBucketName(), inputModel.getKey(), inputModel.getValue(),
+                        inputModel.getContext());
+                System.out.println("[" + node.name + "] File /" + payload.getBucketName() + "/"
+                        + inputModel.getKey() + " created: " + status);
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.OBJECT_CREATE, inputModel.getKey(),
+                                payload.getTxnID(), status)));
+                break;
+            case OBJECT_READ:
+                payload = (ForwardPayload) msg.payload;
+                ObjectIOModel contents = readThrough(payload.getBucketName(), String.valueOf(payload.getInputModel()),
+                        msg.srcNode.getAddress());
+                System.out.println("[" + node.name + "] File /" + payload.getBucketName() + "/"
+                        + payload.getInputModel() + " read: " + contents);
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.OBJECT_READ,
+                                payload.getBucketName() + "/" + payload.getInputModel(),
+                                payload.getTxnID(), contents != null, contents)));
+                break;
+            case OBJECT_UPDATE:
+                payload = (ForwardPayload) msg.payload;
+                inputModel = (ObjectInputModel) payload.getInputModel();
+                status = updateFile(payload.getBucketName(), inputModel.getKey(), inputModel.getValue(),
+                        inputModel.getContext());
+                System.out.println("[" + node.name + "] File /" + payload.getBucketName() + "/"
+                        + inputModel.getKey() + " updated: " + status);
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.OBJECT_UPDATE,
+                                payload.getBucketName() + "/" + inputModel.getKey(),
+                                payload.getTxnID(), status)));
+                break;
+            case OBJECT_REPAIR:
+                /* read repair is best effort, the coordinator does not wait for an acknowledgement */
+                payload = (ForwardPayload) msg.payload;
+                inputModel = (ObjectInputModel) payload.getInputModel();
+                status = repairFile(payload.getBucketName(), inputModel.getKey(), toVersion(inputModel));
+                System.out.println("[" + node.name + "] File /" + payload.getBucketName() + "/"
+                        + inputModel.getKey() + " repaired: " + status);
+                break;
+            case MERKLE_HASHES:
+                /* hashes of the segments, or of the leaves of the requested segments */
+                payload = (ForwardPayload) msg.payload;
+                long[] segments = (long[]) payload.getInputModel();
+                MerkleTree tree = getMerkleTrees(payload.getBucketName()).get(msg.srcNode.getAddress());
+                if (tree == null) {
+                    tree = new MerkleTree();
+                }
+                boolean valid = true;
+                for (long segment : segments) {
+                    valid &= segment >= 0 && segment < MerkleTree.SEGMENTS;
+                }
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.MERKLE_HASHES, payload.getBucketName(), payload.getTxnID(), valid,
+                                !valid ? null : segments.length == 0 ? tree.getSegments() : tree.getLeaves(segments))));
+                break;
+            case NODE_STATS:
+                payload = (ForwardPayload) msg.payload;
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.NODE_STATS, this.node.name, payload.getTxnID(), true,
+                                getNodeMetrics())));
+                break;
+            case MERKLE_KEYS:
+                /* keys and clocks of the objects of the requested leaves */
+                payload = (ForwardPayload) msg.payload;
+                TreeSet<Integer> leaves = new TreeSet<>();
+                for (long leaf : (long[]) payload.getInputModel()) {
+                    leaves.add((int) leaf);
+                }
+                ArrayList<ObjectInputModel> objects = new ArrayList<>();
+                for (Map.Entry<String, VectorClock> entry
+                        : getLeafObjects(payload.getBucketName(), msg.srcNode, leaves).entrySet()) {
+                    ObjectInputModel object = new ObjectInputModel();
+                    object.setKey(entry.getKey());
+                    object.setContext(entry.getValue());
+                    objects.add(object);
+                }
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.MERKLE_KEYS, payload.getBucketName(), payload.getTxnID(), true,
+                                objects)));
+                break;
+            case OBJECT_HANDOFF:
+                /* a hinted write, or an object streamed by a rebalance. It is consumed even if this node
+                 * already holds the same or a newer version, but not if this node could not store it */
+                payload = (ForwardPayload) msg.payload;
+                String key;
+                if (payload.getInputModel() instanceof ObjectInputModel) {
+                    inputModel = (ObjectInputModel) payload.getInputModel();
+                    key = inputModel.getKey();
+                    ObjectIOModel handedOff = toVersion(inputModel);
+                    status = repairFile(payload.getBucketName(), key, handedOff);
+                    if (!status && readFile(payload.getBucketName(), key) == null) {
+                        /* the bucket may have been created while this node was down */
+                        createFolder(payload.getBucketName());
+                        status = repairFile(payload.getBucketName(), key, handedOff);
+                    }
+                    status = status || readFile(payload.getBucketName(), key) != null;
+                } else {
+                    key = String.valueOf(payload.getInputModel());
+                    deleteFile(payload.getBucketName(), key, null);
+                    status = true;
+                }
+                System.out.println("[" + node.name + "] Handed off write of /" + payload.getBucketName() + "/"
+                        + key + " applied: " + status);
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.OBJECT_HANDOFF, payload.getBucketName() + "/" + key,
+                                payload.getTxnID(), status)));
+                break;
+            case REBALANCE_DONE:
+                /* the sender streamed these ranges to this node, their reads no longer go through to it */
+                payload = (ForwardPayload) msg.payload;
+                long[] bounds = (long[]) payload.getInputModel();
+                for (RebalancePlan.Range range : this.transfers.keySet()) {
+                    for (int i = 0; i + 1 < bounds.length; i += 2) {
+                        if (range.getStart() == bounds[i] && range.getEnd() == bounds[i + 1]
+                                && range.getNodes().contains(msg.srcNode.getAddress())) {
+                            this.transfers.remove(range);
                         }
-                    } else {
-                        System.out.println("Malformed packet!");
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    this.keepRunning.set(false);
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
                 }
-            }
-            if (!this.readServer.isClosed()) {
-                this.readServer.close();
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            super.interrupt();
-            if (!this.readServer.isClosed()) {
-                this.readServer.close();
-            }
-            this.keepRunning.set(false);
+                System.out.println(">> REBALANCE: " + bounds.length / 2 + " ranges received from "
+                        + msg.srcNode.name + " (" + msg.srcNode.getAddress() + ")");
+                break;
+            case OBJECT_DELETE:
+                payload = (ForwardPayload) msg.payload;
+                inputModel = (ObjectInputModel) payload.getInputModel();
+                status = deleteFile(payload.getBucketName(), inputModel.getKey(), inputModel.getContext());
+                System.out.println("[" + node.name + "] File /" + payload.getBucketName() + "/"
+                        + inputModel.getKey() + " deleted: " + status);
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.ACKNOWLEDGEMENT,
+                        new AckPayload(MessageTypes.OBJECT_DELETE,
+                                payload.getBucketName() + "/" + inputModel.getKey(),
+                                payload.getTxnID(), status)));
+                break;
+            default:
+                System.out.println("Unrecognized packet type: " + msg.type.name());
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private class ReceiveFromRandNode extends Thread {
-        //        private AtomicBoolean keepRunning;
-        private DatagramSocket randRecvServer;
-        private OutputModel outputModel;
-
-        ReceiveFromRandNode(OutputModel outputModel) throws SocketException {
-//            keepRunning = new AtomicBoolean(true);
-            randRecvServer = new DatagramSocket(DynamoServer.this.ackPort);
-            this.outputModel = outputModel;
-        }
-
-        @Override
-        public void run() {
-//            while (keepRunning.get()) {
-            /* Logic for receiving */
-            System.out.println(">> REST: randRecv: init");
-            /* init a buffer where the packet will be placed */
-            byte[] buf = new byte[1500];
-            DatagramPacket p = new DatagramPacket(buf, buf.length);
-            try {
-                this.randRecvServer.receive(p);
-                /* Parse this packet into an object */
-                ByteArrayInputStream bais = new ByteArrayInputStream(p.getData());
-                ObjectInputStream ois = new ObjectInputStream(bais);
-                Object readObject = ois.readObject();
-                if (readObject instanceof DynamoMessage) {
-                    // Receive from rand node and set output
-                    DynamoMessage msg = (DynamoMessage) readObject;
-                    switch (msg.type) {
-                        case FORWARD_ACK:
-                            boolean status = (boolean) ((DynamoMessage) readObject).payload;
-                            outputModel.setStatus(status);
-                            break;
-                        case FORWARD_ACK_READ:
-                            ArrayList<ObjectIOModel> list =
-                                    (ArrayList<ObjectIOModel>) msg.payload;
-                            StringBuilder str = new StringBuilder();
-                            /* iterate list and append to output string */
-                            for (ObjectIOModel oim : list) {
-                                str.append("<value: ").append(oim.getValue())
-                                        .append(" version: ").append(oim.getVersion()).append("> ");
-                            }
-                            outputModel.setResponse(str.toString());
-                            outputModel.setStatus(true);
-                            break;
-                        default:
-                            System.out.println("Unrecognized Ack");
-                    }
+    /**
+     * Method to coordinate a request forwarded by the API gateway (or by a non-coordinator node),
+     * and acknowledge the result to the API gateway using the transaction ID of the request
+     *
+     * @param msg the FORWARD message received
+     */
+    private void handleForward(DynamoMessage msg) {
+        boolean status;
+        ArrayList<ObjectIOModel> list = null;
+        ForwardPayload payload = (ForwardPayload) msg.payload;
+
+        // get the list of hash nodes if applicable
+        String key = getRoutingKey(payload.getRequestType(), payload.getInputModel());
+        ArrayList<DynamoNode> hashNodes = key != null ? getHashNodes(key) : null;
+
+        /* with every replica down, this node coordinates the write and hands it to stand-ins */
+        boolean isCoord = isCoordinator(hashNodes) || (hashNodes != null && getLiveNodes(hashNodes).isEmpty());
+
+        switch (payload.getRequestType()) {
+            case BUCKET_CREATE:
+                status = createBucket(payload.getBucketName());
+                break;
+            case BUCKET_DELETE:
+                status = deleteBucket(payload.getBucketName());
+                break;
+            case OBJECT_CREATE:
+                if (isCoord) {
+                    System.out.println("~DEBUG~ addRecord() being called");
+                    assert hashNodes != null;
+                    status = addRecord(payload.getBucketName(),
+                            (ObjectInputModel) payload.getInputModel(),
+                            hashNodes);
                 } else {
-                    System.out.println("Malformed packet!");
+                    // forward to random node from hashNodes
+                    forwardToRandomNode(payload, hashNodes, msg.srcNode);
+                    status = true; /* TODO: temp */
                 }
-            } catch (IOException e) {
-                outputModel.setResponse(e.getMessage());
-                outputModel.setStatus(false);
-                //e.printStackTrace();
-//                    keepRunning.set(false);
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-            }
-//            }
-            if (!randRecvServer.isClosed()) {
-                randRecvServer.close();
-            }
+                break;
+            case OBJECT_UPDATE:
+                if (isCoord) {
+                    System.out.println("~DEBUG~ updateRecord() being called");
+                    assert hashNodes != null;
+                    status = updateRecord(payload.getBucketName(),
+                            (ObjectInputModel) payload.getInputModel(),
+                            hashNodes);
+                } else {
+                    // forward to random node from hashNodes
+                    forwardToRandomNode(payload, hashNodes, msg.srcNode);
+                    status = true; /* TODO: temp */
+                }
+                break;
+            case OBJECT_DELETE:
+                System.out.println("~DEBUG~ deleteRecord() being called");
+                assert hashNodes != null;
+                status = deleteRecord(payload.getBucketName(),
+                        String.valueOf(payload.getInputModel()), hashNodes);
+                break;
+            case OBJECT_READ:
+                System.out.println("~DEBUG~ readRecord() being called");
+                /* Make it return a list, and pass the list to
+                    FORWARD_ACK_READ
+                 */
+                assert hashNodes != null;
+                list = readRecord(payload.getBucketName(),
+                        String.valueOf(payload.getInputModel()), hashNodes);
+                status = true;  /* TODO: temp */
+                break;
+            default:
+                System.out.println(">> Unknown request forwarded!");
+                status = false;
         }
 
-        @Override
-        public void interrupt() {
-            super.interrupt();
-            if (!this.randRecvServer.isClosed()) {
-                this.randRecvServer.close();
+        // return to the API gateway, which awaits the txnID of the forwarded request
+        try {
+            if (payload.getRequestType() == MessageTypes.OBJECT_READ) {
+                /* something more needs to be sent back in case of READ */
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.FORWARD_ACK_READ,
+                        new AckPayload(payload.getRequestType(), String.valueOf(payload.getInputModel()),
+                                payload.getTxnID(), status, list)));
+            } else if ((payload.getRequestType() == MessageTypes.OBJECT_CREATE && isCoord) ||
+                    (payload.getRequestType() == MessageTypes.OBJECT_UPDATE && isCoord) ||
+                    (payload.getRequestType() == MessageTypes.BUCKET_CREATE) ||
+                    (payload.getRequestType() == MessageTypes.BUCKET_DELETE) ||
+                    (payload.getRequestType() == MessageTypes.OBJECT_DELETE)) {
+                sendMessage(msg.srcNode, new DynamoMessage(DynamoServer.this.node,
+                        MessageTypes.FORWARD_ACK,
+                        new AckPayload(payload.getRequestType(), payload.getBucketName(),
+                                payload.getTxnID(), status)));
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method to hand an acknowledgement to the in-flight request having the same transaction ID,
+     * so that any number of requests can await their quorum at the same time.
+     *
+     * @param msg the acknowledgement received
+     */
+    private void dispatchAck(DynamoMessage msg) {
+        if (!(msg.payload instanceof AckPayload)) {
+            System.out.println("Malformed packet!");
+            return;
+        }
+        AckPayload payload = (AckPayload) msg.payload;
+        PendingRequest request = this.pendingRequests.get(payload.getTxnID());
+        if (request != null) {
+            request.onResponse(msg.srcNode, payload);
+        } else {
+            System.out.println(">> ACK: no request awaiting txn " + payload.getTxnID()
+                    + " (" + payload.getRequestType() + "), discarding");
         }
     }
 }
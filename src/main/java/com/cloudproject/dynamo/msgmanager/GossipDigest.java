@@ -0,0 +1,39 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Payload of the three messages of a gossip exchange, in which two nodes send each other only
+ * the entries of their node lists which the other one is missing (Scuttlebutt reconciliation):
+ * <ol>
+ *     <li>{@code NODE_DIGEST}: the initiator sends the heartbeat of every node it knows</li>
+ *     <li>{@code NODE_DIGEST_ACK}: the peer answers with its entries which are newer than the
+ *     digest or missing from it, and with the heartbeat it knows of the nodes for which the
+ *     digest is newer</li>
+ *     <li>{@code NODE_DIGEST_ACK2}: the initiator sends its entries which are newer than those
+ *     heartbeats</li>
+ * </ol>
+ */
+class GossipDigest {
+    /* address -> heartbeat, -1 for a node which is not known */
+    private final LinkedHashMap<String, Long> versions;
+    private final ArrayList<DynamoNode> nodes;
+
+    /**
+     * @param versions heartbeat of every node of the digest, by address
+     * @param nodes    entries of the node list sent to the other node
+     */
+    GossipDigest(LinkedHashMap<String, Long> versions, ArrayList<DynamoNode> nodes) {
+        this.versions = versions;
+        this.nodes = nodes;
+    }
+
+    LinkedHashMap<String, Long> getVersions() {
+        return versions;
+    }
+
+    ArrayList<DynamoNode> getNodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,139 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Timer driving the Time To Live of every node of the node list from a single thread. When the
+ * TTL of a node expires without being reset by a newer heartbeat, the listener (DynamoServer) is
+ * notified, and should handle it by moving the node to its dead list.
+ * <p>
+ * The timeouts are spread over a wheel of slots, one slot per tick. Every tick, the thread visits
+ * the timeouts of the next slot: the ones whose deadline has passed expire, the others are moved to
+ * the slot of their deadline. Resetting a timeout only pushes its deadline back, and the timeout
+ * is moved to its new slot when the wheel reaches its current one, so that a heartbeat update
+ * costs constant time whatever the number of nodes.
+ * </p>
+ */
+class HashedWheelTimer implements Runnable {
+
+    private final long tickNanos;
+    private final ArrayList<ArrayList<Timeout>> wheel;
+    private final int mask;
+    private final Consumer<DynamoNode> listener;
+    private final long startTime;
+    /* next tick to be processed */
+    private long tick;
+
+    /**
+     * @param tickMillis duration (in milliseconds) of a tick, which is the precision of the timeouts
+     * @param wheelSize  number of slots of the wheel, rounded up to a power of two
+     * @param listener   notified of the node of every expired timeout, from the timer thread
+     */
+    HashedWheelTimer(long tickMillis, int wheelSize, Consumer<DynamoNode> listener) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            this.wheel.add(new ArrayList<>());
+        }
+        this.mask = size - 1;
+        this.listener = listener;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Method to start the TTL of a node
+     *
+     * @param node  the node
+     * @param delay TTL (in milliseconds) of the node
+     * @return the timeout, to be reset whenever the node is heard from
+     */
+    synchronized Timeout schedule(DynamoNode node, long delay) {
+        Timeout timeout = new Timeout(node);
+        timeout.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        insert(timeout);
+        return timeout;
+    }
+
+    private void insert(Timeout timeout) {
+        long deadlineTick = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+        wheel.get((int) (Math.max(deadlineTick, tick) & mask)).add(timeout);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long sleep;
+                synchronized (this) {
+                    sleep = startTime + tick * tickNanos - System.nanoTime();
+                }
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                for (DynamoNode node : expire()) {
+                    try {
+                        listener.accept(node);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            /* the server is shutting down */
+        }
+    }
+
+    /**
+     * Method to process the slots of the ticks which have elapsed
+     *
+     * @return the nodes whose TTL expired
+     */
+    private synchronized ArrayList<DynamoNode> expire() {
+        ArrayList<DynamoNode> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        while (startTime + tick * tickNanos <= now) {
+            ArrayList<Timeout> slot = wheel.get((int) (tick & mask));
+            ArrayList<Timeout> timeouts = new ArrayList<>(slot);
+            slot.clear();
+            tick++;
+            for (Timeout timeout : timeouts) {
+                if (timeout.deadline - now <= 0) {
+                    timeout.expired = true;
+                    expired.add(timeout.node);
+                } else {
+                    insert(timeout);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * The TTL of one node
+     */
+    class Timeout {
+        private final DynamoNode node;
+        private long deadline;
+        private boolean expired;
+
+        private Timeout(DynamoNode node) {
+            this.node = node;
+        }
+
+        /**
+         * Method to restart the TTL of the node, unless it already expired
+         *
+         * @param delay TTL (in milliseconds) of the node
+         */
+        void reset(long delay) {
+            synchronized (HashedWheelTimer.this) {
+                if (!expired) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                }
+            }
+        }
+    }
+}
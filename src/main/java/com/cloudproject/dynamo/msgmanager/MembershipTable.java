@@ -0,0 +1,103 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The nodes known to this node, keyed by address: the live nodes, which are gossiped with and
+ * receive requests, and the dead nodes, whose TTL expired and which are revived when a newer
+ * heartbeat of them is received.
+ * <p>
+ * Lookups by address are lock-free. Readers iterating over the live nodes are given an immutable
+ * snapshot, which is replaced whenever a node joins or leaves, so that they never block gossip.
+ * Joins and leaves are serialized by the table, while the heartbeat of a live node is updated in
+ * place on its entry.
+ * </p>
+ */
+class MembershipTable {
+
+    private final ConcurrentHashMap<String, DynamoNode> liveNodes;
+    private final ConcurrentHashMap<String, DynamoNode> deadNodes;
+    private volatile List<DynamoNode> snapshot;
+
+    MembershipTable() {
+        this.liveNodes = new ConcurrentHashMap<>();
+        this.deadNodes = new ConcurrentHashMap<>();
+        this.snapshot = Collections.emptyList();
+    }
+
+    /**
+     * @param address address of the node
+     * @return the live node having the address, null if there is none
+     */
+    DynamoNode getLive(String address) {
+        return liveNodes.get(address);
+    }
+
+    /**
+     * @param address address of the node
+     * @return the dead node having the address, null if there is none
+     */
+    DynamoNode getDead(String address) {
+        return deadNodes.get(address);
+    }
+
+    /**
+     * @return the live nodes, in a list which cannot be modified and does not change
+     */
+    List<DynamoNode> getLiveNodes() {
+        return snapshot;
+    }
+
+    /**
+     * @return the dead nodes, in a view which reflects later changes and may be iterated while
+     * nodes join or leave
+     */
+    Collection<DynamoNode> getDeadNodes() {
+        return Collections.unmodifiableCollection(deadNodes.values());
+    }
+
+    /**
+     * Method to add a node to the live nodes, reviving it if it was dead
+     *
+     * @param node     the node
+     * @param replaced the dead entry of the node which is revived, null for a new node
+     * @return true if the node was added, false if another thread added or revived it first
+     */
+    synchronized boolean add(DynamoNode node, DynamoNode replaced) {
+        String address = node.getAddress();
+        if (liveNodes.containsKey(address) || deadNodes.get(address) != replaced) {
+            return false;
+        }
+        if (replaced != null) {
+            deadNodes.remove(address);
+        }
+        liveNodes.put(address, node);
+        publish();
+        return true;
+    }
+
+    /**
+     * Method to move a live node to the dead nodes
+     *
+     * @param node the node
+     * @return true if the node was moved, false if it is not the live entry of its address
+     */
+    synchronized boolean markDead(DynamoNode node) {
+        String address = node.getAddress();
+        if (liveNodes.get(address) != node) {
+            return false;
+        }
+        liveNodes.remove(address);
+        deadNodes.put(address, node);
+        publish();
+        return true;
+    }
+
+    private void publish() {
+        snapshot = Collections.unmodifiableList(new ArrayList<>(liveNodes.values()));
+    }
+}
@@ -0,0 +1,110 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import com.cloudproject.dynamo.consistenthash.CityHash;
+import com.cloudproject.dynamo.models.VectorClock;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hash tree summarizing the versions of the objects of a bucket which this node replicates
+ * together with one other node, so that both nodes can find the objects on which they diverge
+ * by exchanging a few hashes rather than their keys.
+ * <p>
+ * The keys are split in {@link #LEAVES} ranges by the hash of the key. The hash of a leaf is the
+ * XOR of the hashes of the (key, vector clock) pairs of its range, and every inner node is the XOR
+ * of its children, so that a write updates the leaf and its ancestors in constant time by XOR-ing
+ * out the hash of the previous version and XOR-ing in the hash of the new one. The tree has three
+ * levels: the root, {@link #SEGMENTS} segments and {@link #LEAVES} leaves.
+ * </p>
+ */
+class MerkleTree {
+
+    static final int SEGMENTS = 32;
+    static final int LEAVES = 1024;
+    static final int LEAVES_PER_SEGMENT = LEAVES / SEGMENTS;
+
+    private final long[] leaves;
+    private final long[] segments;
+    private long root;
+
+    MerkleTree() {
+        this.leaves = new long[LEAVES];
+        this.segments = new long[SEGMENTS];
+    }
+
+    /**
+     * Method to return the leaf whose range holds a key
+     *
+     * @param key key of the object
+     * @return index of the leaf
+     */
+    static int leafOf(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return (int) (CityHash.cityHash64(bytes, 0, bytes.length) >>> 54);
+    }
+
+    /**
+     * Method to return the hash of a version of an object, which only depends on its key and clock
+     *
+     * @param key   key of the object
+     * @param clock vector clock of the version, null if the object does not exist
+     * @return hash of the version, 0 if the object does not exist
+     */
+    static long hashOf(String key, VectorClock clock) {
+        if (clock == null) {
+            return 0;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long[] nodeIds = clock.getNodeIds();
+        ByteBuffer buffer = ByteBuffer.allocate(keyBytes.length + 16 * nodeIds.length);
+        buffer.put(keyBytes);
+        for (int i = 0; i < nodeIds.length; i++) {
+            buffer.putLong(nodeIds[i]).putLong(clock.getCounters()[i]);
+        }
+        long hash = CityHash.cityHash64(buffer.array(), 0, buffer.position());
+        /* 0 stands for a missing object */
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Method to replace a version of an object by another one
+     *
+     * @param key      key of the object
+     * @param previous hash of the replaced version, 0 if the object did not exist
+     * @param current  hash of the new version, 0 if the object was deleted
+     */
+    synchronized void update(String key, long previous, long current) {
+        long delta = previous ^ current;
+        int leaf = leafOf(key);
+        leaves[leaf] ^= delta;
+        segments[leaf / LEAVES_PER_SEGMENT] ^= delta;
+        root ^= delta;
+    }
+
+    synchronized long getRoot() {
+        return root;
+    }
+
+    /**
+     * @return a copy of the hashes of the segments
+     */
+    synchronized long[] getSegments() {
+        return segments.clone();
+    }
+
+    /**
+     * Method to return the hashes of the leaves of some segments
+     *
+     * @param segmentIndexes indexes of the segments
+     * @return the hashes of the leaves of every segment, one segment after the other
+     */
+    synchronized long[] getLeaves(long[] segmentIndexes) {
+        long[] hashes = new long[segmentIndexes.length * LEAVES_PER_SEGMENT];
+        for (int i = 0; i < segmentIndexes.length; i++) {
+            System.arraycopy(leaves, (int) segmentIndexes[i] * LEAVES_PER_SEGMENT, hashes,
+                    i * LEAVES_PER_SEGMENT, LEAVES_PER_SEGMENT);
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,518 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import com.cloudproject.dynamo.models.*;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary wire format of {@link DynamoMessage}. Every message is laid out as
+ * <pre>
+ *     [version:byte][type:varint][srcNode][payload:value]
+ * </pre>
+ * where every value is prefixed by a one byte tag identifying its kind, lengths are
+ * written as unsigned varints and numbers as zig-zag encoded varints. Strings are
+ * written as UTF-8, with the length incremented by one so that null can be encoded as 0.
+ * <p>
+ * An instance keeps a growable output array which is reused for every message it encodes,
+ * so instances must not be shared between threads; use {@link #get()} to obtain the
+ * codec of the current thread.
+ * </p>
+ */
+class MessageCodec {
+
+    /**
+     * Version of the wire format, written as the first byte of every message
+     */
+    static final byte VERSION = 9;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BOOLEAN = 2;
+    private static final byte TAG_FORWARD = 3;
+    private static final byte TAG_ACK = 4;
+    private static final byte TAG_OBJECT_INPUT = 5;
+    private static final byte TAG_OBJECT_IO = 6;
+    private static final byte TAG_OBJECT_IO_LIST = 7;
+    private static final byte TAG_NODE_LIST = 8;
+    private static final byte TAG_LONGS = 9;
+    private static final byte TAG_OBJECT_INPUT_LIST = 10;
+    private static final byte TAG_GOSSIP_DIGEST = 11;
+
+    private static final MessageTypes[] TYPES = MessageTypes.values();
+    private static final ThreadLocal<MessageCodec> CODECS = ThreadLocal.withInitial(MessageCodec::new);
+
+    private byte[] out;
+    private int position;
+
+    private MessageCodec() {
+        this.out = new byte[1024];
+    }
+
+    /**
+     * Method to return the codec of the calling thread
+     *
+     * @return codec which may be used only by the calling thread
+     */
+    static MessageCodec get() {
+        return CODECS.get();
+    }
+
+    /**
+     * Encodes a message into the output array of this codec
+     *
+     * @param msg the message to be encoded
+     * @return number of bytes written to {@link #array()}
+     * @throws ProtocolException if the message contains a payload that cannot be encoded
+     */
+    int encode(DynamoMessage msg) throws ProtocolException {
+        position = 0;
+        writeByte(VERSION);
+        writeVarInt(msg.type.ordinal());
+        writeNode(msg.srcNode);
+        writeValue(msg.payload);
+        return position;
+    }
+
+    /**
+     * Method to return the array holding the last encoded message. The contents are only
+     * valid until the next call to {@link #encode(DynamoMessage)}
+     *
+     * @return the output array of this codec
+     */
+    byte[] array() {
+        return out;
+    }
+
+    /**
+     * Decodes a message from the remaining bytes of a buffer
+     *
+     * @param in buffer positioned at the start of the message
+     * @return the decoded message
+     * @throws ProtocolException if the buffer does not contain a well-formed message
+     */
+    static DynamoMessage decode(ByteBuffer in) throws ProtocolException {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported wire version " + version);
+            }
+            int type = readVarInt(in);
+            if (type < 0 || type >= TYPES.length) {
+                throw new ProtocolException("Unknown message type " + type);
+            }
+            DynamoNode srcNode = readNode(in);
+            return new DynamoMessage(srcNode, TYPES[type], readValue(in));
+        } catch (BufferUnderflowException | ClassCastException e) {
+            throw new ProtocolException("Truncated or malformed message: " + e);
+        }
+    }
+
+    /* ---------------------------------- encoding ---------------------------------- */
+
+    @SuppressWarnings("unchecked")
+    private void writeValue(Object value) throws ProtocolException {
+        if (value == null) {
+            writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            writeByte(TAG_STRING);
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            writeByte(TAG_BOOLEAN);
+            writeByte((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof ForwardPayload) {
+            ForwardPayload payload = (ForwardPayload) value;
+            writeByte(TAG_FORWARD);
+            writeVarInt(payload.getRequestType().ordinal());
+            writeString(payload.getBucketName());
+            writeVarLong(payload.getTxnID());
+            writeString(payload.getHint());
+            writeValue(payload.getInputModel());
+        } else if (value instanceof AckPayload) {
+            AckPayload payload = (AckPayload) value;
+            writeByte(TAG_ACK);
+            writeVarInt(payload.getRequestType().ordinal());
+            writeString(payload.getIdentifier());
+            writeVarLong(payload.getTxnID());
+            writeByte((byte) (payload.isStatus() ? 1 : 0));
+            writeValue(payload.getResult());
+        } else if (value instanceof ObjectInputModel) {
+            writeByte(TAG_OBJECT_INPUT);
+            writeObjectInput((ObjectInputModel) value);
+        } else if (value instanceof ObjectIOModel) {
+            writeByte(TAG_OBJECT_IO);
+            writeObjectIO((ObjectIOModel) value);
+        } else if (value instanceof long[]) {
+            long[] longs = (long[]) value;
+            writeByte(TAG_LONGS);
+            writeVarInt(longs.length);
+            for (long l : longs) {
+                writeVarLong(l);
+            }
+        } else if (value instanceof GossipDigest) {
+            GossipDigest digest = (GossipDigest) value;
+            writeByte(TAG_GOSSIP_DIGEST);
+            writeVarInt(digest.getVersions().size());
+            for (Map.Entry<String, Long> version : digest.getVersions().entrySet()) {
+                writeString(version.getKey());
+                writeHeartbeat(version.getValue());
+            }
+            writeVarInt(digest.getNodes().size());
+            for (DynamoNode node : digest.getNodes()) {
+                writeNode(node);
+            }
+        } else if (value instanceof ArrayList<?>) {
+            ArrayList<?> list = (ArrayList<?>) value;
+            if (!list.isEmpty() && list.get(0) instanceof DynamoNode) {
+                writeByte(TAG_NODE_LIST);
+                writeVarInt(list.size());
+                for (DynamoNode node : (ArrayList<DynamoNode>) list) {
+                    writeNode(node);
+                }
+            } else if (!list.isEmpty() && list.get(0) instanceof ObjectInputModel) {
+                writeByte(TAG_OBJECT_INPUT_LIST);
+                writeVarInt(list.size());
+                for (ObjectInputModel inputModel : (ArrayList<ObjectInputModel>) list) {
+                    writeObjectInput(inputModel);
+                }
+            } else {
+                writeByte(TAG_OBJECT_IO_LIST);
+                writeVarInt(list.size());
+                for (ObjectIOModel ioModel : (ArrayList<ObjectIOModel>) list) {
+                    writeObjectIO(ioModel);
+                }
+            }
+        } else {
+            throw new ProtocolException("Cannot encode payload of type " + value.getClass().getName());
+        }
+    }
+
+    private void writeNode(DynamoNode node) {
+        writeString(node.name);
+        writeString(node.getAddress());
+        writeHeartbeat(node.getHeartbeat());
+        writeByte((byte) (node.isApiNode() ? 1 : 0));
+        writeVarInt(node.getAdvertisedVirtualNodeCount());
+    }
+
+    /**
+     * Writes a heartbeat as its generation followed by its counter, both unsigned varints
+     */
+    private void writeHeartbeat(long heartbeat) {
+        writeVarInt((int) (heartbeat >>> 32));
+        writeVarInt((int) heartbeat);
+    }
+
+    private void writeObjectInput(ObjectInputModel inputModel) {
+        writeString(inputModel.getKey());
+        writeString(inputModel.getValue());
+        writeClock(inputModel.getContext());
+        writeByte((byte) (inputModel.isDeleted() ? 1 : 0));
+    }
+
+    private void writeObjectIO(ObjectIOModel ioModel) {
+        writeClock(ioModel.getClock());
+        writeString(ioModel.getValue());
+        writeByte((byte) (ioModel.isDeleted() ? 1 : 0));
+    }
+
+    /**
+     * Writes a vector clock as its number of entries plus one (0 for null), followed by
+     * the node id (8 bytes), counter and timestamp of every entry
+     */
+    private void writeClock(VectorClock clock) {
+        if (clock == null) {
+            writeVarInt(0);
+            return;
+        }
+        long[] nodeIds = clock.getNodeIds();
+        writeVarInt(nodeIds.length + 1);
+        for (int i = 0; i < nodeIds.length; i++) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out[position++] = (byte) (nodeIds[i] >>> shift);
+            }
+            writeVarLong(clock.getCounters()[i]);
+            writeVarLong(clock.getTimestamps()[i]);
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        int length = utf8Length(value);
+        writeVarInt(length + 1);
+        ensureCapacity(length);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (isSurrogatePair(value, i)) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out[position++] = (byte) (0xF0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                out[position++] = (byte) (0xE0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isSurrogatePair(value, i)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isSurrogatePair(String value, int i) {
+        return Character.isHighSurrogate(value.charAt(i)) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1));
+    }
+
+    private void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        /* zig-zag, so that small negative numbers stay small */
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out[position++] = (byte) ((zigZag & 0x7F) | 0x80);
+            zigZag >>>= 7;
+        }
+        out[position++] = (byte) zigZag;
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        out[position++] = value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, position + extra));
+        }
+    }
+
+    /* ---------------------------------- decoding ---------------------------------- */
+
+    private static Object readValue(ByteBuffer in) throws ProtocolException {
+        byte tag = in.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(in);
+            case TAG_BOOLEAN:
+                return in.get() != 0;
+            case TAG_FORWARD: {
+                MessageTypes requestType = readType(in);
+                String bucketName = readString(in);
+                long txnID = readVarLong(in);
+                String hint = readString(in);
+                return new ForwardPayload(requestType, bucketName, readValue(in), txnID, hint);
+            }
+            case TAG_ACK: {
+                MessageTypes requestType = readType(in);
+                String identifier = readString(in);
+                long txnID = readVarLong(in);
+                boolean status = in.get() != 0;
+                return new AckPayload(requestType, identifier, txnID, status, readValue(in));
+            }
+            case TAG_OBJECT_INPUT:
+                return readObjectInput(in);
+            case TAG_OBJECT_IO:
+                return readObjectIO(in);
+            case TAG_OBJECT_IO_LIST: {
+                int size = readLength(in);
+                ArrayList<ObjectIOModel> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readObjectIO(in));
+                }
+                return list;
+            }
+            case TAG_LONGS: {
+                int size = readLength(in);
+                long[] longs = new long[size];
+                for (int i = 0; i < size; i++) {
+                    longs[i] = readVarLong(in);
+                }
+                return longs;
+            }
+            case TAG_OBJECT_INPUT_LIST: {
+                int size = readLength(in);
+                ArrayList<ObjectInputModel> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readObjectInput(in));
+                }
+                return list;
+            }
+            case TAG_NODE_LIST: {
+                int size = readLength(in);
+                ArrayList<DynamoNode> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readNode(in));
+                }
+                return list;
+            }
+            case TAG_GOSSIP_DIGEST: {
+                int size = readLength(in);
+                LinkedHashMap<String, Long> versions = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String address = readString(in);
+                    versions.put(address, readHeartbeat(in));
+                }
+                size = readLength(in);
+                ArrayList<DynamoNode> nodes = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    nodes.add(readNode(in));
+                }
+                return new GossipDigest(versions, nodes);
+            }
+            default:
+                throw new ProtocolException("Unknown value tag " + tag);
+        }
+    }
+
+    private static MessageTypes readType(ByteBuffer in) throws ProtocolException {
+        int type = readVarInt(in);
+        if (type < 0 || type >= TYPES.length) {
+            throw new ProtocolException("Unknown message type " + type);
+        }
+        return TYPES[type];
+    }
+
+    private static DynamoNode readNode(ByteBuffer in) throws ProtocolException {
+        String name = readString(in);
+        String address = readString(in);
+        long heartbeat = readHeartbeat(in);
+        boolean apiNode = in.get() != 0;
+        int vNodeCount = readVarInt(in);
+        return new DynamoNode(name, address, heartbeat, apiNode, vNodeCount);
+    }
+
+    private static long readHeartbeat(ByteBuffer in) throws ProtocolException {
+        int generation = readVarInt(in);
+        return ((long) generation << 32) | (readVarInt(in) & 0xFFFFFFFFL);
+    }
+
+    private static ObjectInputModel readObjectInput(ByteBuffer in) throws ProtocolException {
+        ObjectInputModel inputModel = new ObjectInputModel();
+        inputModel.setKey(readString(in));
+        inputModel.setValue(readString(in));
+        inputModel.setContext(readClock(in));
+        inputModel.setDeleted(in.get() != 0);
+        return inputModel;
+    }
+
+    private static ObjectIOModel readObjectIO(ByteBuffer in) throws ProtocolException {
+        VectorClock clock = readClock(in);
+        String value = readString(in);
+        return new ObjectIOModel(clock, value, in.get() != 0);
+    }
+
+    private static VectorClock readClock(ByteBuffer in) throws ProtocolException {
+        int size = readVarInt(in) - 1;
+        if (size < 0) {
+            return null;
+        }
+        /* every entry takes at least 10 bytes */
+        if (size > in.remaining() / 10) {
+            throw new ProtocolException("Invalid vector clock size " + size);
+        }
+        long[] nodeIds = new long[size];
+        long[] counters = new long[size];
+        long[] timestamps = new long[size];
+        for (int i = 0; i < size; i++) {
+            nodeIds[i] = in.getLong();
+            counters[i] = readVarLong(in);
+            timestamps[i] = readVarLong(in);
+        }
+        return new VectorClock(nodeIds, counters, timestamps);
+    }
+
+    private static String readString(ByteBuffer in) throws ProtocolException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new ProtocolException("String of " + length + " bytes exceeds message");
+        }
+        String value;
+        if (in.hasArray()) {
+            /* decode straight from the receive buffer, without an intermediate copy */
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static int readLength(ByteBuffer in) throws ProtocolException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new ProtocolException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private static int readVarInt(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    private static long readVarLong(ByteBuffer in) throws ProtocolException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+}
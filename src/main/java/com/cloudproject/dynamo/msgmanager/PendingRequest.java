@@ -0,0 +1,148 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import com.cloudproject.dynamo.models.AckPayload;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks the responses of a single in-flight request, identified by its transaction ID.
+ * DynamoServer registers one of these for every request it sends out and the long-lived
+ * acknowledgement listener hands each incoming acknowledgement carrying the same txnID to it.
+ * The request completes as soon as the quorum of successful responses is met, or when all
+ * expected responses have been received. Responses arriving after the request completed are
+ * still recorded for as long as the request stays registered, which lets background work
+ * such as read repair look at every response.
+ */
+class PendingRequest {
+    private final long txnID;
+    private final int expected;
+    private final int quorum;
+    private final ArrayList<AckPayload> responses;
+    private final LinkedHashMap<String, AckPayload> responsesByNode;
+    private final CompletableFuture<Boolean> future;
+    private final CompletableFuture<Void> allReceived;
+    private int receives;
+    private int successes;
+
+    /**
+     * @param txnID    transaction ID shared by the request and all of its acknowledgements
+     * @param expected number of responses expected for this request
+     * @param quorum   number of successful responses required for the request to succeed
+     */
+    PendingRequest(long txnID, int expected, int quorum) {
+        this.txnID = txnID;
+        this.expected = expected;
+        this.quorum = quorum;
+        this.responses = new ArrayList<>();
+        this.responsesByNode = new LinkedHashMap<>();
+        this.future = new CompletableFuture<>();
+        this.allReceived = new CompletableFuture<>();
+        if (expected <= 0 || quorum <= 0) {
+            this.future.complete(quorum <= 0);
+        }
+        if (expected <= 0) {
+            this.allReceived.complete(null);
+        }
+    }
+
+    /**
+     * Method to return the transaction ID of this request
+     *
+     * @return transaction ID of the request
+     */
+    long getTxnID() {
+        return txnID;
+    }
+
+    /**
+     * Records a response which was not received from a remote node, such as the outcome of
+     * the local part of the request
+     *
+     * @param payload the acknowledgement
+     */
+    void onResponse(AckPayload payload) {
+        onResponse(null, payload);
+    }
+
+    /**
+     * Records a response received for this request, and completes the request if either
+     * the quorum is achieved or no more responses are expected
+     *
+     * @param responder the node which sent the acknowledgement, null for a local response
+     * @param payload   the acknowledgement received
+     */
+    synchronized void onResponse(DynamoNode responder, AckPayload payload) {
+        receives++;
+        if (payload.isStatus()) {
+            successes++;
+        }
+        responses.add(payload);
+        if (responder != null) {
+            responsesByNode.put(responder.getAddress(), payload);
+        }
+        if (receives >= expected) {
+            allReceived.complete(null);
+        }
+        System.out.println(">> ACK: txn " + txnID + " quorum: " + quorum + " receives: " + receives
+                + " success: " + successes);
+        if (successes >= quorum) {
+            future.complete(true);
+        } else if (receives >= expected) {
+            future.complete(false);
+        }
+    }
+
+    /**
+     * Waits for the request to complete
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout argument
+     * @return true if the quorum was achieved, false otherwise
+     * @throws InterruptedException if the waiting thread was interrupted
+     * @throws ExecutionException   if the request completed exceptionally
+     * @throws TimeoutException     if the request did not complete in time
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(timeout, unit);
+    }
+
+    /**
+     * Waits until every expected response was received
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout argument
+     * @return true if every response was received, false if the wait timed out
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    boolean awaitAll(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            allReceived.get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Method to return the responses received so far from remote nodes
+     *
+     * @return a copy of the acknowledgements received, keyed by the address of their sender
+     */
+    synchronized LinkedHashMap<String, AckPayload> getResponsesByNode() {
+        return new LinkedHashMap<>(responsesByNode);
+    }
+
+    /**
+     * Method to return the responses received so far
+     *
+     * @return a copy of the list of acknowledgements received for this request
+     */
+    synchronized ArrayList<AckPayload> getResponses() {
+        return new ArrayList<>(responses);
+    }
+}
@@ -0,0 +1,82 @@
+package com.cloudproject.dynamo.msgmanager;
+
+/**
+ * Phi accrual failure detector of one node (Hayashibara et al.). Rather than a fixed timeout,
+ * it keeps the intervals between the last heartbeats received from the node, and expresses the
+ * time elapsed since the last one as a suspicion level phi: the node is suspected with a
+ * probability of error of about 10^-phi, assuming the intervals are normally distributed. A node
+ * whose heartbeats are usually irregular is thereby given more time than a node whose heartbeats
+ * are regular.
+ */
+class PhiAccrualDetector {
+
+    /* number of intervals kept */
+    private static final int WINDOW_SIZE = 100;
+    /* lower bound of the standard deviation (in milliseconds), so that very regular heartbeats
+     * do not make the node suspected as soon as one is slightly late */
+    private static final double MIN_STD_DEVIATION = 500;
+
+    private final long[] intervals;
+    private int count;
+    private int next;
+    private double sum;
+    private double squaredSum;
+    private long lastHeartbeat;
+
+    PhiAccrualDetector() {
+        this.intervals = new long[WINDOW_SIZE];
+        this.lastHeartbeat = -1;
+    }
+
+    /**
+     * Method to record the arrival of a newer heartbeat of the node
+     *
+     * @param now time (in milliseconds) of the arrival
+     */
+    synchronized void heartbeat(long now) {
+        if (lastHeartbeat >= 0) {
+            long interval = now - lastHeartbeat;
+            if (count == WINDOW_SIZE) {
+                long oldest = intervals[next];
+                sum -= oldest;
+                squaredSum -= (double) oldest * oldest;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW_SIZE;
+            sum += interval;
+            squaredSum += (double) interval * interval;
+        }
+        lastHeartbeat = now;
+    }
+
+    /**
+     * @return true once two heartbeats were received, so that phi is meaningful
+     */
+    synchronized boolean hasHistory() {
+        return count > 0;
+    }
+
+    /**
+     * Method to return the suspicion level of the node
+     *
+     * @param now the current time (in milliseconds)
+     * @return phi, 0 until two heartbeats were received
+     */
+    synchronized double phi(long now) {
+        if (count == 0) {
+            return 0;
+        }
+        double mean = sum / count;
+        double variance = Math.max(0, squaredSum / count - mean * mean);
+        double stdDeviation = Math.max(Math.sqrt(variance), MIN_STD_DEVIATION);
+        /* logistic approximation of the cumulative normal distribution */
+        double y = (now - lastHeartbeat - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - lastHeartbeat > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
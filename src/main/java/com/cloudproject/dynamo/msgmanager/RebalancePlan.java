@@ -0,0 +1,344 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import com.cloudproject.dynamo.consistenthash.HashingManager;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * The key ranges whose replicas changed with a change of the ring, as seen by one node: the
+ * ranges this node must stream to their new replicas (outbound), and the ranges it receives
+ * from an old replica (inbound).
+ * <p>
+ * The ranges are the intervals between two consecutive tokens of either ring, so that all the
+ * keys of a range have the same replicas before and after the change. Of the old replicas of a
+ * range, the ones which are no longer replicas and are alive stream the range, since they drop
+ * their copy once it is transferred; if none of them is alive, the first old replica which
+ * stays a replica streams it instead. Every node computes the same plan from the same rings, so
+ * that the new replicas know where their ranges come from without being told.
+ * </p>
+ * <p>
+ * An outbound plan keeps, for every bucket, the last key streamed, and is saved to a file as it
+ * progresses, so that a transfer interrupted by a restart resumes where it stopped.
+ * </p>
+ */
+class RebalancePlan {
+
+    private static final String SUFFIX = ".plan";
+
+    private final long id;
+    private final ArrayList<Range> outbound;
+    private final ArrayList<Range> inbound;
+    /* bucket -> last key streamed, null if none yet; buckets are removed once streamed */
+    private final LinkedHashMap<String, String> cursors;
+
+    private RebalancePlan(long id, ArrayList<Range> outbound, ArrayList<Range> inbound,
+                          LinkedHashMap<String, String> cursors) {
+        this.id = id;
+        this.outbound = outbound;
+        this.inbound = inbound;
+        this.cursors = cursors;
+    }
+
+    /**
+     * Method to work out the ranges which changed replicas between two states of the ring
+     *
+     * @param id       identifier of the plan
+     * @param before   the ring before the change
+     * @param after    the ring after the change
+     * @param self     address of this node
+     * @param replicas number of replicas of every key
+     * @param isAlive  predicate telling whether a node is alive
+     * @param buckets  the buckets held by this node
+     * @return the plan of this node
+     */
+    static RebalancePlan compute(long id, HashingManager<DynamoNode> before, HashingManager<DynamoNode> after,
+                                 String self, int replicas, Predicate<String> isAlive, List<String> buckets) {
+        ArrayList<Range> outbound = new ArrayList<>();
+        ArrayList<Range> inbound = new ArrayList<>();
+        TreeSet<Long> tokens = new TreeSet<>(before.getTokens());
+        tokens.addAll(after.getTokens());
+        if (!tokens.isEmpty()) {
+            long start = tokens.last();
+            for (long end : tokens) {
+                List<String> oldReplicas = addresses(before.routeHash(end, replicas));
+                List<String> newReplicas = addresses(after.routeHash(end, replicas));
+                ArrayList<String> targets = new ArrayList<>(newReplicas);
+                targets.removeAll(oldReplicas);
+                if (!targets.isEmpty()) {
+                    ArrayList<String> sources = new ArrayList<>();
+                    for (String replica : oldReplicas) {
+                        if (!newReplicas.contains(replica) && isAlive.test(replica)) {
+                            sources.add(replica);
+                        }
+                    }
+                    if (sources.isEmpty()) {
+                        for (String replica : oldReplicas) {
+                            if (isAlive.test(replica)) {
+                                sources.add(replica);
+                                break;
+                            }
+                        }
+                    }
+                    if (sources.contains(self)) {
+                        outbound.add(new Range(start, end, targets, !newReplicas.contains(self)));
+                    }
+                    if (targets.contains(self) && !sources.isEmpty()) {
+                        inbound.add(new Range(start, end, sources, false));
+                    }
+                }
+                start = end;
+            }
+        }
+        LinkedHashMap<String, String> cursors = new LinkedHashMap<>();
+        if (!outbound.isEmpty()) {
+            for (String bucket : buckets) {
+                cursors.put(bucket, null);
+            }
+        }
+        return new RebalancePlan(id, outbound, inbound, cursors);
+    }
+
+    private static List<String> addresses(List<DynamoNode> nodes) {
+        ArrayList<String> addresses = new ArrayList<>();
+        if (nodes != null) {
+            for (DynamoNode node : nodes) {
+                addresses.add(node.getAddress());
+            }
+        }
+        return addresses;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    List<Range> getInbound() {
+        return inbound;
+    }
+
+    /**
+     * @return addresses of the nodes receiving ranges of this node
+     */
+    TreeSet<String> getTargets() {
+        TreeSet<String> targets = new TreeSet<>();
+        for (Range range : outbound) {
+            targets.addAll(range.nodes);
+        }
+        return targets;
+    }
+
+    /**
+     * Method to return the positions delimiting the outbound ranges sent to a node
+     *
+     * @param target address of the node
+     * @return the start and end of every range, one range after the other
+     */
+    long[] getBounds(String target) {
+        ArrayList<Long> bounds = new ArrayList<>();
+        for (Range range : outbound) {
+            if (range.nodes.contains(target)) {
+                bounds.add(range.start);
+                bounds.add(range.end);
+            }
+        }
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Method to return the outbound range holding a position of the ring
+     *
+     * @param hash position on the ring of a key
+     * @return the range, or null if the key does not have to be streamed
+     */
+    Range findOutbound(long hash) {
+        for (Range range : outbound) {
+            if (range.contains(hash)) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to return the bucket being streamed
+     *
+     * @return name of the bucket, or null if every bucket was streamed
+     */
+    synchronized String nextBucket() {
+        return cursors.isEmpty() ? null : cursors.keySet().iterator().next();
+    }
+
+    /**
+     * Method to return the last key streamed of a bucket
+     *
+     * @param bucket name of the bucket
+     * @return the key, or null if no key of the bucket was streamed yet
+     */
+    synchronized String getCursor(String bucket) {
+        return cursors.get(bucket);
+    }
+
+    /**
+     * Method to record the progress of the transfer of a bucket
+     *
+     * @param bucket name of the bucket
+     * @param key    last key streamed, null if the whole bucket was streamed
+     */
+    synchronized void advance(String bucket, String key) {
+        if (key == null) {
+            cursors.remove(bucket);
+        } else {
+            cursors.put(bucket, key);
+        }
+    }
+
+    /**
+     * Method to persist the outbound part of the plan, along with its progress, replacing the
+     * copy previously saved
+     *
+     * @param directory the directory holding the plans
+     * @throws IOException if the plan could not be written
+     */
+    synchronized void save(File directory) throws IOException {
+        File tmp = new File(directory, id + SUFFIX + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeLong(id);
+            out.writeInt(outbound.size());
+            for (Range range : outbound) {
+                out.writeLong(range.start);
+                out.writeLong(range.end);
+                out.writeBoolean(range.release);
+                out.writeInt(range.nodes.size());
+                for (String node : range.nodes) {
+                    out.writeUTF(node);
+                }
+            }
+            out.writeInt(cursors.size());
+            for (Map.Entry<String, String> cursor : cursors.entrySet()) {
+                out.writeUTF(cursor.getKey());
+                out.writeBoolean(cursor.getValue() != null);
+                if (cursor.getValue() != null) {
+                    out.writeUTF(cursor.getValue());
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(directory, id + SUFFIX).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Method to delete the saved copy of the plan, once it is complete
+     *
+     * @param directory the directory holding the plans
+     */
+    void delete(File directory) {
+        File file = new File(directory, id + SUFFIX);
+        if (file.exists() && !file.delete()) {
+            System.out.println("[WARN] Could not delete " + file);
+        }
+    }
+
+    /**
+     * Method to read back the plans saved by {@link #save(File)}, which were not complete when
+     * the node stopped
+     *
+     * @param directory the directory holding the plans
+     * @return the outbound plans, without inbound ranges, in the order in which they were made
+     * @throws IOException if a plan could not be read
+     */
+    static ArrayList<RebalancePlan> load(File directory) throws IOException {
+        ArrayList<RebalancePlan> plans = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return plans;
+        }
+        for (File file : files) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                long id = in.readLong();
+                int count = in.readInt();
+                ArrayList<Range> outbound = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long start = in.readLong();
+                    long end = in.readLong();
+                    boolean release = in.readBoolean();
+                    int nodeCount = in.readInt();
+                    ArrayList<String> nodes = new ArrayList<>(nodeCount);
+                    for (int j = 0; j < nodeCount; j++) {
+                        nodes.add(in.readUTF());
+                    }
+                    outbound.add(new Range(start, end, nodes, release));
+                }
+                count = in.readInt();
+                LinkedHashMap<String, String> cursors = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String bucket = in.readUTF();
+                    cursors.put(bucket, in.readBoolean() ? in.readUTF() : null);
+                }
+                plans.add(new RebalancePlan(id, outbound, new ArrayList<>(), cursors));
+            }
+        }
+        plans.sort(Comparator.comparingLong(RebalancePlan::getId));
+        return plans;
+    }
+
+    /**
+     * A range of the ring, from its start (exclusive) to its end (inclusive), wrapping around
+     * the end of the ring if the start is not lower than the end
+     */
+    static class Range {
+        private final long start;
+        private final long end;
+        private final ArrayList<String> nodes;
+        private final boolean release;
+
+        /**
+         * @param start   position (exclusive) at which the range starts
+         * @param end     position (inclusive) at which the range ends
+         * @param nodes   addresses of the new replicas of an outbound range, or of the nodes
+         *                streaming an inbound range
+         * @param release true if this node drops its copy of the range once it is streamed
+         */
+        Range(long start, long end, ArrayList<String> nodes, boolean release) {
+            this.start = start;
+            this.end = end;
+            this.nodes = nodes;
+            this.release = release;
+        }
+
+        boolean contains(long hash) {
+            if (start < end) {
+                return hash > start && hash <= end;
+            }
+            /* wraps around, or covers the whole ring if there is a single token */
+            return hash > start || hash <= end;
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        ArrayList<String> getNodes() {
+            return nodes;
+        }
+
+        boolean isRelease() {
+            return release;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Framed, non-blocking TCP transport used by DynamoServer for data-path messages (requests,
+ * forwards and acknowledgements), which may not fit in a single datagram.
+ * <p>
+ * A single selector thread accepts connections from other nodes, reads length-prefixed frames
+ * from them and writes the frames queued by senders. Outgoing messages to a node are pipelined
+ * on one persistent connection, which is opened on the first send and re-opened on the next
+ * send after it fails. Decoded messages are handed to the handler on the selector thread, so
+ * the handler must not block.
+ * </p>
+ * <p>
+ * The bytes queued on a connection are bounded by {@link #MAX_QUEUED_BYTES}: a send which would
+ * exceed them fails, and the connection, whose peer has stopped reading, is closed so that the
+ * next send opens a new one. The read buffer of a connection grows to fit a large frame, and is
+ * shrunk back once the frame was decoded.
+ * </p>
+ */
+class TcpTransport implements Runnable, Closeable {
+
+    /**
+     * Maximum size of a single frame, larger frames are treated as a protocol error
+     */
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Maximum number of bytes queued on a connection and not yet written to the socket
+     */
+    static final long MAX_QUEUED_BYTES = 2L * MAX_FRAME_SIZE;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final int port;
+    private final Consumer<DynamoMessage> handler;
+    private final ConcurrentHashMap<String, Connection> connections;
+    private final ConcurrentLinkedQueue<Connection> pendingConnections;
+    private final ConcurrentLinkedQueue<Connection> pendingWrites;
+    private final AtomicBoolean keepRunning;
+
+    /**
+     * @param port    port on which this node accepts connections, and on which the other nodes listen
+     * @param handler callback receiving every message read from a connection
+     * @throws IOException if the server socket could not be bound
+     */
+    TcpTransport(int port, Consumer<DynamoMessage> handler) throws IOException {
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.port = port;
+        this.handler = handler;
+        this.connections = new ConcurrentHashMap<>();
+        this.pendingConnections = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.keepRunning = new AtomicBoolean(true);
+    }
+
+    /**
+     * Queues a message to be sent to a node. The message is written by the selector thread,
+     * this method never blocks on the network
+     *
+     * @param node   the node to send the message to
+     * @param buf    array containing the serialized message
+     * @param length number of bytes of the array to be sent
+     * @throws IOException if a connection to the node could not be opened, or if too many bytes
+     *                     are already queued on it
+     */
+    void send(DynamoNode node, byte[] buf, int length) throws IOException {
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Message of " + length + " bytes exceeds maximum frame size");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.putInt(length);
+        frame.put(buf, 0, length);
+        frame.flip();
+
+        Connection connection = connections.get(node.getAddress());
+        if (connection == null) {
+            connection = connect(node);
+        }
+        if (connection.queuedBytes.addAndGet(frame.capacity()) > MAX_QUEUED_BYTES) {
+            connection.queuedBytes.addAndGet(-frame.capacity());
+            close(connection);
+            throw new IOException("Send queue to " + node.getAddress() + " is full, closing the connection");
+        }
+        connection.outbound.add(frame);
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Opens a new outbound connection to a node, to be registered by the selector thread
+     *
+     * @param node the node to connect to
+     * @return the connection to the node
+     * @throws IOException if the connection could not be initiated
+     */
+    private synchronized Connection connect(DynamoNode node) throws IOException {
+        Connection connection = connections.get(node.getAddress());
+        if (connection == null) {
+            String host = node.getAddress().split(":")[0];
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(host, port));
+            connection = new Connection(channel, node.getAddress());
+            connections.put(node.getAddress(), connection);
+            pendingConnections.add(connection);
+        }
+        return connection;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("[Dynamo Server] TCP transport listening at port: " + port);
+        while (keepRunning.get()) {
+            try {
+                selector.select();
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connection.channel.finishConnect();
+                            updateInterest(connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("[WARN] Connection to " + connection.peer + " closed: " + e.getMessage());
+                        close(connection);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                keepRunning.set(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Registers the connections opened, and the writes queued, by other threads since the last select
+     *
+     * @throws ClosedChannelException if a channel was closed before it could be registered
+     */
+    private void registerPending() throws ClosedChannelException {
+        Connection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+        }
+        while ((connection = pendingWrites.poll()) != null) {
+            if (connection.key != null && connection.key.isValid()) {
+                updateInterest(connection);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel, String.valueOf(channel.getRemoteAddress()));
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    /**
+     * Reads all available bytes of a connection, and hands every complete frame to the handler
+     *
+     * @param connection the connection to read from
+     * @throws IOException if the connection was closed or sent a malformed frame
+     */
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.inbound) < 0) {
+            throw new ClosedChannelException();
+        }
+        ByteBuffer inbound = connection.inbound;
+        inbound.flip();
+        while (inbound.remaining() >= HEADER_SIZE) {
+            int length = inbound.getInt(inbound.position());
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            if (inbound.remaining() < HEADER_SIZE + length) {
+                break;
+            }
+            ByteBuffer frame = inbound.slice();
+            frame.position(HEADER_SIZE);
+            frame.limit(HEADER_SIZE + length);
+            inbound.position(inbound.position() + HEADER_SIZE + length);
+            try {
+                handler.accept(MessageCodec.decode(frame));
+            } catch (ProtocolException e) {
+                System.out.println("Malformed packet! " + e.getMessage());
+            }
+        }
+        inbound.compact();
+
+        /* grow the buffer when the next frame does not fit in it, shrink it back once the
+         * large frame it was grown for was decoded */
+        int required = inbound.position() >= HEADER_SIZE ? HEADER_SIZE + inbound.getInt(0) : 0;
+        int capacity = Math.max(BUFFER_SIZE, Math.max(required, inbound.position()));
+        if (capacity != inbound.capacity() && required <= HEADER_SIZE + MAX_FRAME_SIZE) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            inbound.flip();
+            resized.put(inbound);
+            connection.inbound = resized;
+        }
+    }
+
+    /**
+     * Writes as many queued frames as the socket accepts
+     *
+     * @param connection the connection to write to
+     * @throws IOException if the connection was closed
+     */
+    private void write(Connection connection) throws IOException {
+        ByteBuffer frame;
+        while ((frame = connection.outbound.peek()) != null) {
+            connection.channel.write(frame);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            connection.outbound.poll();
+            connection.queuedBytes.addAndGet(-frame.capacity());
+        }
+        updateInterest(connection);
+    }
+
+    /**
+     * Updates the operations the selector waits for on a connection
+     *
+     * @param connection the connection to update
+     */
+    private void updateInterest(Connection connection) {
+        if (connection.channel.isConnectionPending()) {
+            return;
+        }
+        int ops = SelectionKey.OP_READ;
+        if (!connection.outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    private void close(Connection connection) {
+        connections.remove(connection.peer, connection);
+        if (!connection.outbound.isEmpty()) {
+            System.out.println("[WARN] Dropping " + connection.outbound.size() + " unsent messages to "
+                    + connection.peer);
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        keepRunning.set(false);
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        server.close();
+        selector.close();
+    }
+
+    /**
+     * State of a single connection, either opened by this node or accepted from another node
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final String peer;
+        private final ConcurrentLinkedQueue<ByteBuffer> outbound;
+        /* bytes of the frames of the outbound queue */
+        private final AtomicLong queuedBytes;
+        private ByteBuffer inbound;
+        private SelectionKey key;
+
+        Connection(SocketChannel channel, String peer) {
+            this.channel = channel;
+            this.peer = peer;
+            this.outbound = new ConcurrentLinkedQueue<>();
+            this.queuedBytes = new AtomicLong();
+            this.inbound = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+}
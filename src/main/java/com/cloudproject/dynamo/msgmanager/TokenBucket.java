@@ -0,0 +1,44 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter allowing a number of bytes per second, with bursts of up to one second worth
+ * of bytes. A caller exceeding the rate is not refused but delayed, until the bytes it sent
+ * are paid back.
+ */
+class TokenBucket {
+
+    private final long rate;
+    private long available;
+    private long lastRefill;
+
+    /**
+     * @param rate number of bytes allowed per second
+     */
+    TokenBucket(long rate) {
+        this.rate = Math.max(1, rate);
+        this.available = this.rate;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes bytes from the bucket, waiting for as long as the bucket is in debt
+     *
+     * @param bytes number of bytes about to be sent
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    void acquire(long bytes) throws InterruptedException {
+        long debt;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(rate, available + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+            available -= bytes;
+            debt = -available;
+        }
+        if (debt > 0) {
+            TimeUnit.NANOSECONDS.sleep(debt * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.cloudproject.dynamo.msgmanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport used by DynamoServer for sending gossip datagrams to other nodes. A single bound
+ * {@link DatagramChannel} is shared by all senders, the socket address of every node is
+ * resolved only once, and each sending thread reuses its own direct buffer, so that
+ * sending a message costs a single send call.
+ */
+class UdpTransport implements Closeable {
+
+    /**
+     * Maximum payload of a UDP datagram
+     */
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final DatagramChannel channel;
+    private final ConcurrentHashMap<String, InetSocketAddress> endpoints;
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    /**
+     * @throws IOException if the channel could not be opened
+     */
+    UdpTransport() throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(null);
+        this.endpoints = new ConcurrentHashMap<>();
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE));
+    }
+
+    /**
+     * Sends a message to the gossip port of a node
+     *
+     * @param node   the node to send the message to
+     * @param buf    array containing the serialized message
+     * @param length number of bytes of the array to be sent
+     * @throws IOException if the message could not be sent
+     */
+    void send(DynamoNode node, byte[] buf, int length) throws IOException {
+        if (length > MAX_DATAGRAM_SIZE) {
+            throw new IOException("Message of " + length + " bytes does not fit in a datagram");
+        }
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        buffer.put(buf, 0, length);
+        buffer.flip();
+        try {
+            channel.send(buffer, resolve(node));
+        } catch (IOException e) {
+            /* address may have changed, resolve it again on the next send */
+            endpoints.remove(node.getAddress());
+            throw e;
+        }
+    }
+
+    /**
+     * Method to return the (cached) socket address of a node
+     *
+     * @param node the node whose address is required
+     * @return the resolved address of the node
+     * @throws IOException if the address of the node could not be resolved
+     */
+    private InetSocketAddress resolve(DynamoNode node) throws IOException {
+        InetSocketAddress endpoint = endpoints.get(node.getAddress());
+        if (endpoint == null) {
+            String[] address = node.getAddress().split(":");
+            endpoint = new InetSocketAddress(InetAddress.getByName(address[0]), Integer.parseInt(address[1]));
+            endpoints.put(node.getAddress(), endpoint);
+        }
+        return endpoint;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,590 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.config.AppConfig;
+import com.cloudproject.dynamo.models.ObjectIOModel;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured storage engine, modelled after Bitcask. Every bucket is a folder of
+ * append-only log segments, and an in-memory hash index maps every live key of the bucket
+ * to the position of its latest value in the log. Writes are therefore a single sequential
+ * append, and reads a single positional read.
+ * <p>
+ * Each record is laid out as {@code [crc:int][keyLength:int][valueLength:int][key][value]},
+ * a deletion being recorded as a tombstone with a value length of -1. Writes are forced to
+ * disk in batches, every {@code syncWrites} writes and every {@code syncInterval} milliseconds.
+ * A background task compacts sealed segments holding mostly overwritten or deleted records
+ * by copying their live records to the active segment. On start up, the index of a bucket is
+ * rebuilt by scanning its segments, discarding any torn record at the tail of the log.
+ * </p>
+ */
+public class BitcaskStorageEngine implements StorageEngine {
+
+    private static final String SEGMENT_SUFFIX = ".data";
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+
+    private final File root;
+    private final long segmentSize;
+    private final int syncWrites;
+    private final double compactionThreshold;
+    private final ConcurrentHashMap<String, Bucket> buckets;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param root                directory in which the bucket folders are created
+     * @param segmentSize         size (in bytes) after which a new log segment is started
+     * @param syncWrites          number of writes after which the log is forced to disk, 0 to only sync periodically
+     * @param syncInterval        interval (in milliseconds) at which unsynced writes are forced to disk
+     * @param compactionInterval  interval (in milliseconds) between two compaction runs
+     * @param compactionThreshold fraction of dead bytes above which a segment is compacted
+     */
+    public BitcaskStorageEngine(File root, long segmentSize, int syncWrites, long syncInterval,
+                                long compactionInterval, double compactionThreshold) {
+        this.root = root;
+        this.segmentSize = segmentSize;
+        this.syncWrites = syncWrites;
+        this.compactionThreshold = compactionThreshold;
+        this.buckets = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bitcask-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::periodicSync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::compact, compactionInterval, compactionInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean createBucket(String bucket) {
+        File dir = new File(root, bucket);
+        if (!dir.mkdir()) {
+            return false;
+        }
+        return getBucket(bucket) != null;
+    }
+
+    @Override
+    public boolean deleteBucket(String bucket) {
+        boolean status = false;
+        synchronized (buckets) {
+            Bucket removed = buckets.remove(bucket);
+            if (removed != null) {
+                removed.close();
+            }
+        }
+        try {
+            File dir = new File(root, bucket);
+            if (dir.exists()) {
+                FileUtils.deleteDirectory(dir);
+                status = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return status;
+    }
+
+    @Override
+    public List<String> listBuckets() {
+        return StorageEngine.listBucketFolders(root);
+    }
+
+    @Override
+    public boolean create(String bucket, String key, ObjectIOModel value) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return false;
+        }
+        byte[] bytes = encode(value);
+        synchronized (b) {
+            if (b.closed || b.index.containsKey(key)) {
+                return false;
+            }
+            try {
+                b.index.put(key, b.append(key, bytes));
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public ObjectIOModel read(String bucket, String key) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return null;
+        }
+        /* a compaction may retire the segment between the index lookup and the read, retry once */
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location location = b.index.get(key);
+            if (location == null) {
+                return null;
+            }
+            try {
+                ByteBuffer value = ByteBuffer.allocate(location.valueLength);
+                readFully(location.segment.channel, value, location.valueOffset());
+                return decode(value.array());
+            } catch (ClosedChannelException e) {
+                // segment was compacted away, look the key up again
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean update(String bucket, String key, ObjectIOModel value) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return false;
+        }
+        byte[] bytes = encode(value);
+        synchronized (b) {
+            Location old = b.index.get(key);
+            if (b.closed || old == null) {
+                return false;
+            }
+            try {
+                b.index.put(key, b.append(key, bytes));
+                old.segment.deadBytes += old.length;
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String bucket, String key) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return false;
+        }
+        synchronized (b) {
+            Location old = b.index.get(key);
+            if (b.closed || old == null) {
+                return false;
+            }
+            try {
+                Location tombstone = b.append(key, null);
+                b.index.remove(key);
+                old.segment.deadBytes += old.length;
+                tombstone.segment.deadBytes += tombstone.length;
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The index of a bucket is a hash map, so a scan has to go through every key of the bucket
+     * </p>
+     */
+    @Override
+    public SortedMap<String, ObjectIOModel> scan(String bucket, String fromKey, int limit) {
+        TreeMap<String, ObjectIOModel> result = new TreeMap<>();
+        Bucket b = getBucket(bucket);
+        if (b == null || limit <= 0) {
+            return result;
+        }
+        TreeMap<String, Boolean> keys = new TreeMap<>();
+        for (String key : b.index.keySet()) {
+            if ((fromKey == null || key.compareTo(fromKey) >= 0)
+                    && (keys.size() < limit || key.compareTo(keys.lastKey()) < 0)) {
+                keys.put(key, true);
+                if (keys.size() > limit) {
+                    keys.pollLastEntry();
+                }
+            }
+        }
+        for (String key : keys.keySet()) {
+            ObjectIOModel contents = read(bucket, key);
+            if (contents != null) {
+                result.put(key, contents);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        synchronized (buckets) {
+            for (Bucket b : buckets.values()) {
+                b.close();
+            }
+            buckets.clear();
+        }
+    }
+
+    /**
+     * Method to return the open bucket having the given name, opening (and recovering)
+     * it if it exists on disk but was not accessed yet
+     *
+     * @param name name of the bucket
+     * @return the bucket, or null if it does not exist
+     */
+    private Bucket getBucket(String name) {
+        Bucket b = buckets.get(name);
+        if (b == null) {
+            synchronized (buckets) {
+                b = buckets.get(name);
+                File dir = new File(root, name);
+                if (b == null && dir.isDirectory()) {
+                    try {
+                        b = new Bucket(dir);
+                        buckets.put(name, b);
+                    } catch (IOException e) {
+                        System.out.println("[WARN] Could not open bucket " + name + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (Bucket b : buckets.values()) {
+            synchronized (b) {
+                b.sync();
+            }
+        }
+    }
+
+    /**
+     * Forces the unsynced writes of every bucket to disk
+     */
+    private void periodicSync() {
+        try {
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compacts every sealed segment whose fraction of dead bytes exceeds the threshold
+     */
+    private void compact() {
+        for (Bucket b : buckets.values()) {
+            ArrayList<Segment> candidates = new ArrayList<>();
+            synchronized (b) {
+                for (Segment segment : b.segments.values()) {
+                    if (segment != b.active && segment.size > 0
+                            && (double) segment.deadBytes / segment.size >= compactionThreshold) {
+                        candidates.add(segment);
+                    }
+                }
+            }
+            for (Segment segment : candidates) {
+                try {
+                    b.compact(segment);
+                } catch (IOException e) {
+                    System.out.println("[WARN] Compaction of " + segment.file + " failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(ObjectIOModel value) {
+        return AppConfig.getParser().serialize(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ObjectIOModel decode(byte[] value) {
+        return AppConfig.getParser().deserialize(new String(value, StandardCharsets.UTF_8), ObjectIOModel.class);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private static long checksum(byte[] record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, length - 4);
+        return crc.getValue();
+    }
+
+    /**
+     * A bucket: its log segments and the index of its live keys. Writes to a bucket are
+     * serialized by synchronizing on it, reads only go through the concurrent index
+     */
+    private class Bucket {
+        private final File dir;
+        private final ConcurrentHashMap<String, Location> index;
+        private final TreeMap<Integer, Segment> segments;
+        private Segment active;
+        private int unsynced;
+        private boolean closed;
+
+        /**
+         * Opens a bucket and rebuilds its index from the log segments on disk
+         *
+         * @param dir folder of the bucket
+         * @throws IOException if a segment could not be read
+         */
+        Bucket(File dir) throws IOException {
+            this.dir = dir;
+            this.index = new ConcurrentHashMap<>();
+            this.segments = new TreeMap<>();
+            File[] files = dir.listFiles((parent, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                }
+            }
+            for (Segment segment : segments.values()) {
+                recover(segment);
+            }
+            active = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+        }
+
+        /**
+         * Replays a segment into the index, truncating it at the first torn or corrupt record
+         *
+         * @param segment the segment to be replayed
+         * @throws IOException if the segment could not be read
+         */
+        private void recover(Segment segment) throws IOException {
+            long position = 0;
+            long length = segment.channel.size();
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(segment.file)))) {
+                while (position + HEADER_SIZE <= length) {
+                    int crc = in.readInt();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    int recordLength = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                    if (keyLength < 0 || valueLength < TOMBSTONE || position + recordLength > length) {
+                        break;
+                    }
+                    byte[] record = new byte[recordLength];
+                    ByteBuffer.wrap(record).putInt(crc).putInt(keyLength).putInt(valueLength);
+                    in.readFully(record, HEADER_SIZE, recordLength - HEADER_SIZE);
+                    if ((int) checksum(record, recordLength) != crc) {
+                        break;
+                    }
+                    String key = new String(record, HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+                    Location old = index.remove(key);
+                    if (old != null) {
+                        old.segment.deadBytes += old.length;
+                    }
+                    if (valueLength == TOMBSTONE) {
+                        segment.deadBytes += recordLength;
+                    } else {
+                        index.put(key, new Location(segment, position, recordLength, keyLength, valueLength));
+                    }
+                    position += recordLength;
+                }
+            }
+            if (position < length) {
+                System.out.println("[WARN] Discarding " + (length - position) + " torn bytes at the end of "
+                        + segment.file);
+                segment.channel.truncate(position);
+            }
+            segment.size = position;
+        }
+
+        private Segment newSegment(int id) throws IOException {
+            Segment segment = new Segment(id, new File(dir, String.format("%010d", id) + SEGMENT_SUFFIX));
+            segments.put(id, segment);
+            return segment;
+        }
+
+        /**
+         * Appends a record to the active segment, starting a new segment when it is full
+         *
+         * @param key   key of the record
+         * @param value value of the record, null for a tombstone
+         * @return location of the appended record
+         * @throws IOException if the record could not be written
+         */
+        Location append(String key, byte[] value) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int valueLength = value == null ? TOMBSTONE : value.length;
+            int recordLength = HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0);
+            byte[] record = new byte[recordLength];
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            buffer.putInt(0).putInt(keyBytes.length).putInt(valueLength).put(keyBytes);
+            if (value != null) {
+                buffer.put(value);
+            }
+            buffer.putInt(0, (int) checksum(record, recordLength));
+            buffer.flip();
+
+            if (active.size > 0 && active.size + recordLength > segmentSize) {
+                active.channel.force(false);
+                unsynced = 0;
+                active = newSegment(active.id + 1);
+            }
+            long offset = active.size;
+            while (buffer.hasRemaining()) {
+                active.channel.write(buffer, offset + buffer.position());
+            }
+            active.size += recordLength;
+
+            unsynced++;
+            if (syncWrites > 0 && unsynced >= syncWrites) {
+                sync();
+            }
+            return new Location(active, offset, recordLength, keyBytes.length, valueLength);
+        }
+
+        void sync() throws IOException {
+            if (unsynced > 0 && !closed) {
+                active.channel.force(false);
+                unsynced = 0;
+            }
+        }
+
+        /**
+         * Copies the live records of a sealed segment to the active segment, then deletes it
+         *
+         * @param segment the segment to be compacted
+         * @throws IOException if the segment could not be read or its records could not be copied
+         */
+        void compact(Segment segment) throws IOException {
+            long position = 0;
+            int copied = 0;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(segment.file)))) {
+                while (position + HEADER_SIZE <= segment.size) {
+                    in.readInt();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    int recordLength = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                    byte[] keyBytes = new byte[keyLength];
+                    in.readFully(keyBytes);
+                    byte[] value = valueLength == TOMBSTONE ? null : new byte[valueLength];
+                    if (value != null) {
+                        in.readFully(value);
+                    }
+                    String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+                    synchronized (this) {
+                        if (closed) {
+                            return;
+                        }
+                        Location current = index.get(key);
+                        if (value != null && current != null && current.segment == segment
+                                && current.offset == position) {
+                            /* still the latest value of the key, keep it */
+                            index.put(key, append(key, value));
+                            copied++;
+                        } else if (value == null && current == null
+                                && segments.firstKey() < segment.id) {
+                            /* older segments may still hold a value this tombstone hides */
+                            Location tombstone = append(key, null);
+                            tombstone.segment.deadBytes += tombstone.length;
+                        }
+                    }
+                    position += recordLength;
+                }
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                sync();
+                segments.remove(segment.id);
+                segment.channel.close();
+                if (!segment.file.delete()) {
+                    System.out.println("[WARN] Could not delete compacted segment " + segment.file);
+                }
+            }
+            System.out.println("[Storage] Compacted " + segment.file + ", " + copied + " live records kept");
+        }
+
+        synchronized void close() {
+            try {
+                sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closed = true;
+            for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+                try {
+                    entry.getValue().channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A single log segment of a bucket
+     */
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private long deadBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Position of the latest record of a key in the log
+     */
+    private static class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final int keyLength;
+        private final int valueLength;
+
+        Location(Segment segment, long offset, int length, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        long valueOffset() {
+            return offset + HEADER_SIZE + keyLength;
+        }
+    }
+}
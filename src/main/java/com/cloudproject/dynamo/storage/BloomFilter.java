@@ -0,0 +1,100 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.consistenthash.CityHash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter over the keys of an SSTable, used to skip tables which certainly do not
+ * contain a key. Uses double hashing over the two halves of a 64-bit CityHash
+ */
+class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+
+    private final long[] words;
+    private final int numHashes;
+
+    private BloomFilter(long[] words, int numHashes) {
+        this.words = words;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Builds a filter containing the given key hashes
+     *
+     * @param hashes array holding the hashes (as returned by {@link #hash(String)}) of the keys
+     * @param count  number of hashes of the array to be added
+     * @return the filter
+     */
+    static BloomFilter build(long[] hashes, int count) {
+        long bits = Math.max(64, (long) count * BITS_PER_KEY);
+        /* optimal number of hash functions is ln(2) * bits per key */
+        int numHashes = (int) Math.max(1, Math.min(30, Math.round(BITS_PER_KEY * 0.69)));
+        BloomFilter filter = new BloomFilter(new long[(int) ((bits + 63) / 64)], numHashes);
+        for (int i = 0; i < count; i++) {
+            filter.add(hashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Method to return the hash of a key, as used by the filter
+     *
+     * @param key the key to be hashed
+     * @return hash of the key
+     */
+    static long hash(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return CityHash.cityHash64(bytes, 0, bytes.length);
+    }
+
+    private void add(long hash) {
+        long bits = (long) words.length * 64;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Method to check whether a key may be present
+     *
+     * @param hash hash of the key, as returned by {@link #hash(String)}
+     * @return false if the key is certainly absent, true if it may be present
+     */
+    boolean mightContain(long hash) {
+        long bits = (long) words.length * 64;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(numHashes);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    static BloomFilter readFrom(DataInputStream in) throws IOException {
+        int numHashes = in.readInt();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words, numHashes);
+    }
+}
@@ -0,0 +1,308 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.models.ObjectIOModel;
+import com.cloudproject.dynamo.models.VectorClock;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Storage engine decorator which keeps recently read objects in memory, so that reads of hot
+ * keys skip both the disk and the parsing of the stored object.
+ * <p>
+ * The cache is split in shards, each bounded to its share of the configured size (an estimate
+ * of the heap used by its entries) and evicting with a segmented LRU policy: a newly cached
+ * object enters the probationary segment, and is promoted to the protected segment when it is
+ * read again. Objects are evicted from the least recently used end of the probationary segment,
+ * so that a burst of one-off reads cannot flush out the hot keys, which live in the protected
+ * segment. Writes and deletes invalidate the cached object.
+ * </p>
+ * <p>
+ * Cached objects are never handed out: every read returns a copy, since callers may modify
+ * the object they read before writing it back.
+ * </p>
+ */
+public class CachingStorageEngine implements StorageEngine {
+
+    private static final int SHARDS = 16;
+    private static final double PROTECTED_RATIO = 0.8;
+    /* rough size of an entry besides its strings: the map node, the model and the string headers */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final StorageEngine delegate;
+    private final Shard[] shards;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * @param delegate the engine holding the objects
+     * @param maxBytes maximum (estimated) size in bytes of the cached objects
+     */
+    public CachingStorageEngine(StorageEngine delegate, long maxBytes) {
+        this.delegate = delegate;
+        this.shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            this.shards[i] = new Shard(maxBytes / SHARDS);
+        }
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    @Override
+    public boolean createBucket(String bucket) {
+        return delegate.createBucket(bucket);
+    }
+
+    @Override
+    public boolean deleteBucket(String bucket) {
+        boolean status = delegate.deleteBucket(bucket);
+        for (Shard shard : shards) {
+            shard.invalidateBucket(bucket);
+        }
+        return status;
+    }
+
+    @Override
+    public List<String> listBuckets() {
+        return delegate.listBuckets();
+    }
+
+    @Override
+    public boolean create(String bucket, String key, ObjectIOModel value) {
+        String cacheKey = cacheKey(bucket, key);
+        Shard shard = shardFor(cacheKey);
+        boolean status = delegate.create(bucket, key, value);
+        shard.invalidate(cacheKey);
+        return status;
+    }
+
+    @Override
+    public ObjectIOModel read(String bucket, String key) {
+        String cacheKey = cacheKey(bucket, key);
+        Shard shard = shardFor(cacheKey);
+        long generation;
+        synchronized (shard) {
+            ObjectIOModel cached = shard.get(cacheKey);
+            if (cached != null) {
+                hits.increment();
+                return copy(cached);
+            }
+            generation = shard.generation;
+        }
+        misses.increment();
+        ObjectIOModel contents = delegate.read(bucket, key);
+        if (contents != null) {
+            /* the engine returned an object of its own, which the cache can keep */
+            ObjectIOModel cached = copy(contents);
+            synchronized (shard) {
+                /* a write to this shard may have raced with the read, the object read could then be stale */
+                if (shard.generation == generation) {
+                    shard.put(cacheKey, cached);
+                }
+            }
+        }
+        return contents;
+    }
+
+    @Override
+    public boolean update(String bucket, String key, ObjectIOModel value) {
+        String cacheKey = cacheKey(bucket, key);
+        Shard shard = shardFor(cacheKey);
+        boolean status = delegate.update(bucket, key, value);
+        shard.invalidate(cacheKey);
+        return status;
+    }
+
+    @Override
+    public boolean delete(String bucket, String key) {
+        String cacheKey = cacheKey(bucket, key);
+        Shard shard = shardFor(cacheKey);
+        boolean status = delegate.delete(bucket, key);
+        shard.invalidate(cacheKey);
+        return status;
+    }
+
+    @Override
+    public SortedMap<String, ObjectIOModel> scan(String bucket, String fromKey, int limit) {
+        return delegate.scan(bucket, fromKey, limit);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        System.out.println("[Storage] Read " + describe());
+        delegate.close();
+    }
+
+    /**
+     * @return number of reads served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of reads which had to go to the storage engine
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of objects evicted to keep the cache within its size
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Method to describe the effectiveness of the cache
+     *
+     * @return the hits, misses, hit rate and evictions of the cache
+     */
+    public String describe() {
+        long hits = getHits();
+        long misses = getMisses();
+        long reads = hits + misses;
+        return "cache: " + hits + " hits, " + misses + " misses ("
+                + (reads > 0 ? String.format("%.1f", 100.0 * hits / reads) : "0.0") + "% hit rate), "
+                + getEvictions() + " evictions";
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    private Shard shardFor(String cacheKey) {
+        return shards[Math.floorMod(cacheKey.hashCode(), SHARDS)];
+    }
+
+    private static ObjectIOModel copy(ObjectIOModel model) {
+        /* vector clocks are immutable, only the model needs to be copied */
+        return new ObjectIOModel(model.getClock(), model.getValue(), model.isDeleted());
+    }
+
+    private static long weigh(String cacheKey, ObjectIOModel model) {
+        String value = model.getValue();
+        VectorClock clock = model.getClock();
+        return ENTRY_OVERHEAD + 2L * cacheKey.length() + (value == null ? 0 : 2L * value.length())
+                + (clock == null ? 0 : 24L * clock.getNodeIds().length);
+    }
+
+    /**
+     * A shard of the cache, with its probationary and protected segments. All accesses to a
+     * shard are serialized by synchronizing on it
+     */
+    private class Shard {
+        private final long maxBytes;
+        private final long maxProtectedBytes;
+        private final LinkedHashMap<String, ObjectIOModel> probation;
+        private final LinkedHashMap<String, ObjectIOModel> protect;
+        private long probationBytes;
+        private long protectedBytes;
+        /* bumped on every invalidation, to detect reads racing with writes */
+        private long generation;
+
+        Shard(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+            this.probation = new LinkedHashMap<>(16, 0.75f, true);
+            this.protect = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        /**
+         * Method to look an object up, promoting it to the protected segment if it was on probation
+         */
+        ObjectIOModel get(String cacheKey) {
+            ObjectIOModel model = protect.get(cacheKey);
+            if (model != null) {
+                return model;
+            }
+            model = probation.remove(cacheKey);
+            if (model != null) {
+                long weight = weigh(cacheKey, model);
+                probationBytes -= weight;
+                protect.put(cacheKey, model);
+                protectedBytes += weight;
+                /* demote the least recently used protected objects back to probation */
+                Iterator<Map.Entry<String, ObjectIOModel>> oldest = protect.entrySet().iterator();
+                while (protectedBytes > maxProtectedBytes && oldest.hasNext()) {
+                    Map.Entry<String, ObjectIOModel> entry = oldest.next();
+                    oldest.remove();
+                    long demoted = weigh(entry.getKey(), entry.getValue());
+                    protectedBytes -= demoted;
+                    probation.put(entry.getKey(), entry.getValue());
+                    probationBytes += demoted;
+                }
+            }
+            return model;
+        }
+
+        /**
+         * Method to add an object to the probationary segment, evicting objects if the shard is full
+         */
+        void put(String cacheKey, ObjectIOModel model) {
+            long weight = weigh(cacheKey, model);
+            if (weight > maxBytes || protect.containsKey(cacheKey) || probation.containsKey(cacheKey)) {
+                return;
+            }
+            probation.put(cacheKey, model);
+            probationBytes += weight;
+            evict(probation, true);
+            evict(protect, false);
+        }
+
+        private void evict(LinkedHashMap<String, ObjectIOModel> segment, boolean isProbation) {
+            Iterator<Map.Entry<String, ObjectIOModel>> oldest = segment.entrySet().iterator();
+            while (probationBytes + protectedBytes > maxBytes && oldest.hasNext()) {
+                Map.Entry<String, ObjectIOModel> entry = oldest.next();
+                oldest.remove();
+                long weight = weigh(entry.getKey(), entry.getValue());
+                if (isProbation) {
+                    probationBytes -= weight;
+                } else {
+                    protectedBytes -= weight;
+                }
+                evictions.increment();
+            }
+        }
+
+        synchronized void invalidate(String cacheKey) {
+            generation++;
+            ObjectIOModel model = probation.remove(cacheKey);
+            if (model != null) {
+                probationBytes -= weigh(cacheKey, model);
+            }
+            model = protect.remove(cacheKey);
+            if (model != null) {
+                protectedBytes -= weigh(cacheKey, model);
+            }
+        }
+
+        synchronized void invalidateBucket(String bucket) {
+            generation++;
+            String prefix = bucket + "/";
+            probation.keySet().removeIf(cacheKey -> cacheKey.startsWith(prefix));
+            protect.keySet().removeIf(cacheKey -> cacheKey.startsWith(prefix));
+            probationBytes = 0;
+            for (Map.Entry<String, ObjectIOModel> entry : probation.entrySet()) {
+                probationBytes += weigh(entry.getKey(), entry.getValue());
+            }
+            protectedBytes = 0;
+            for (Map.Entry<String, ObjectIOModel> entry : protect.entrySet()) {
+                protectedBytes += weigh(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.config.AppConfig;
+import com.cloudproject.dynamo.models.ObjectIOModel;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Storage engine decorator which makes every object write durable through a
+ * {@link WriteAheadLog} before reporting it as successful. The write is applied to the
+ * wrapped engine first, then logged, and the calling thread waits for the group commit
+ * of its record; the wrapped engine may therefore buffer its own writes and only needs to
+ * force them to disk when the log is checkpointed.
+ * <p>
+ * Writes to the same key are applied, logged and committed under the same lock, so that the log
+ * replays them in the order in which they were applied. Until its record is committed, reads of
+ * the key return the value it had before the write, and if the commit fails that value is put
+ * back, so that a write is only ever seen once it is durable. On start up, the logged writes are
+ * replayed onto the wrapped engine as puts and deletes, which makes the replay idempotent.
+ * Bucket creations and deletions are logged as well, exclusively of the object writes, so that
+ * the writes to a bucket which was deleted are not replayed into a bucket re-created under the
+ * same name.
+ * </p>
+ */
+public class DurableStorageEngine implements StorageEngine {
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte CREATE_BUCKET = 3;
+    private static final byte DELETE_BUCKET = 4;
+    private static final int LOCK_STRIPES = 64;
+
+    private final StorageEngine delegate;
+    private final WriteAheadLog log;
+    private final Object[] locks;
+    /* held shared by the object writes, exclusively by the bucket creations and deletions */
+    private final ReadWriteLock bucketLock;
+    /* bucket/key -> value before the write of the objects whose write is not committed yet */
+    private final ConcurrentHashMap<String, Previous> uncommitted;
+
+    /**
+     * @param delegate       the engine holding the objects
+     * @param logFile        file of the write-ahead log
+     * @param checkpointSize size (in bytes) of the log after which the engine is synced and the log truncated
+     * @throws IOException if the log could not be opened or replayed
+     */
+    public DurableStorageEngine(StorageEngine delegate, File logFile, long checkpointSize) throws IOException {
+        this.delegate = delegate;
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+        this.bucketLock = new ReentrantReadWriteLock();
+        this.uncommitted = new ConcurrentHashMap<>();
+        this.log = new WriteAheadLog(logFile, checkpointSize, () -> {
+            try {
+                delegate.sync();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        this.log.recover(this::replay);
+    }
+
+    @Override
+    public boolean createBucket(String bucket) {
+        CompletableFuture<Void> commit;
+        bucketLock.writeLock().lock();
+        try {
+            if (!delegate.createBucket(bucket)) {
+                return false;
+            }
+            commit = log(CREATE_BUCKET, bucket, "", null);
+            if (!awaitCommit(commit, bucket, "")) {
+                delegate.deleteBucket(bucket);
+                return false;
+            }
+            return true;
+        } finally {
+            bucketLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteBucket(String bucket) {
+        CompletableFuture<Void> commit;
+        bucketLock.writeLock().lock();
+        try {
+            if (!delegate.deleteBucket(bucket)) {
+                return false;
+            }
+            commit = log(DELETE_BUCKET, bucket, "", null);
+            return awaitCommit(commit, bucket, "");
+        } finally {
+            bucketLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> listBuckets() {
+        return delegate.listBuckets();
+    }
+
+    @Override
+    public boolean create(String bucket, String key, ObjectIOModel value) {
+        return write(PUT, bucket, key, value, () -> delegate.create(bucket, key, value));
+    }
+
+    @Override
+    public ObjectIOModel read(String bucket, String key) {
+        /* read before looking for an uncommitted write, which is removed once it is committed */
+        ObjectIOModel value = delegate.read(bucket, key);
+        Previous previous = uncommitted.get(bucket + "/" + key);
+        return previous != null ? previous.value : value;
+    }
+
+    @Override
+    public boolean update(String bucket, String key, ObjectIOModel value) {
+        return write(PUT, bucket, key, value, () -> delegate.update(bucket, key, value));
+    }
+
+    @Override
+    public boolean delete(String bucket, String key) {
+        return write(DELETE, bucket, key, null, () -> delegate.delete(bucket, key));
+    }
+
+    @Override
+    public SortedMap<String, ObjectIOModel> scan(String bucket, String fromKey, int limit) {
+        SortedMap<String, ObjectIOModel> objects = delegate.scan(bucket, fromKey, limit);
+        if (uncommitted.isEmpty()) {
+            return objects;
+        }
+        TreeMap<String, ObjectIOModel> result = new TreeMap<>(objects);
+        Iterator<Map.Entry<String, ObjectIOModel>> iterator = result.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ObjectIOModel> entry = iterator.next();
+            Previous previous = uncommitted.get(bucket + "/" + entry.getKey());
+            if (previous == null) {
+                continue;
+            }
+            if (previous.value == null) {
+                iterator.remove();
+            } else {
+                entry.setValue(previous.value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+        delegate.close();
+    }
+
+    /**
+     * Method to apply a write to the wrapped engine, log it and wait for its commit, under the lock
+     * of its key. The value of the object before the write is returned by reads until the commit,
+     * and put back if the commit fails
+     *
+     * @param operation {@link #PUT} or {@link #DELETE}
+     * @param bucket    name of the bucket
+     * @param key       key of the object
+     * @param value     the object written, null for a delete
+     * @param apply     applies the write to the wrapped engine, true if it was applied
+     * @return true once the write is durable, false if it could not be applied or logged
+     */
+    private boolean write(byte operation, String bucket, String key, ObjectIOModel value, BooleanSupplier apply) {
+        String id = bucket + "/" + key;
+        bucketLock.readLock().lock();
+        try {
+            synchronized (lockFor(bucket, key)) {
+                ObjectIOModel before = delegate.read(bucket, key);
+                uncommitted.put(id, new Previous(before));
+                try {
+                    if (!apply.getAsBoolean()) {
+                        return false;
+                    }
+                    if (awaitCommit(log(operation, bucket, key, value), bucket, key)) {
+                        return true;
+                    }
+                    restore(bucket, key, before);
+                    return false;
+                } finally {
+                    uncommitted.remove(id);
+                }
+            }
+        } finally {
+            bucketLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Method to put back the value an object had before a write whose commit failed
+     *
+     * @param bucket name of the bucket
+     * @param key    key of the object
+     * @param before the value before the write, null if the object did not exist
+     */
+    private void restore(String bucket, String key, ObjectIOModel before) {
+        boolean restored = before == null
+                ? delegate.delete(bucket, key) || delegate.read(bucket, key) == null
+                : delegate.update(bucket, key, before) || delegate.create(bucket, key, before);
+        if (!restored) {
+            System.out.println("[WARN] Could not undo write of /" + bucket + "/" + key);
+        }
+    }
+
+    private Object lockFor(String bucket, String key) {
+        return locks[Math.floorMod(31 * bucket.hashCode() + key.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Method to queue a write in the log
+     *
+     * @param operation {@link #PUT}, {@link #DELETE}, {@link #CREATE_BUCKET} or {@link #DELETE_BUCKET}
+     * @param bucket    name of the bucket
+     * @param key       key of the object, empty for a bucket operation
+     * @param value     the object written, null for a delete
+     * @return future completed once the record is durable
+     */
+    private CompletableFuture<Void> log(byte operation, String bucket, String key, ObjectIOModel value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(operation);
+            out.writeUTF(bucket);
+            out.writeUTF(key);
+            if (value != null) {
+                out.write(AppConfig.getParser().serialize(value).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            // writing to an in-memory stream cannot fail
+            throw new UncheckedIOException(e);
+        }
+        return log.append(bytes.toByteArray());
+    }
+
+    /**
+     * Applies a logged write or bucket operation to the wrapped engine
+     *
+     * @param data the logged record
+     */
+    private void replay(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            byte operation = in.readByte();
+            String bucket = in.readUTF();
+            String key = in.readUTF();
+            if (operation == CREATE_BUCKET) {
+                delegate.createBucket(bucket);
+            } else if (operation == DELETE_BUCKET) {
+                delegate.deleteBucket(bucket);
+            } else if (operation == DELETE) {
+                delegate.delete(bucket, key);
+            } else {
+                ObjectIOModel value = AppConfig.getParser().deserialize(
+                        new String(in.readAllBytes(), StandardCharsets.UTF_8), ObjectIOModel.class);
+                if (!delegate.update(bucket, key, value) && !delegate.create(bucket, key, value)) {
+                    System.out.println("[WARN] Could not replay write of /" + bucket + "/" + key);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method to wait until a logged write is durable. An interrupt does not stop the wait, since
+     * the write could not be undone if its record were committed afterwards
+     *
+     * @param commit the future returned when the write was logged
+     * @param bucket name of the bucket
+     * @param key    key of the object
+     * @return true once the write is durable, false if it could not be logged
+     */
+    private boolean awaitCommit(CompletableFuture<Void> commit, String bucket, String key) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    commit.get();
+                    return true;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    System.out.println("[WARN] Could not log write of /" + bucket + "/" + key + ": "
+                            + e.getCause().getMessage());
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Value of an object before a write which is not committed yet
+     */
+    private static final class Previous {
+        /* null if the object did not exist */
+        private final ObjectIOModel value;
+
+        private Previous(ObjectIOModel value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.config.AppConfig;
+import com.cloudproject.dynamo.models.ObjectIOModel;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage engine which stores every object as a JSON file named after its key,
+ * in a folder named after its bucket
+ * <p>
+ * An object is written to a temporary file which is renamed over its file, so that the file
+ * always holds a whole value. Nothing is forced as it is written: the object files written and
+ * the folders whose entries changed are forced together by {@link #sync()}, which the
+ * write-ahead log calls before it is truncated, after which every write is durable.
+ * </p>
+ */
+public class FileStorageEngine implements StorageEngine {
+
+    private static final String TMP_DIRECTORY = ".tmp";
+
+    private final File root;
+    private final File tmpDirectory;
+    /* object files written since the last sync */
+    private final Set<File> dirtyFiles;
+    /* folders whose entries changed since the last sync */
+    private final Set<File> dirtyDirectories;
+
+    /**
+     * @param root the directory in which the bucket folders are created
+     */
+    public FileStorageEngine(File root) {
+        this.root = root;
+        this.tmpDirectory = new File(root, TMP_DIRECTORY);
+        this.dirtyFiles = ConcurrentHashMap.newKeySet();
+        this.dirtyDirectories = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public boolean createBucket(String bucket) {
+        boolean status = new File(root, bucket).mkdir();
+        if (status) {
+            dirtyDirectories.add(root);
+        }
+        return status;
+    }
+
+    @Override
+    public boolean deleteBucket(String bucket) {
+        boolean status = false;
+        try {
+            File file = new File(root, bucket);
+            if (file.exists()) {
+                FileUtils.deleteDirectory(file);
+                dirtyDirectories.remove(file);
+                dirtyDirectories.add(root);
+                status = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return status;
+    }
+
+    @Override
+    public List<String> listBuckets() {
+        return StorageEngine.listBucketFolders(root);
+    }
+
+    @Override
+    public boolean create(String bucket, String key, ObjectIOModel value) {
+        boolean status = false;
+        try {
+            File parent = new File(root, bucket);
+            if (parent.exists()) {
+                File file = new File(parent, key);
+                if (!file.exists()) {
+                    write(file, value);
+                    status = true;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return status;
+    }
+
+    @Override
+    public ObjectIOModel read(String bucket, String key) {
+        ObjectIOModel contents = null;
+        File file = new File(new File(root, bucket), key);
+        if (file.exists()) {
+            try {
+                contents = AppConfig.getParser().deserialize(
+                        FileUtils.readFileToString(file, Charset.defaultCharset()), ObjectIOModel.class);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return contents;
+    }
+
+    @Override
+    public boolean update(String bucket, String key, ObjectIOModel value) {
+        boolean status = false;
+        File file = new File(new File(root, bucket), key);
+        if (file.exists()) {
+            try {
+                write(file, value);
+                status = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public boolean delete(String bucket, String key) {
+        boolean status = false;
+        File file = new File(new File(root, bucket), key);
+        if (file.exists()) {
+            status = file.delete();
+            if (status) {
+                dirtyDirectories.add(file.getParentFile());
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Method to replace the contents of an object file atomically
+     *
+     * @param file  the object file
+     * @param value the object
+     * @throws IOException if the object could not be written
+     */
+    private void write(File file, ObjectIOModel value) throws IOException {
+        tmpDirectory.mkdirs();
+        File tmp = File.createTempFile("obj", ".tmp", tmpDirectory);
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+                fileOut.write(AppConfig.getParser().serialize(value).getBytes(Charset.defaultCharset()));
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        dirtyFiles.add(file);
+        dirtyDirectories.add(file.getParentFile());
+    }
+
+    @Override
+    public SortedMap<String, ObjectIOModel> scan(String bucket, String fromKey, int limit) {
+        TreeMap<String, ObjectIOModel> result = new TreeMap<>();
+        String[] keys = new File(root, bucket).list();
+        if (keys != null) {
+            TreeMap<String, Boolean> sorted = new TreeMap<>();
+            for (String key : keys) {
+                if (fromKey == null || key.compareTo(fromKey) >= 0) {
+                    sorted.put(key, true);
+                }
+            }
+            for (String key : sorted.keySet()) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                ObjectIOModel contents = read(bucket, key);
+                if (contents != null) {
+                    result.put(key, contents);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        // the contents of the object files first, then the folder entries which point to them
+        force(dirtyFiles);
+        force(dirtyDirectories);
+    }
+
+    /**
+     * Method to force files or folders to disk, and remove them from the set once forced
+     *
+     * @param files the files or folders, which may have been deleted since
+     * @throws IOException if a file could not be forced, in which case it stays in the set
+     */
+    private static void force(Set<File> files) throws IOException {
+        Iterator<File> iterator = files.iterator();
+        while (iterator.hasNext()) {
+            File file = iterator.next();
+            iterator.remove();
+            if (file.exists()) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    channel.force(true);
+                } catch (NoSuchFileException e) {
+                    // deleted in the meantime, the deletion is made durable with its folder
+                } catch (IOException e) {
+                    files.add(file);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // every write goes straight to its own file, only the writes not forced yet are left
+        sync();
+    }
+}
@@ -0,0 +1,273 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.config.AppConfig;
+import com.cloudproject.dynamo.models.ObjectIOModel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Local store of hinted writes: writes accepted by this node on behalf of a replica which was
+ * down when they were coordinated (sloppy quorum), to be handed off to that replica once it is
+ * back. Hints are kept apart from the objects stored by this node, in one append-only file per
+ * intended replica, so that they are never served by reads and can be dropped as a whole once
+ * delivered.
+ * <p>
+ * Each hint is laid out as {@code [crc:int][length:int][data]} and forced to disk before it is
+ * acknowledged. Hints are taken out of the store for delivery with {@link #drain(String)}, and
+ * those which could not be delivered are put back with {@link #restore(String, ArrayList)}.
+ * </p>
+ */
+public class HintStore {
+
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".hints";
+    private static final String DELIVERING_SUFFIX = ".delivering";
+
+    private final File directory;
+    /* number of stored hints of every replica, so that gossip can check for hints without disk access */
+    private final ConcurrentHashMap<String, AtomicInteger> counts;
+
+    /**
+     * @param directory the directory holding the hint files, created if it does not exist
+     * @throws IOException if the directory could not be created or the stored hints could not be read
+     */
+    public HintStore(File directory) throws IOException {
+        this.directory = directory;
+        this.counts = new ConcurrentHashMap<>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create hint directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list hint directory " + directory);
+        }
+        /* hints which were being delivered when the node stopped are put back first */
+        for (File file : files) {
+            if (file.getName().endsWith(DELIVERING_SUFFIX)) {
+                String owner = ownerOf(file.getName(), DELIVERING_SUFFIX);
+                ArrayList<Hint> hints = readHints(file);
+                append(fileOf(owner), hints);
+                if (!file.delete()) {
+                    throw new IOException("Could not delete " + file);
+                }
+            }
+        }
+        files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            if (file.getName().endsWith(SUFFIX)) {
+                String owner = ownerOf(file.getName(), SUFFIX);
+                int count = readHints(file).size();
+                if (count > 0) {
+                    counts.put(owner, new AtomicInteger(count));
+                    System.out.println("[Storage] " + count + " hints pending for " + owner);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to store a hinted write durably
+     *
+     * @param owner  address of the replica the write is intended for
+     * @param bucket name of the bucket
+     * @param key    key of the object
+     * @param value  the object written, or its delete marker
+     * @return true once the hint is on disk, false if it could not be stored
+     */
+    public synchronized boolean store(String owner, String bucket, String key, ObjectIOModel value) {
+        ArrayList<Hint> hints = new ArrayList<>(1);
+        hints.add(new Hint(bucket, key, value));
+        try {
+            append(fileOf(owner), hints);
+        } catch (IOException e) {
+            System.out.println("[WARN] Could not store hint of /" + bucket + "/" + key + " for " + owner
+                    + ": " + e.getMessage());
+            return false;
+        }
+        counts.computeIfAbsent(owner, o -> new AtomicInteger()).incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Method to check whether writes are waiting to be handed off to a replica
+     *
+     * @param owner address of the replica
+     * @return true if hints are stored for the replica
+     */
+    public boolean hasHints(String owner) {
+        AtomicInteger count = counts.get(owner);
+        return count != null && count.get() > 0;
+    }
+
+    /**
+     * Method to take every hint stored for a replica out of the store, for delivery. Until they
+     * are either delivered or restored, the hints are kept in a separate file, from which they
+     * are recovered if the node stops in the meantime
+     *
+     * @param owner address of the replica
+     * @return the hints, in the order in which they were stored
+     * @throws IOException if the hints could not be read
+     */
+    public synchronized ArrayList<Hint> drain(String owner) throws IOException {
+        File file = fileOf(owner);
+        File delivering = new File(directory, file.getName() + DELIVERING_SUFFIX);
+        if (!file.exists() || delivering.exists()) {
+            return new ArrayList<>();
+        }
+        if (!file.renameTo(delivering)) {
+            throw new IOException("Could not move " + file + " for delivery");
+        }
+        counts.remove(owner);
+        return readHints(delivering);
+    }
+
+    /**
+     * Method to end the delivery of the hints of a replica, putting back those which could not be delivered
+     *
+     * @param owner       address of the replica
+     * @param undelivered the hints which were not delivered
+     * @throws IOException if the hints could not be put back
+     */
+    public synchronized void restore(String owner, ArrayList<Hint> undelivered) throws IOException {
+        if (!undelivered.isEmpty()) {
+            append(fileOf(owner), undelivered);
+            counts.computeIfAbsent(owner, o -> new AtomicInteger()).addAndGet(undelivered.size());
+        }
+        File delivering = new File(directory, fileOf(owner).getName() + DELIVERING_SUFFIX);
+        if (delivering.exists() && !delivering.delete()) {
+            throw new IOException("Could not delete " + delivering);
+        }
+    }
+
+    private File fileOf(String owner) {
+        return new File(directory, owner.replace(':', '_') + SUFFIX);
+    }
+
+    private static String ownerOf(String fileName, String suffix) {
+        String name = fileName.substring(0, fileName.length() - suffix.length());
+        if (name.endsWith(SUFFIX)) {
+            name = name.substring(0, name.length() - SUFFIX.length());
+        }
+        int port = name.lastIndexOf('_');
+        return port < 0 ? name : name.substring(0, port) + ":" + name.substring(port + 1);
+    }
+
+    /**
+     * Appends hints to a file and forces them to disk
+     */
+    private static void append(File file, ArrayList<Hint> hints) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (Hint hint : hints) {
+                byte[] data = hint.toBytes();
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
+                buffer.putInt((int) crc.getValue()).putInt(data.length).put(data).flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Reads the hints of a file, stopping at the first torn or corrupt hint
+     */
+    private static ArrayList<Hint> readHints(File file) throws IOException {
+        ArrayList<Hint> hints = new ArrayList<>();
+        long length = file.length();
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (position + HEADER_SIZE <= length) {
+                int crc = in.readInt();
+                int dataLength = in.readInt();
+                if (dataLength < 0 || position + HEADER_SIZE + dataLength > length) {
+                    break;
+                }
+                byte[] data = new byte[dataLength];
+                in.readFully(data);
+                CRC32 checksum = new CRC32();
+                checksum.update(data, 0, data.length);
+                if ((int) checksum.getValue() != crc) {
+                    break;
+                }
+                hints.add(Hint.fromBytes(data));
+                position += HEADER_SIZE + dataLength;
+            }
+        }
+        if (position < length) {
+            System.out.println("[WARN] Discarding " + (length - position) + " torn bytes at the end of " + file);
+        }
+        return hints;
+    }
+
+    /**
+     * A write held on behalf of another replica
+     */
+    public static class Hint {
+        private final String bucket;
+        private final String key;
+        private final ObjectIOModel value;
+
+        /**
+         * @param bucket name of the bucket
+         * @param key    key of the object
+         * @param value  the object written, or its delete marker
+         */
+        public Hint(String bucket, String key, ObjectIOModel value) {
+            this.bucket = bucket;
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Method to return the object written
+         *
+         * @return the object, its delete marker, or null for a delete hinted before deletes left a marker
+         */
+        public ObjectIOModel getValue() {
+            return value;
+        }
+
+        private byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(bucket);
+                out.writeUTF(key);
+                if (value != null) {
+                    out.write(AppConfig.getParser().serialize(value).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        private static Hint fromBytes(byte[] data) throws IOException {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+                String bucket = in.readUTF();
+                String key = in.readUTF();
+                byte[] value = in.readAllBytes();
+                return new Hint(bucket, key, value.length == 0 ? null
+                        : AppConfig.getParser().deserialize(new String(value, StandardCharsets.UTF_8),
+                        ObjectIOModel.class));
+            }
+        }
+    }
+}
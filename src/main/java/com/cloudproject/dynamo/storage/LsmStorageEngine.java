@@ -0,0 +1,958 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.config.AppConfig;
+import com.cloudproject.dynamo.models.ObjectIOModel;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured merge-tree storage engine. Every bucket is a folder holding
+ * <ul>
+ *     <li>a memtable: a concurrent skip list receiving all writes, backed by an append-only
+ *     log from which it is rebuilt after a crash</li>
+ *     <li>immutable {@link SSTable}s, organized in levels. Level 0 holds flushed memtables,
+ *     which may overlap, while every deeper level is a sorted run of non-overlapping tables,
+ *     ten times larger than the level above it</li>
+ *     <li>a MANIFEST listing the tables of every level, rewritten atomically on every change</li>
+ * </ul>
+ * When the memtable is full it is sealed and flushed to a level 0 table by a background
+ * executor, which also compacts level 0 into level 1 once it holds too many tables, and any
+ * deeper level into the next one once it grows past its target size. Writes therefore never
+ * wait for compaction, and a read looks at the memtables, then the level 0 tables from newest
+ * to oldest, then at most one table per deeper level, skipping tables whose bloom filter rules
+ * the key out.
+ */
+public class LsmStorageEngine implements StorageEngine {
+
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String MANIFEST = "MANIFEST";
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE_LENGTH = -1;
+    private static final int MAX_LEVELS = 7;
+    private static final int LEVEL_SIZE_MULTIPLIER = 10;
+
+    /* value stored in the memtable in place of a deleted object, compared by identity */
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final File root;
+    private final long memtableSize;
+    private final long tableSize;
+    private final int level0Tables;
+    private final int syncWrites;
+    private final ConcurrentHashMap<String, Bucket> buckets;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService compactor;
+
+    /**
+     * @param root         directory in which the bucket folders are created
+     * @param memtableSize size (in bytes) after which the memtable is flushed to a table
+     * @param tableSize    target size (in bytes) of the tables written by compaction
+     * @param level0Tables number of level 0 tables which triggers their compaction into level 1
+     * @param syncWrites   number of writes after which the memtable log is forced to disk, 0 to only sync periodically
+     * @param syncInterval interval (in milliseconds) at which unsynced writes are forced to disk
+     */
+    public LsmStorageEngine(File root, long memtableSize, long tableSize, int level0Tables, int syncWrites,
+                            long syncInterval) {
+        this.root = root;
+        this.memtableSize = memtableSize;
+        this.tableSize = tableSize;
+        this.level0Tables = level0Tables;
+        this.syncWrites = syncWrites;
+        this.buckets = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lsm-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::periodicSync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean createBucket(String bucket) {
+        File dir = new File(root, bucket);
+        if (!dir.mkdir()) {
+            return false;
+        }
+        return getBucket(bucket) != null;
+    }
+
+    @Override
+    public boolean deleteBucket(String bucket) {
+        boolean status = false;
+        synchronized (buckets) {
+            Bucket removed = buckets.remove(bucket);
+            if (removed != null) {
+                removed.close();
+            }
+        }
+        try {
+            File dir = new File(root, bucket);
+            if (dir.exists()) {
+                FileUtils.deleteDirectory(dir);
+                status = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return status;
+    }
+
+    @Override
+    public List<String> listBuckets() {
+        return StorageEngine.listBucketFolders(root);
+    }
+
+    @Override
+    public boolean create(String bucket, String key, ObjectIOModel value) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return false;
+        }
+        byte[] bytes = encode(value);
+        synchronized (b) {
+            try {
+                if (b.closed || b.get(key) != null) {
+                    return false;
+                }
+                b.put(key, bytes);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public ObjectIOModel read(String bucket, String key) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return null;
+        }
+        try {
+            byte[] value = b.get(key);
+            return value == null ? null : decode(value);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean update(String bucket, String key, ObjectIOModel value) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return false;
+        }
+        byte[] bytes = encode(value);
+        synchronized (b) {
+            try {
+                if (b.closed || b.get(key) == null) {
+                    return false;
+                }
+                b.put(key, bytes);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String bucket, String key) {
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return false;
+        }
+        synchronized (b) {
+            try {
+                if (b.closed || b.get(key) == null) {
+                    return false;
+                }
+                b.put(key, TOMBSTONE);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public SortedMap<String, ObjectIOModel> scan(String bucket, String fromKey, int limit) {
+        TreeMap<String, ObjectIOModel> result = new TreeMap<>();
+        Bucket b = getBucket(bucket);
+        if (b == null) {
+            return result;
+        }
+        /* a compaction may retire a table while it is being iterated, start over on the new tables */
+        for (int attempt = 0; attempt < 3; attempt++) {
+            result.clear();
+            try {
+                Iterator<Map.Entry<String, byte[]>> entries = b.iterator(fromKey);
+                while (result.size() < limit && entries.hasNext()) {
+                    Map.Entry<String, byte[]> entry = entries.next();
+                    if (entry.getValue() != null) {
+                        result.put(entry.getKey(), decode(entry.getValue()));
+                    }
+                }
+                return result;
+            } catch (UncheckedIOException e) {
+                if (!(e.getCause() instanceof ClosedChannelException)) {
+                    e.printStackTrace();
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        compactor.shutdownNow();
+        synchronized (buckets) {
+            for (Bucket b : buckets.values()) {
+                b.close();
+            }
+            buckets.clear();
+        }
+    }
+
+    /**
+     * Method to return the open bucket having the given name, opening (and recovering)
+     * it if it exists on disk but was not accessed yet
+     *
+     * @param name name of the bucket
+     * @return the bucket, or null if it does not exist
+     */
+    private Bucket getBucket(String name) {
+        Bucket b = buckets.get(name);
+        if (b == null) {
+            synchronized (buckets) {
+                b = buckets.get(name);
+                File dir = new File(root, name);
+                if (b == null && dir.isDirectory()) {
+                    try {
+                        b = new Bucket(dir);
+                        buckets.put(name, b);
+                    } catch (IOException e) {
+                        System.out.println("[WARN] Could not open bucket " + name + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (Bucket b : buckets.values()) {
+            synchronized (b) {
+                b.sync();
+            }
+        }
+    }
+
+    /**
+     * Forces the unsynced writes of every bucket to disk
+     */
+    private void periodicSync() {
+        try {
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] encode(ObjectIOModel value) {
+        return AppConfig.getParser().serialize(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ObjectIOModel decode(byte[] value) {
+        return AppConfig.getParser().deserialize(new String(value, StandardCharsets.UTF_8), ObjectIOModel.class);
+    }
+
+    private static long checksum(byte[] record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, length - 4);
+        return crc.getValue();
+    }
+
+    /**
+     * Method to return the maximum size (in bytes) of a level, before it is compacted into the next one
+     */
+    private long maxLevelSize(int level) {
+        long size = tableSize;
+        for (int i = 0; i < level; i++) {
+            size *= LEVEL_SIZE_MULTIPLIER;
+        }
+        return size;
+    }
+
+    /**
+     * A bucket: its memtables and tables. Writes to a bucket are serialized by synchronizing
+     * on it, reads go through the concurrent memtables and the current snapshot of the tables
+     */
+    private class Bucket {
+        private final File dir;
+        private final AtomicInteger nextId;
+        private final String[] compactionPointers;
+        private volatile Memtable active;
+        private volatile Memtable immutable;
+        private volatile List<List<SSTable>> levels;
+        private int unsynced;
+        private boolean closed;
+
+        /**
+         * Opens a bucket: loads its tables from the MANIFEST and flushes the memtable logs left
+         * behind by the previous run to level 0
+         *
+         * @param dir folder of the bucket
+         * @throws IOException if a table or log could not be read
+         */
+        Bucket(File dir) throws IOException {
+            this.dir = dir;
+            this.compactionPointers = new String[MAX_LEVELS];
+            ArrayList<List<SSTable>> loaded = new ArrayList<>();
+            for (int i = 0; i < MAX_LEVELS; i++) {
+                loaded.add(new ArrayList<>());
+            }
+            int maxId = 0;
+            HashSet<String> live = new HashSet<>();
+            File manifest = new File(dir, MANIFEST);
+            if (manifest.exists()) {
+                for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length != 2) {
+                        continue;
+                    }
+                    int level = Integer.parseInt(fields[0]);
+                    int id = Integer.parseInt(fields[1]);
+                    loaded.get(level).add(SSTable.open(id, tableFile(id)));
+                    live.add(tableFile(id).getName());
+                    maxId = Math.max(maxId, id);
+                }
+            }
+            loaded.get(0).sort((a, c) -> Integer.compare(c.getId(), a.getId()));
+            for (int i = 1; i < MAX_LEVELS; i++) {
+                loaded.get(i).sort(Comparator.comparing(SSTable::getFirstKey));
+            }
+
+            /* tables written by an interrupted flush or compaction were never made live */
+            TreeMap<Integer, File> logs = new TreeMap<>();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(TABLE_SUFFIX) && !live.contains(name)) {
+                        Files.delete(file.toPath());
+                    } else if (name.endsWith(LOG_SUFFIX)) {
+                        int id = Integer.parseInt(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                        logs.put(id, file);
+                        maxId = Math.max(maxId, id);
+                    }
+                }
+            }
+            this.nextId = new AtomicInteger(maxId + 1);
+            this.levels = freeze(loaded);
+
+            ConcurrentSkipListMap<String, byte[]> recovered = new ConcurrentSkipListMap<>();
+            for (File log : logs.values()) {
+                replay(log, recovered);
+            }
+            if (!recovered.isEmpty()) {
+                SSTable table = writeTable(recovered, Long.MAX_VALUE);
+                ArrayList<List<SSTable>> next = thaw(levels);
+                next.get(0).add(0, table);
+                install(next);
+            }
+            for (File log : logs.values()) {
+                Files.delete(log.toPath());
+            }
+            this.active = new Memtable(nextId.getAndIncrement());
+            compactor.execute(this::compact);
+        }
+
+        /**
+         * Replays a memtable log, stopping at the first torn or corrupt record
+         *
+         * @param log    the log to be replayed
+         * @param target map receiving the logged writes
+         * @throws IOException if the log could not be read
+         */
+        private void replay(File log, ConcurrentSkipListMap<String, byte[]> target) throws IOException {
+            long position = 0;
+            long length = log.length();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+                while (position + HEADER_SIZE <= length) {
+                    int crc = in.readInt();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    int recordLength = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                    if (keyLength < 0 || valueLength < TOMBSTONE_LENGTH || position + recordLength > length) {
+                        break;
+                    }
+                    byte[] record = new byte[recordLength];
+                    ByteBuffer.wrap(record).putInt(crc).putInt(keyLength).putInt(valueLength);
+                    in.readFully(record, HEADER_SIZE, recordLength - HEADER_SIZE);
+                    if ((int) checksum(record, recordLength) != crc) {
+                        break;
+                    }
+                    String key = new String(record, HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+                    target.put(key, valueLength == TOMBSTONE_LENGTH ? TOMBSTONE
+                            : Arrays.copyOfRange(record, HEADER_SIZE + keyLength, recordLength));
+                    position += recordLength;
+                }
+            }
+            if (position < length) {
+                System.out.println("[WARN] Discarding " + (length - position) + " torn bytes at the end of " + log);
+            }
+        }
+
+        /**
+         * Method to look a key up, from the newest to the oldest data
+         *
+         * @param key the key to be looked up
+         * @return the latest value of the key, or null if it is absent or deleted
+         * @throws IOException if a table could not be read
+         */
+        byte[] get(String key) throws IOException {
+            Memtable memtable = active;
+            Memtable sealed = immutable;
+            byte[] value = memtable.map.get(key);
+            if (value == null && sealed != null) {
+                value = sealed.map.get(key);
+            }
+            if (value != null) {
+                return value == TOMBSTONE ? null : value;
+            }
+            long hash = BloomFilter.hash(key);
+            /* a compaction may retire a table between the snapshot and the read, retry on the new tables */
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    Map.Entry<String, byte[]> entry = getFromTables(levels, key, hash);
+                    return entry == null ? null : entry.getValue();
+                } catch (ClosedChannelException e) {
+                    if (attempt >= 2 || closed) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private Map.Entry<String, byte[]> getFromTables(List<List<SSTable>> snapshot, String key, long hash)
+                throws IOException {
+            for (SSTable table : snapshot.get(0)) {
+                Map.Entry<String, byte[]> entry = table.get(key, hash);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            for (int level = 1; level < snapshot.size(); level++) {
+                List<SSTable> tables = snapshot.get(level);
+                int low = 0;
+                int high = tables.size() - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    SSTable table = tables.get(mid);
+                    if (table.getLastKey().compareTo(key) < 0) {
+                        low = mid + 1;
+                    } else if (table.getFirstKey().compareTo(key) > 0) {
+                        high = mid - 1;
+                    } else {
+                        Map.Entry<String, byte[]> entry = table.get(key, hash);
+                        if (entry != null) {
+                            return entry;
+                        }
+                        break;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Method to iterate over the bucket in key order, merging the memtables and tables
+         *
+         * @param fromKey first key (inclusive) to be returned, null to start at the first key
+         * @return iterator over the latest value of every key, null for a deleted key
+         */
+        Iterator<Map.Entry<String, byte[]>> iterator(String fromKey) {
+            ArrayList<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+            sources.add(active.iterator(fromKey));
+            Memtable sealed = immutable;
+            if (sealed != null) {
+                sources.add(sealed.iterator(fromKey));
+            }
+            List<List<SSTable>> snapshot = levels;
+            for (SSTable table : snapshot.get(0)) {
+                sources.add(table.iterator(fromKey));
+            }
+            for (int level = 1; level < snapshot.size(); level++) {
+                sources.add(concat(snapshot.get(level), fromKey));
+            }
+            return new MergingIterator(sources, false);
+        }
+
+        /**
+         * Writes a value (or {@link #TOMBSTONE}) to the memtable log and the memtable, sealing
+         * the memtable and scheduling its flush once it is full
+         *
+         * @param key   key of the object
+         * @param value the encoded object, or {@link #TOMBSTONE}
+         * @throws IOException if the log could not be written
+         */
+        void put(String key, byte[] value) throws IOException {
+            active.append(key, value);
+            unsynced++;
+            if (syncWrites > 0 && unsynced >= syncWrites) {
+                sync();
+            }
+            /* while the previous memtable is still being flushed, the active one keeps growing */
+            if (active.size >= memtableSize && immutable == null) {
+                sync();
+                immutable = active;
+                active = new Memtable(nextId.getAndIncrement());
+                compactor.execute(this::flush);
+            }
+        }
+
+        void sync() throws IOException {
+            if (unsynced > 0 && !closed) {
+                active.log.force(false);
+                unsynced = 0;
+            }
+        }
+
+        /**
+         * Writes the sealed memtable to a new level 0 table, then compacts the bucket if needed.
+         * Runs on the compaction executor, which is the only thread changing the tables
+         */
+        private void flush() {
+            Memtable sealed = immutable;
+            if (sealed == null || closed) {
+                return;
+            }
+            try {
+                SSTable table = writeTable(sealed.map, Long.MAX_VALUE);
+                synchronized (this) {
+                    if (closed) {
+                        table.close();
+                        return;
+                    }
+                    ArrayList<List<SSTable>> next = thaw(levels);
+                    next.get(0).add(0, table);
+                    install(next);
+                    immutable = null;
+                }
+                sealed.log.close();
+                Files.delete(sealed.logFile.toPath());
+            } catch (IOException e) {
+                System.out.println("[WARN] Flush of " + sealed.logFile + " failed: " + e.getMessage());
+                return;
+            }
+            compact();
+        }
+
+        /**
+         * Runs compactions until level 0 holds less than the configured number of tables and
+         * every deeper level is within its target size
+         */
+        private void compact() {
+            try {
+                while (!closed) {
+                    List<List<SSTable>> snapshot = levels;
+                    if (snapshot.get(0).size() >= level0Tables) {
+                        compact(0, new ArrayList<>(snapshot.get(0)));
+                        continue;
+                    }
+                    int level = 1;
+                    while (level < MAX_LEVELS - 1 && total(snapshot.get(level)) <= maxLevelSize(level)) {
+                        level++;
+                    }
+                    if (level == MAX_LEVELS - 1) {
+                        return;
+                    }
+                    compact(level, Collections.singletonList(pickTable(level, snapshot.get(level))));
+                }
+            } catch (IOException e) {
+                System.out.println("[WARN] Compaction of " + dir + " failed: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Method to pick the next table of a level to be compacted, cycling through its key range
+         */
+        private SSTable pickTable(int level, List<SSTable> tables) {
+            String pointer = compactionPointers[level];
+            for (SSTable table : tables) {
+                if (pointer == null || table.getFirstKey().compareTo(pointer) > 0) {
+                    return table;
+                }
+            }
+            return tables.get(0);
+        }
+
+        /**
+         * Merges tables of a level with the overlapping tables of the next level, and replaces
+         * them with the merged tables in the next level
+         *
+         * @param level  level of the input tables
+         * @param inputs tables of the level to be compacted, newest first
+         * @throws IOException if a table could not be read or written
+         */
+        private void compact(int level, List<SSTable> inputs) throws IOException {
+            List<List<SSTable>> snapshot = levels;
+            String first = null;
+            String last = null;
+            for (SSTable table : inputs) {
+                if (first == null || table.getFirstKey().compareTo(first) < 0) {
+                    first = table.getFirstKey();
+                }
+                if (last == null || table.getLastKey().compareTo(last) > 0) {
+                    last = table.getLastKey();
+                }
+            }
+            ArrayList<SSTable> overlapping = new ArrayList<>();
+            for (SSTable table : snapshot.get(level + 1)) {
+                if (table.overlaps(first, last)) {
+                    overlapping.add(table);
+                }
+            }
+            /* deletions can only be dropped once no deeper level may hold a value they hide */
+            boolean bottom = true;
+            for (int deeper = level + 2; deeper < MAX_LEVELS && bottom; deeper++) {
+                for (SSTable table : snapshot.get(deeper)) {
+                    if (table.overlaps(first, last)) {
+                        bottom = false;
+                        break;
+                    }
+                }
+            }
+
+            ArrayList<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+            for (SSTable table : inputs) {
+                sources.add(table.iterator(null));
+            }
+            sources.add(concat(overlapping, null));
+            Iterator<Map.Entry<String, byte[]>> merged = new MergingIterator(sources, bottom);
+            ArrayList<SSTable> outputs = new ArrayList<>();
+            try {
+                while (merged.hasNext()) {
+                    int id = nextId.getAndIncrement();
+                    outputs.add(SSTable.write(id, tableFile(id), merged, tableSize));
+                }
+            } catch (IOException | UncheckedIOException e) {
+                for (SSTable table : outputs) {
+                    table.close();
+                    Files.deleteIfExists(table.getFile().toPath());
+                }
+                throw e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    for (SSTable table : outputs) {
+                        table.close();
+                    }
+                    return;
+                }
+                ArrayList<List<SSTable>> next = thaw(levels);
+                next.get(level).removeAll(inputs);
+                next.get(level + 1).removeAll(overlapping);
+                next.get(level + 1).addAll(outputs);
+                next.get(level + 1).sort(Comparator.comparing(SSTable::getFirstKey));
+                install(next);
+            }
+            compactionPointers[level] = last;
+            for (SSTable table : inputs) {
+                retire(table);
+            }
+            for (SSTable table : overlapping) {
+                retire(table);
+            }
+            System.out.println("[Storage] Compacted " + (inputs.size() + overlapping.size()) + " tables of "
+                    + dir.getName() + " into " + outputs.size() + " tables at level " + (level + 1));
+        }
+
+        private SSTable writeTable(ConcurrentSkipListMap<String, byte[]> map, long maxBytes) throws IOException {
+            int id = nextId.getAndIncrement();
+            return SSTable.write(id, tableFile(id), new MemtableIterator(map.entrySet().iterator()), maxBytes);
+        }
+
+        /**
+         * Makes a new set of tables live, recording it in the MANIFEST first
+         *
+         * @param next tables of every level
+         * @throws IOException if the MANIFEST could not be written
+         */
+        private void install(ArrayList<List<SSTable>> next) throws IOException {
+            File tmp = new File(dir, MANIFEST + ".tmp");
+            try (FileOutputStream fileOut = new FileOutputStream(tmp);
+                 Writer writer = new OutputStreamWriter(new BufferedOutputStream(fileOut), StandardCharsets.UTF_8)) {
+                for (int level = 0; level < next.size(); level++) {
+                    for (SSTable table : next.get(level)) {
+                        writer.write(level + " " + table.getId() + "\n");
+                    }
+                }
+                writer.flush();
+                fileOut.getChannel().force(true);
+            }
+            Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            levels = freeze(next);
+        }
+
+        private void retire(SSTable table) {
+            try {
+                table.close();
+                Files.deleteIfExists(table.getFile().toPath());
+            } catch (IOException e) {
+                System.out.println("[WARN] Could not delete compacted table " + table.getFile());
+            }
+        }
+
+        private File tableFile(int id) {
+            return new File(dir, String.format("%010d", id) + TABLE_SUFFIX);
+        }
+
+        synchronized void close() {
+            try {
+                sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closed = true;
+            try {
+                active.log.close();
+                if (immutable != null) {
+                    immutable.log.close();
+                }
+                for (List<SSTable> level : levels) {
+                    for (SSTable table : level) {
+                        table.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * The skip list receiving the writes of a bucket, along with its log
+         */
+        private class Memtable {
+            private final File logFile;
+            private final FileChannel log;
+            private final ConcurrentSkipListMap<String, byte[]> map;
+            private long size;
+
+            Memtable(int id) throws IOException {
+                this.logFile = new File(dir, String.format("%010d", id) + LOG_SUFFIX);
+                this.log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                this.map = new ConcurrentSkipListMap<>();
+            }
+
+            void append(String key, byte[] value) throws IOException {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                int valueLength = value == TOMBSTONE ? TOMBSTONE_LENGTH : value.length;
+                int recordLength = HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0);
+                byte[] record = new byte[recordLength];
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                buffer.putInt(0).putInt(keyBytes.length).putInt(valueLength).put(keyBytes);
+                if (value != TOMBSTONE) {
+                    buffer.put(value);
+                }
+                buffer.putInt(0, (int) checksum(record, recordLength));
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                map.put(key, value);
+                size += recordLength;
+            }
+
+            Iterator<Map.Entry<String, byte[]>> iterator(String fromKey) {
+                return new MemtableIterator((fromKey == null ? map : map.tailMap(fromKey)).entrySet().iterator());
+            }
+        }
+    }
+
+    private static long total(List<SSTable> tables) {
+        long size = 0;
+        for (SSTable table : tables) {
+            size += table.size();
+        }
+        return size;
+    }
+
+    private static List<List<SSTable>> freeze(List<List<SSTable>> levels) {
+        ArrayList<List<SSTable>> frozen = new ArrayList<>();
+        for (List<SSTable> level : levels) {
+            frozen.add(Collections.unmodifiableList(new ArrayList<>(level)));
+        }
+        return Collections.unmodifiableList(frozen);
+    }
+
+    private static ArrayList<List<SSTable>> thaw(List<List<SSTable>> levels) {
+        ArrayList<List<SSTable>> copy = new ArrayList<>();
+        for (List<SSTable> level : levels) {
+            copy.add(new ArrayList<>(level));
+        }
+        return copy;
+    }
+
+    /**
+     * Method to iterate over the non-overlapping, sorted tables of a level as a single run
+     */
+    private static Iterator<Map.Entry<String, byte[]>> concat(List<SSTable> tables, String fromKey) {
+        return new Iterator<>() {
+            private int index = 0;
+            private Iterator<Map.Entry<String, byte[]>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && index < tables.size()) {
+                    SSTable table = tables.get(index++);
+                    if (fromKey == null || table.getLastKey().compareTo(fromKey) >= 0) {
+                        current = table.iterator(fromKey);
+                    }
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Iterator over memtable entries, reporting {@link #TOMBSTONE}s as null values
+     */
+    private static class MemtableIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final Iterator<Map.Entry<String, byte[]>> entries;
+
+        MemtableIterator(Iterator<Map.Entry<String, byte[]>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            Map.Entry<String, byte[]> entry = entries.next();
+            return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                    entry.getValue() == TOMBSTONE ? null : entry.getValue());
+        }
+    }
+
+    /**
+     * Iterator merging sorted sources into a single sorted stream, keeping only the entry of
+     * the most recent source (the one listed first) when several sources hold the same key
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final PriorityQueue<Source> heap;
+        private final boolean dropTombstones;
+        private Map.Entry<String, byte[]> next;
+
+        /**
+         * @param sources        sorted sources, from the most recent to the oldest
+         * @param dropTombstones whether deleted keys are left out of the stream
+         */
+        MergingIterator(List<Iterator<Map.Entry<String, byte[]>>> sources, boolean dropTombstones) {
+            this.heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+                int comparison = a.head.getKey().compareTo(b.head.getKey());
+                return comparison != 0 ? comparison : Integer.compare(a.rank, b.rank);
+            });
+            this.dropTombstones = dropTombstones;
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = new Source(sources.get(i), i);
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+            this.next = advance();
+        }
+
+        private Map.Entry<String, byte[]> advance() {
+            while (!heap.isEmpty()) {
+                Source top = heap.poll();
+                Map.Entry<String, byte[]> entry = top.head;
+                if (top.advance()) {
+                    heap.add(top);
+                }
+                /* older versions of the same key are shadowed */
+                while (!heap.isEmpty() && heap.peek().head.getKey().equals(entry.getKey())) {
+                    Source shadowed = heap.poll();
+                    if (shadowed.advance()) {
+                        heap.add(shadowed);
+                    }
+                }
+                if (entry.getValue() != null || !dropTombstones) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> entry = next;
+            next = advance();
+            return entry;
+        }
+
+        private static class Source {
+            private final Iterator<Map.Entry<String, byte[]>> entries;
+            private final int rank;
+            private Map.Entry<String, byte[]> head;
+
+            Source(Iterator<Map.Entry<String, byte[]>> entries, int rank) {
+                this.entries = entries;
+                this.rank = rank;
+            }
+
+            boolean advance() {
+                head = entries.hasNext() ? entries.next() : null;
+                return head != null;
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.cloudproject.dynamo.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Immutable sorted table of an {@link LsmStorageEngine}. The file is laid out as
+ * <pre>
+ *     [data blocks][block index][bloom filter][last key][footer]
+ * </pre>
+ * Each data block holds about {@link #BLOCK_SIZE} bytes of entries in key order, every entry
+ * being {@code [keyLength:int][valueLength:int][key][value]} with a value length of -1 for a
+ * deletion. The block index (first key, offset and length of every block), the bloom filter
+ * and the first and last keys are kept in memory, so that a point lookup reads a single block.
+ */
+class SSTable implements Closeable {
+
+    static final int BLOCK_SIZE = 4096;
+
+    private static final int TOMBSTONE = -1;
+    private static final int MAGIC = 0x4C534D54;
+    private static final int FOOTER_SIZE = 8 * 4 + 4;
+
+    private final int id;
+    private final File file;
+    private final FileChannel channel;
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final BloomFilter bloomFilter;
+    private final String lastKey;
+    private final long entryCount;
+
+    private SSTable(int id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        readFully(footer, channel.size() - FOOTER_SIZE);
+        footer.flip();
+        long indexOffset = footer.getLong();
+        footer.getLong();
+        footer.getLong();
+        this.entryCount = footer.getLong();
+        if (footer.getInt() != MAGIC) {
+            throw new IOException("Not an SSTable: " + file);
+        }
+
+        ByteBuffer meta = ByteBuffer.allocate((int) (channel.size() - FOOTER_SIZE - indexOffset));
+        readFully(meta, indexOffset);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()))) {
+            int blocks = in.readInt();
+            this.blockKeys = new String[blocks];
+            this.blockOffsets = new long[blocks];
+            this.blockLengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = in.readUTF();
+                blockOffsets[i] = in.readLong();
+                blockLengths[i] = in.readInt();
+            }
+            this.bloomFilter = BloomFilter.readFrom(in);
+            this.lastKey = blocks > 0 ? in.readUTF() : null;
+        }
+    }
+
+    /**
+     * Opens an existing table
+     *
+     * @param id   id of the table
+     * @param file the table file
+     * @return the opened table
+     * @throws IOException if the file is not a valid table
+     */
+    static SSTable open(int id, File file) throws IOException {
+        return new SSTable(id, file);
+    }
+
+    /**
+     * Writes the next entries of a sorted iterator into a new table, stopping at the first
+     * block boundary after {@code maxBytes} bytes of data were written
+     *
+     * @param id       id of the new table
+     * @param file     the file to be written
+     * @param entries  entries in key order, a null value denoting a deletion
+     * @param maxBytes size (in bytes) after which the table is closed
+     * @return the new table, opened for reading
+     * @throws IOException if the table could not be written
+     */
+    static SSTable write(int id, File file, Iterator<Map.Entry<String, byte[]>> entries, long maxBytes)
+            throws IOException {
+        ArrayList<String> blockKeys = new ArrayList<>();
+        ArrayList<long[]> blockPositions = new ArrayList<>();
+        long[] hashes = new long[1024];
+        int count = 0;
+        String lastKey = null;
+        long offset = 0;
+
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            DataOutputStream blockOut = new DataOutputStream(block);
+            String blockKey = null;
+
+            while (offset + block.size() < maxBytes && entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (blockKey == null) {
+                    blockKey = entry.getKey();
+                }
+                blockOut.writeInt(key.length);
+                blockOut.writeInt(entry.getValue() == null ? TOMBSTONE : entry.getValue().length);
+                blockOut.write(key);
+                if (entry.getValue() != null) {
+                    blockOut.write(entry.getValue());
+                }
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = BloomFilter.hash(entry.getKey());
+                lastKey = entry.getKey();
+
+                if (block.size() >= BLOCK_SIZE) {
+                    blockKeys.add(blockKey);
+                    blockPositions.add(new long[]{offset, block.size()});
+                    block.writeTo(out);
+                    offset += block.size();
+                    block.reset();
+                    blockKey = null;
+                }
+            }
+            if (block.size() > 0) {
+                blockKeys.add(blockKey);
+                blockPositions.add(new long[]{offset, block.size()});
+                block.writeTo(out);
+                offset += block.size();
+            }
+
+            long indexOffset = offset;
+            out.writeInt(blockKeys.size());
+            for (int i = 0; i < blockKeys.size(); i++) {
+                out.writeUTF(blockKeys.get(i));
+                out.writeLong(blockPositions.get(i)[0]);
+                out.writeInt((int) blockPositions.get(i)[1]);
+            }
+            BloomFilter.build(hashes, count).writeTo(out);
+            if (lastKey != null) {
+                out.writeUTF(lastKey);
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        return open(id, file);
+    }
+
+    /**
+     * Method to look a key up in the table
+     *
+     * @param key the key to be looked up
+     * @param hash the hash of the key, as returned by {@link BloomFilter#hash(String)}
+     * @return null if the table has no entry for the key, otherwise an entry whose value is
+     * the stored value, or null if the key was deleted
+     * @throws IOException if the table could not be read
+     */
+    Map.Entry<String, byte[]> get(String key, long hash) throws IOException {
+        if (blockKeys.length == 0 || key.compareTo(blockKeys[0]) < 0 || key.compareTo(lastKey) > 0
+                || !bloomFilter.mightContain(hash)) {
+            return null;
+        }
+        int block = findBlock(key);
+        for (Map.Entry<String, byte[]> entry : readBlock(block)) {
+            int comparison = entry.getKey().compareTo(key);
+            if (comparison == 0) {
+                return entry;
+            } else if (comparison > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to iterate over the entries of the table in key order
+     *
+     * @param fromKey first key (inclusive) to be returned, null to start at the first key
+     * @return iterator over the entries, a null value denoting a deletion
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator(String fromKey) {
+        int startBlock = fromKey == null || blockKeys.length == 0 ? 0 : findBlock(fromKey);
+        return new Iterator<>() {
+            private int block = startBlock;
+            private Iterator<Map.Entry<String, byte[]>> current = Collections.emptyIterator();
+            private Map.Entry<String, byte[]> next = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                while (true) {
+                    while (current.hasNext()) {
+                        Map.Entry<String, byte[]> entry = current.next();
+                        if (fromKey == null || entry.getKey().compareTo(fromKey) >= 0) {
+                            return entry;
+                        }
+                    }
+                    if (block >= blockKeys.length) {
+                        return null;
+                    }
+                    try {
+                        current = readBlock(block++).iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Method to return the index of the last block whose first key is not greater than the key
+     */
+    private int findBlock(String key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockKeys[mid].compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private List<Map.Entry<String, byte[]>> readBlock(int block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(blockLengths[block]);
+        readFully(buffer, blockOffsets[block]);
+        buffer.flip();
+        ArrayList<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            String key = new String(buffer.array(), buffer.position(), keyLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + keyLength);
+            byte[] value = null;
+            if (valueLength != TOMBSTONE) {
+                value = new byte[valueLength];
+                buffer.get(value);
+            }
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+        return entries;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the first key of the table, or null if the table is empty
+     */
+    String getFirstKey() {
+        return blockKeys.length > 0 ? blockKeys[0] : null;
+    }
+
+    /**
+     * @return the last key of the table, or null if the table is empty
+     */
+    String getLastKey() {
+        return lastKey;
+    }
+
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return size of the table file in bytes
+     */
+    long size() {
+        return file.length();
+    }
+
+    /**
+     * Method to check whether the key range of this table overlaps a given key range
+     *
+     * @param first first key of the range
+     * @param last  last key of the range
+     * @return true if some key of the range may be in this table
+     */
+    boolean overlaps(String first, String last) {
+        return blockKeys.length > 0 && lastKey.compareTo(first) >= 0 && blockKeys[0].compareTo(last) <= 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
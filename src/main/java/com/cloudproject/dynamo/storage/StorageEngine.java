@@ -0,0 +1,108 @@
+package com.cloudproject.dynamo.storage;
+
+import com.cloudproject.dynamo.models.ObjectIOModel;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Interface to be implemented by the local storage of a node. Objects are grouped in
+ * buckets, and identified by their key within the bucket
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * Method to create a bucket
+     *
+     * @param bucket name of the bucket
+     * @return true if the bucket was created, false if it already exists or could not be created
+     */
+    boolean createBucket(String bucket);
+
+    /**
+     * Method to delete a bucket along with all of its objects
+     *
+     * @param bucket name of the bucket
+     * @return true if the bucket was deleted, false if it does not exist or could not be deleted
+     */
+    boolean deleteBucket(String bucket);
+
+    /**
+     * Method to return the names of the existing buckets
+     *
+     * @return names of the buckets, in no particular order
+     */
+    List<String> listBuckets();
+
+    /**
+     * Method to store a new object
+     *
+     * @param bucket name of the bucket
+     * @param key    key of the object
+     * @param value  the object to be stored
+     * @return true if the object was stored, false if the bucket does not exist or the key is already present
+     */
+    boolean create(String bucket, String key, ObjectIOModel value);
+
+    /**
+     * Method to read an object
+     *
+     * @param bucket name of the bucket
+     * @param key    key of the object
+     * @return the stored object, or null if it does not exist
+     */
+    ObjectIOModel read(String bucket, String key);
+
+    /**
+     * Method to overwrite an existing object
+     *
+     * @param bucket name of the bucket
+     * @param key    key of the object
+     * @param value  the new object
+     * @return true if the object was overwritten, false if it does not exist
+     */
+    boolean update(String bucket, String key, ObjectIOModel value);
+
+    /**
+     * Method to delete an object
+     *
+     * @param bucket name of the bucket
+     * @param key    key of the object
+     * @return true if the object was deleted, false if it does not exist
+     */
+    boolean delete(String bucket, String key);
+
+    /**
+     * Method to read the objects of a bucket in key order
+     *
+     * @param bucket  name of the bucket
+     * @param fromKey first key (inclusive) to be returned, null to start at the first key of the bucket
+     * @param limit   maximum number of objects to be returned
+     * @return the objects, sorted by key, or an empty map if the bucket does not exist
+     */
+    SortedMap<String, ObjectIOModel> scan(String bucket, String fromKey, int limit);
+
+    /**
+     * Method to force every write which returned so far to disk
+     *
+     * @throws IOException if the writes could not be forced to disk
+     */
+    void sync() throws IOException;
+
+    /**
+     * Method to list the bucket folders of a storage directory. Folders whose name starts with
+     * a dot hold data of the node itself (such as hinted writes) rather than a bucket
+     *
+     * @param root the storage directory
+     * @return names of the bucket folders
+     */
+    static List<String> listBucketFolders(File root) {
+        String[] names = root.list((dir, name) -> !name.startsWith(".") && new File(dir, name).isDirectory());
+        return names != null ? new ArrayList<>(Arrays.asList(names)) : new ArrayList<>();
+    }
+}
@@ -0,0 +1,222 @@
+package com.cloudproject.dynamo.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log with group commit. Records appended by concurrent threads are queued,
+ * and a single committer thread writes every queued record and forces them to disk with
+ * one {@link FileChannel#force(boolean)} per batch. While a batch is being forced, new
+ * records accumulate in the queue and form the next batch, so the number of fsyncs per
+ * second stays bounded by the latency of the disk rather than by the write rate.
+ * <p>
+ * Each record is laid out as {@code [crc:int][length:int][data]}. Once the log grows past
+ * its checkpoint size, the committer runs the checkpoint action, which must make every
+ * logged write durable elsewhere, and truncates the log.
+ * </p>
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long checkpointSize;
+    private final Runnable checkpoint;
+    private final LinkedBlockingQueue<Entry> queue;
+    private final Thread committer;
+    private volatile boolean closed;
+
+    /**
+     * @param file           the log file, created if it does not exist
+     * @param checkpointSize size (in bytes) of the log after which it is checkpointed and truncated
+     * @param checkpoint     action making every write logged so far durable without the log, throwing an
+     *                       {@link UncheckedIOException} if it could not, in which case the log is kept
+     * @throws IOException if the log could not be opened
+     */
+    public WriteAheadLog(File file, long checkpointSize, Runnable checkpoint) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.checkpointSize = checkpointSize;
+        this.checkpoint = checkpoint;
+        this.queue = new LinkedBlockingQueue<>();
+        this.committer = new Thread(this::commitLoop, "wal-committer");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Replays the records of the log, stopping at the first torn or corrupt record, and then
+     * starts accepting appends
+     *
+     * @param consumer action applied to the data of every record, in log order
+     * @throws IOException if the log could not be read
+     */
+    public void recover(Consumer<byte[]> consumer) throws IOException {
+        long position = 0;
+        long length = channel.size();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (position + HEADER_SIZE <= length) {
+                int crc = in.readInt();
+                int dataLength = in.readInt();
+                if (dataLength < 0 || position + HEADER_SIZE + dataLength > length) {
+                    break;
+                }
+                byte[] data = new byte[dataLength];
+                in.readFully(data);
+                if ((int) checksum(data) != crc) {
+                    break;
+                }
+                consumer.accept(data);
+                position += HEADER_SIZE + dataLength;
+            }
+        }
+        if (position < length) {
+            System.out.println("[WARN] Discarding " + (length - position) + " torn bytes at the end of " + file);
+        }
+        if (length > 0) {
+            checkpoint.run();
+            channel.truncate(0);
+            channel.force(true);
+            System.out.println("[Storage] Replayed " + position + " bytes of " + file);
+        }
+        committer.start();
+    }
+
+    /**
+     * Queues a record for the next group commit
+     *
+     * @param data the record to be logged
+     * @return future completed once the record is durable, or completed exceptionally
+     * if it could not be written
+     */
+    public CompletableFuture<Void> append(byte[] data) {
+        Entry entry = new Entry(data);
+        if (closed) {
+            entry.future.completeExceptionally(new IOException("Write-ahead log is closed"));
+        } else {
+            queue.add(entry);
+        }
+        return entry.future;
+    }
+
+    private void commitLoop() {
+        ArrayList<Entry> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            commit(batch);
+            batch.clear();
+        }
+        /* fail whatever was queued while closing */
+        queue.drainTo(batch);
+        for (Entry entry : batch) {
+            entry.future.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+    }
+
+    /**
+     * Writes a batch of records, forces them to disk once and completes their futures
+     *
+     * @param batch the records to be committed
+     */
+    private void commit(ArrayList<Entry> batch) {
+        long position = -1;
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] data = batch.get(i).data;
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
+                buffer.putInt((int) checksum(data)).putInt(data.length).put(data).flip();
+                buffers[i] = buffer;
+            }
+            position = channel.size();
+            channel.position(position);
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            /* the writers undo the writes of a failed batch, so none of its records may be replayed */
+            if (position >= 0) {
+                try {
+                    channel.truncate(position);
+                } catch (IOException truncateError) {
+                    System.out.println("[WARN] Could not discard failed batch of " + file + ": "
+                            + truncateError.getMessage());
+                }
+            }
+            for (Entry entry : batch) {
+                entry.future.completeExceptionally(e);
+            }
+            return;
+        }
+        for (Entry entry : batch) {
+            entry.future.complete(null);
+        }
+
+        if (channel.isOpen()) {
+            try {
+                if (channel.size() >= checkpointSize) {
+                    /* every logged write was applied before being queued, so it is covered by the checkpoint */
+                    checkpoint.run();
+                    channel.truncate(0);
+                    channel.force(true);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("[WARN] Could not truncate " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        /* the committer finishes its current batch, interrupting it would close the channel mid-write */
+        closed = true;
+        try {
+            committer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * A queued record, along with the future of its commit
+     */
+    private static class Entry {
+        private final byte[] data;
+        private final CompletableFuture<Void> future;
+
+        Entry(byte[] data) {
+            this.data = data;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}